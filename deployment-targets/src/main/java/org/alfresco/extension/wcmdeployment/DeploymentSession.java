@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.deployment.impl.DeploymentException;
+
+
+/**
+ * The transient state of a single deployment (i.e. everything a DeploymentTarget needs to remember between
+ * <code>begin</code> and <code>commit</code> or <code>abort</code>).  DeploymentTargets subclass this to hold their own
+ * (typed) state alongside the common properties.
+ *
+ * Each session moves through a simple state machine:
+ * <pre>
+ *   OPEN --&gt; PREPARED --&gt; COMMITTING --&gt; COMMITTED
+ *     |          |             |
+ *     |          |             +--&gt; PREPARED (if the commit fails)
+ *     +----------+--&gt; ABORTED
+ * </pre>
+ * Every transition is a single compare-and-set, so exactly one of any number of concurrent <code>commit</code> and
+ * <code>abort</code> calls for the same ticket gets to act on the session - the others see that they lost, and leave
+ * it alone.
+ *
+ * Sessions also record when they were last used (see {@link #touch()}), so that abandoned deployments can be found and
+ * aborted by a {@link SessionExpiryService}.
+ *
+ * @version $Id$
+ */
+public class DeploymentSession
+{
+    /**
+     * The states a session can be in.
+     */
+    public enum State
+    {
+        OPEN,
+        PREPARED,
+        COMMITTING,
+        COMMITTED,
+        ABORTED
+    }
+    
+    private final String ticket;
+    private final String target;
+    private final String store;
+    private final int    version;
+    
+    private final AtomicReference<State> state = new AtomicReference<State>(State.OPEN);
+    
+    private volatile long lastActivity = System.currentTimeMillis();
+    
+    
+    
+    /**
+     * @param ticket  The deployment ticket <i>(must not be null, empty or blank)</i>.
+     * @param target  The target being deployed to <i>(must not be null, empty or blank)</i>.
+     * @param store   The store being deployed <i>(must not be null, empty or blank)</i>.
+     * @param version The version being deployed.
+     */
+    public DeploymentSession(final String ticket, final String target, final String store, final int version)
+    {
+        this.ticket  = ticket;
+        this.target  = target;
+        this.store   = store;
+        this.version = version;
+    }
+    
+    
+    /**
+     * Marks the deployment as prepared.  Preparing an already prepared deployment is harmless.
+     * 
+     * @throws DeploymentException If the deployment is already being committed, or has finished.
+     */
+    public void prepare()
+        throws DeploymentException
+    {
+        if (!transition(State.OPEN, State.PREPARED) && state.get() != State.PREPARED)
+        {
+            throw new DeploymentException("Deployment " + ticket + " can't be prepared - it is " + state.get() + ".");
+        }
+    }
+    
+    
+    /**
+     * Claims the deployment for committing.
+     * 
+     * @return True if the caller now owns the commit, false if the deployment is already being committed, or has finished.
+     */
+    public boolean beginCommit()
+    {
+        return(transition(State.OPEN, State.COMMITTING) || transition(State.PREPARED, State.COMMITTING));
+    }
+    
+    
+    /**
+     * Completes a commit claimed with {@link #beginCommit()}.
+     */
+    public void committed()
+    {
+        transition(State.COMMITTING, State.COMMITTED);
+    }
+    
+    
+    /**
+     * Releases a commit claimed with {@link #beginCommit()} that failed, so that the deployment can be aborted (or the
+     * commit retried).
+     */
+    public void commitFailed()
+    {
+        transition(State.COMMITTING, State.PREPARED);
+    }
+    
+    
+    /**
+     * Claims the deployment for aborting.
+     * 
+     * @return True if the caller now owns the abort, false if the deployment is being committed, or has finished.
+     */
+    public boolean abort()
+    {
+        return(transition(State.OPEN, State.ABORTED) || transition(State.PREPARED, State.ABORTED));
+    }
+    
+    
+    /**
+     * @return The current state of the deployment <i>(will not be null)</i>.
+     */
+    public State getState()
+    {
+        return(state.get());
+    }
+    
+    
+    /**
+     * @return True if the deployment has been committed or aborted.
+     */
+    public boolean isFinished()
+    {
+        State current = state.get();
+        
+        return(current == State.COMMITTED || current == State.ABORTED);
+    }
+    
+    
+    /**
+     * Records activity on the deployment, so that it isn't considered idle (see {@link SessionExpiryService}).
+     */
+    public void touch()
+    {
+        lastActivity = System.currentTimeMillis();
+    }
+    
+    
+    /**
+     * @return The time (in milliseconds since the epoch) the deployment was last touched.
+     */
+    public long getLastActivity()
+    {
+        return(lastActivity);
+    }
+    
+    
+    public String getTicket()
+    {
+        return(ticket);
+    }
+    
+    
+    public String getTarget()
+    {
+        return(target);
+    }
+    
+    
+    public String getStore()
+    {
+        return(store);
+    }
+    
+    
+    public int getVersion()
+    {
+        return(version);
+    }
+    
+    
+    private boolean transition(final State from, final State to)
+    {
+        return(state.compareAndSet(from, to));
+    }
+    
+    
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return(ticket + " (" + target + "/" + store + " v" + version + ", " + state.get() + ")");
+    }
+    
+}
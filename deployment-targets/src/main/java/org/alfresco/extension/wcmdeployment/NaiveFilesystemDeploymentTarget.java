@@ -25,30 +25,36 @@
 
 package org.alfresco.extension.wcmdeployment;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Serializable;
-import java.io.Writer;
-import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.deployment.DeploymentTarget;
 import org.alfresco.deployment.FileDescriptor;
 import org.alfresco.deployment.FileType;
 import org.alfresco.deployment.impl.DeploymentException;
+import org.alfresco.extension.wcmdeployment.filesystem.BlobStore;
+import org.alfresco.extension.wcmdeployment.filesystem.ChangeManifest;
+import org.alfresco.extension.wcmdeployment.filesystem.FileSystemUtils;
+import org.alfresco.extension.wcmdeployment.filesystem.PathIndex;
+import org.alfresco.extension.wcmdeployment.filesystem.Precompressor;
+import org.alfresco.extension.wcmdeployment.filesystem.StagedFileListener;
+import org.alfresco.extension.wcmdeployment.filesystem.StagedFileOutputStream;
+import org.alfresco.extension.wcmdeployment.filesystem.TrashPurger;
+import org.alfresco.extension.wcmdeployment.filesystem.VersionRegistry;
+import org.alfresco.extension.wcmdeployment.filesystem.WriteBehindPipeline;
 import org.alfresco.util.GUID;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -56,7 +62,64 @@ import org.apache.commons.logging.LogFactory;
 
 
 /**
- * ####TODO: Add description
+ * DeploymentTarget that deploys to a directory tree on the local filesystem.
+ *
+ * Each deployment is written to a private staging tree (initially a hard linked clone of the live tree, where the
+ * platform supports it), which is then swapped in as the live tree in a single step at commit time.  Where symbolic
+ * links are available the live path (<code>baseDirectory/target/store</code>) is a symbolic link to the current
+ * version tree, and the swap is an atomic rename of a new link over it.  Otherwise the live directory is renamed out of
+ * the way and the staging tree renamed in its place, which leaves a very brief window in which the live path doesn't
+ * exist.
+ *
+ * Note that cloning the live tree costs one link per file in the store at every begin, however few files the
+ * deployment changes.  Where hard links aren't available (on Java 6, or on filesystems that don't support them) files
+ * are copied instead, so every deployment pays for a full copy of the site - this is logged as a warning, and can be
+ * refused outright by setting <code>allowStagingCopies</code> to false.
+ *
+ * If <code>contentAddressed</code> is enabled, file content is written once into a shared {@link BlobStore} under
+ * <code>baseDirectory/.blobs</code> and every deployed file is a hard link to its blob, so redeploying unchanged
+ * content costs a link rather than a write, and disk usage only grows with unique content.
+ *
+ * Each store's tree is described by a {@link PathIndex} (persisted in the metadata directory at commit), which is
+ * kept up to date by createDirectory/send/delete and is used to answer getListing from memory, with the GUIDs the
+ * authoring side originally sent.
+ *
+ * The current version of every target/store is held in a single memory-mapped {@link VersionRegistry} in the metadata
+ * directory (replacing the per-store <code>version.txt</code> files used by earlier releases, which are migrated on
+ * first use).
+ *
+ * Content is written to disk asynchronously by a {@link WriteBehindPipeline}: send() returns a stream backed by pooled
+ * buffers that a small pool of writer threads drain to disk, and prepare()/commit() wait for (and report failures in)
+ * all of the deployment's pending writes.  The <code>fsyncPolicy</code> determines whether content is forced to disk
+ * never (<code>NONE</code>, the default), as each file is written (<code>PER_FILE</code>) or all at once at commit
+ * (<code>COMMIT</code>).
+ *
+ * Content that's already in a local file (e.g. when the authoring server is co-located with the target) can be sent
+ * via the <code>File</code> and <code>FileChannel</code> variants of send, which copy it with
+ * <code>FileChannel.transferFrom</code> (or, with <code>linkLocalContent</code> enabled, hard link to it) so that the
+ * bytes never pass through the Java heap.
+ *
+ * With the default <code>deleteMode</code> of <code>TRASH</code>, deleted paths, superseded version trees and
+ * aborted staging trees are renamed into <code>baseDirectory/target/.trash/store</code> in constant time and reclaimed
+ * incrementally by a throttled background {@link TrashPurger}.  <code>IMMEDIATE</code> deletes them (recursively)
+ * before returning.  Staging trees left behind by a run that crashed or was killed mid-deployment are discarded the same
+ * way at startup.
+ *
+ * Every commit writes a {@link ChangeManifest} of the paths the deployment added, modified or deleted (with sizes and
+ * SHA-1 hashes) to <code>metadataDirectory/target/store/manifests/version.manifest</code>, for downstream cache
+ * invalidation.  The last <code>retainedManifests</code> manifests of each store are kept.
+ *
+ * If <code>precompress</code> is enabled, files of compressible mime types are also gzipped into <code>.gz</code>
+ * siblings (for web servers to serve as-is) by a bounded {@link Precompressor} pool as they're staged.  The variants
+ * aren't in the index (or the listings), are swapped in along with the rest of the staging tree, and are deleted along
+ * with their originals.
+ *
+ * The last <code>retainedVersions</code> trees superseded at commit are kept (as hard linked version trees, so they only
+ * cost the space of the files that changed) along with a snapshot of their index, and
+ * {@link #rollback(String, String, int)} repoints the live path at any of them in constant time.
+ *
+ * Deployments that are left idle for longer than <code>sessionTimeoutMillis</code> (e.g. because the authoring side
+ * died mid-deployment) are aborted by a {@link SessionExpiryService}.
  *
  * @author Peter Monks (peter.monks@alfresco.com)
  * @version $Id$
@@ -69,11 +132,68 @@ public class NaiveFilesystemDeploymentTarget
     private final static String DEFAULT_BASE_DIRECTORY     = "./naivetarget/";
     private final static String DEFAULT_METADATA_DIRECTORY = "./naivemetadata/";
     private final static String VERSION_FILENAME           = "version.txt";
+    private final static String VERSION_REGISTRY_FILENAME  = "versions.reg";
+    private final static String INDEX_FILENAME             = "index.dat";
+    private final static String STAGING_DIRECTORY          = ".staging";
+    private final static String VERSIONS_DIRECTORY         = ".versions";
+    private final static String BLOBS_DIRECTORY            = ".blobs";
+    private final static String TRASH_DIRECTORY            = ".trash";
+    private final static String SNAPSHOTS_DIRECTORY        = "snapshots";
+    private final static String SNAPSHOT_SUFFIX            = ".idx";
+    private final static String PREVIOUS_PREFIX            = "previous.";
+    private final static String MANIFESTS_DIRECTORY        = "manifests";
+    private final static String MANIFEST_SUFFIX            = ".manifest";
+    private final static int    DEFAULT_RETAINED_VERSIONS  = 3;
+    private final static int    DEFAULT_RETAINED_MANIFESTS = 100;
+    private final static int    DEFAULT_BLOB_GC_INTERVAL   = 10;
+    private final static int    DEFAULT_WRITER_THREADS     = 2;
+    private final static int    DEFAULT_WRITE_BUFFERS      = 256;
+    private final static int    DEFAULT_WRITE_BUFFER_SIZE  = 64 * 1024;
+    private final static long   DEFAULT_SESSION_TIMEOUT    = 60L * 60 * 1000;
     
-    private File baseDirectory     = null;
-    private File metadataDirectory = null;
+    private File    baseDirectory                 = null;
+    private File    metadataDirectory             = null;
+    private boolean contentAddressed              = false;
+    private boolean linkLocalContent              = false;
+    private boolean allowStagingCopies            = true;
+    private boolean writeManifests                = true;
+    private boolean precompress                   = false;
+    private int     precompressionThreads         = Precompressor.DEFAULT_THREADS;
+    private long    precompressionMinimumSize     = Precompressor.DEFAULT_MINIMUM_SIZE;
+    private int     blobGarbageCollectionInterval = DEFAULT_BLOB_GC_INTERVAL;
+    private int     versionRegistrySlots          = VersionRegistry.DEFAULT_SLOT_COUNT;
+    private int     writerThreads                 = DEFAULT_WRITER_THREADS;
+    private int     writeBuffers                  = DEFAULT_WRITE_BUFFERS;
+    private int     writeBufferSize               = DEFAULT_WRITE_BUFFER_SIZE;
+    private int     maxPurgeDeletesPerSecond      = TrashPurger.DEFAULT_MAX_DELETES_PER_SECOND;
+    private int     retainedVersions              = DEFAULT_RETAINED_VERSIONS;
+    private int     retainedManifests             = DEFAULT_RETAINED_MANIFESTS;
+    private long    sessionTimeoutMillis          = DEFAULT_SESSION_TIMEOUT;
     
-    private ConcurrentMap<String, Map<String, Object>> deployments = null;
+    private WriteBehindPipeline.FsyncPolicy fsyncPolicy             = WriteBehindPipeline.FsyncPolicy.NONE;
+    private DeleteMode                      deleteMode              = DeleteMode.TRASH;
+    private Set<String>                     precompressionMimeTypes = Precompressor.DEFAULT_MIME_TYPES;
+    
+    private ConcurrentMap<String, Session>   deployments     = null;
+    private ConcurrentMap<String, PathIndex> indexes         = null;
+    private BlobStore                        blobStore       = null;
+    private VersionRegistry                  versionRegistry = null;
+    private WriteBehindPipeline              writePipeline   = null;
+    private TrashPurger                      trashPurger     = null;
+    private Precompressor                    precompressor   = null;
+    private SessionExpiryService             expiryService   = null;
+    private boolean                          sharedExpiry    = false;
+    private final AtomicInteger              commitCount     = new AtomicInteger();
+    
+    
+    /**
+     * How deleted paths (and discarded trees) are removed.
+     */
+    public enum DeleteMode
+    {
+        IMMEDIATE,
+        TRASH
+    }
     
     
     
@@ -93,9 +213,89 @@ public class NaiveFilesystemDeploymentTarget
             mkdirs(metadataDirectory);
         }
         
-        deployments = new ConcurrentHashMap<String, Map<String, Object>>();
+        mkdirs(metadataDirectory);
+        versionRegistry = new VersionRegistry(new File(metadataDirectory, VERSION_REGISTRY_FILENAME), versionRegistrySlots);
+        
+        if (contentAddressed)
+        {
+            blobStore = new BlobStore(new File(baseDirectory, BLOBS_DIRECTORY));
+        }
+        
+        if (deleteMode == DeleteMode.TRASH)
+        {
+            trashPurger = new TrashPurger(maxPurgeDeletesPerSecond);
+            recoverTrash();
+        }
+        
+        recoverStaging();
+        
+        if (precompress)
+        {
+            precompressor = new Precompressor(precompressionThreads, Precompressor.DEFAULT_QUEUE_SIZE, precompressionMimeTypes, precompressionMinimumSize);
+        }
+        
+        writePipeline = new WriteBehindPipeline(writerThreads, writeBuffers, writeBufferSize, fsyncPolicy);
+        deployments   = new ConcurrentHashMap<String, Session>();
+        indexes       = new ConcurrentHashMap<String, PathIndex>();
+        
+        if (expiryService == null)
+        {
+            expiryService = SessionExpiryService.getDefaultInstance();
+            sharedExpiry  = true;
+        }
     }
-    
+
+
+    /**
+     * Aborts any deployments still in progress, stops the background threads started by {@link #init()} and releases
+     * the shared {@link SessionExpiryService} (one set via <code>sessionExpiryService</code> is left running for its
+     * owner to shut down).  Configure this as the bean's <code>destroy-method</code>.
+     */
+    public void destroy()
+    {
+        log.trace("NaiveFilesystemDeploymentTarget.destroy()");
+
+        if (deployments != null)
+        {
+            for (final String ticket : deployments.keySet())
+            {
+                try
+                {
+                    abort(ticket);
+                }
+                catch (final RuntimeException re)
+                {
+                    log.warn("Unable to abort deployment " + ticket + " during shutdown.", re);
+                }
+            }
+        }
+
+        if (writePipeline != null)
+        {
+            writePipeline.shutdown();
+            writePipeline = null;
+        }
+
+        if (trashPurger != null)
+        {
+            trashPurger.shutdown();
+            trashPurger = null;
+        }
+
+        if (precompressor != null)
+        {
+            precompressor.shutdown();
+            precompressor = null;
+        }
+
+        if (sharedExpiry)
+        {
+            SessionExpiryService.releaseDefaultInstance();
+            expiryService = null;
+            sharedExpiry  = false;
+        }
+    }
+
     
     /**
      * @see org.alfresco.deployment.DeploymentTarget#begin(java.lang.String, java.lang.String, int, java.lang.String, java.lang.String)
@@ -117,19 +317,52 @@ public class NaiveFilesystemDeploymentTarget
         File storeMetaDirectory  = new File(targetMetaDirectory, storeName);
         mkdirs(storeMetaDirectory);
         
-        Map<String, Object> deploymentState = new HashMap<String, Object>();
+        // Stage the deployment in a private copy of the live tree
+        File stagingDirectory = new File(new File(new File(targetDirectory, STAGING_DIRECTORY), storeName), result);
+        long start            = System.currentTimeMillis();
+        int  copies           = 0;
+        
+        try
+        {
+            copies = FileSystemUtils.cloneTree(storeDirectory, stagingDirectory, allowStagingCopies);
+        }
+        catch (final DeploymentException de)
+        {
+            discard(stagingDirectory, storeDirectory);
+            throw de;
+        }
+        
+        if (copies > 0)
+        {
+            log.warn("Staging deployment " + result + " to '" + target + "/" + storeName + "' copied " + copies + " file(s) that couldn't be hard linked, in " +
+                     (System.currentTimeMillis() - start) + "ms.  Every deployment to this store pays for a full copy of its live tree - set allowStagingCopies to false to refuse instead.");
+        }
+        else if (log.isDebugEnabled())
+        {
+            log.debug("Staged deployment " + result + " to '" + target + "/" + storeName + "' in " + (System.currentTimeMillis() - start) + "ms.");
+        }
         
-        deploymentState.put("target",        target);
-        deploymentState.put("store",         storeName);
-        deploymentState.put("version",       Integer.valueOf(version));
-        deploymentState.put("directory",     storeDirectory);
-        deploymentState.put("metaDirectory", storeMetaDirectory);
+        // ...and stage changes to the index the same way
+        PathIndex index = new PathIndex(getLiveIndex(target, storeName, storeDirectory, storeMetaDirectory));
+        
+        Session session = new Session(result, target, storeName, version,
+                                      storeDirectory, stagingDirectory, storeMetaDirectory, index,
+                                      writePipeline.newBatch(),
+                                      new ChangeManifest(),
+                                      precompressor == null ? null : precompressor.newBatch());
 
-        if (deployments.putIfAbsent(result, deploymentState) != null)
+        if (deployments.putIfAbsent(result, session) != null)
         {
             throw new IllegalStateException("A deployment to this target is already in progress.");
         }
         
+        expiryService.register(session, sessionTimeoutMillis, new SessionExpiryService.Reaper() {
+            public void reap(final DeploymentSession expired)
+            {
+                abort(expired.getTicket());
+            }
+        });
+        
         return(result);
     }
     
@@ -142,7 +375,11 @@ public class NaiveFilesystemDeploymentTarget
     {
         log.trace("NaiveFilesystemDeploymentTarget.prepare(" + ticket + ")");
         
-        // Note: MongoDB isn't transactional, so this is a NO-OP
+        Session session = getSession(ticket);
+        
+        // Wait for everything to reach the staging tree, so that any write failures are reported before commit
+        awaitPendingWrites(session);
+        session.prepare();
     }
 
 
@@ -158,8 +395,12 @@ public class NaiveFilesystemDeploymentTarget
     {
         log.trace("NaiveFilesystemDeploymentTarget.createDirectory(" + ticket + ", " + path + ")");
         
-        File newDirectory  = new File(getBaseDirectory(ticket), path);
+        Session session      = getSession(ticket);
+        File    newDirectory = new File(session.getStagingDirectory(), path);
         mkdirs(newDirectory);
+        
+        session.getIndex().put(path, new PathIndex.Entry(FileType.DIR, guid, 0, System.currentTimeMillis(), null));
+        session.getManifest().touch(path);
     }
 
 
@@ -171,62 +412,69 @@ public class NaiveFilesystemDeploymentTarget
     {
         log.trace("NaiveFilesystemDeploymentTarget.delete(" + ticket + ", " + path + ")");
         
-        File pathFile = new File(getBaseDirectory(ticket), path);
+        Session session  = getSession(ticket);
+        File    pathFile = new File(session.getStagingDirectory(), path);
+        
+        // Let pending writes at or beneath the path finish first, so that a file that's still being written isn't
+        // published after it's deleted - writes elsewhere carry on in the background
+        awaitPendingWrites(session, pathFile);
         
         if (pathFile.exists())
         {
-            if (!pathFile.delete())
+            if (trashPurger != null)
+            {
+                trashPurger.trash(pathFile, getTrashDirectory(session.getBaseDirectory()));
+            }
+            else if (!FileSystemUtils.deleteRecursively(pathFile))
             {
                 throw new DeploymentException("Unable to delete path '" + getPath(pathFile) + "'.");
             }
+            
+            if (precompressor != null)
+            {
+                Precompressor.getVariant(pathFile).delete();
+            }
         }
+        
+        session.getIndex().remove(path);
+        session.getManifest().touch(path);
     }
 
 
     /**
+     * Answered from the in-memory view of the version registry, so this doesn't touch the filesystem.
+     * 
      * @see org.alfresco.deployment.DeploymentTarget#getCurrentVersion(java.lang.String, java.lang.String)
      */
     public int getCurrentVersion(final String target, final String storeName)
     {
         log.trace("NaiveFilesystemDeploymentTarget.getCurrentVersion(" + target + ", " + storeName + ")");
-        int result = 0;
-
-        File targetMetaDirectory = new File(metadataDirectory,   target);
-        File storeMetaDirectory  = new File(targetMetaDirectory, storeName);
-        File versionFile         = new File(storeMetaDirectory,  VERSION_FILENAME);
+        int     result  = 0;
+        String  key     = target + "/" + storeName;
+        Integer version = versionRegistry.get(key);
         
-        if (versionFile.exists())
+        if (version != null)
+        {
+            result = version.intValue();
+        }
+        else
         {
-            CharBuffer buffer = CharBuffer.allocate(16);
-            Reader     reader = null;
+            // Migrate the version file written by earlier releases (if any) into the registry
+            File targetMetaDirectory = new File(metadataDirectory,   target);
+            File storeMetaDirectory  = new File(targetMetaDirectory, storeName);
+            File versionFile         = new File(storeMetaDirectory,  VERSION_FILENAME);
             
-            try
+            if (versionFile.exists())
             {
-                reader = new InputStreamReader(new FileInputStream(versionFile));
-                reader.read(buffer);
+                result = VersionRegistry.readLegacyVersion(versionFile);
                 
-                result = Integer.valueOf(buffer.toString().trim());
-            }
-            catch (final IOException ioe)
-            {
-                log.warn("Unable to retrieve version infomation from '" + getPath(versionFile) + "'.", ioe);
-            }
-            catch (final NumberFormatException nfe)
-            {
-                log.warn("Unable to parse version number '" + buffer.toString() + "'.", nfe);
-            }
-            finally
-            {
-                if (reader != null)
+                if (versionRegistry.compareAndSet(key, 0, result))
                 {
-                    try
-                    {
-                        reader.close();
-                    }
-                    catch (IOException ioe)
-                    {
-                        // *Gulp* - if this occurs there's not a lot else we can do but swallow it...
-                    }
+                    versionFile.delete();
+                }
+                else
+                {
+                    result = versionRegistry.get(key).intValue();
                 }
             }
         }
@@ -243,18 +491,12 @@ public class NaiveFilesystemDeploymentTarget
     {
         log.trace("NaiveFilesystemDeploymentTarget.getListing(" + ticket + ", " + parentPath + ")");
         
-        List<FileDescriptor> result          = new ArrayList<FileDescriptor>();
+        List<Map.Entry<String, PathIndex.Entry>> children = getSession(ticket).getIndex().getChildren(parentPath);
+        List<FileDescriptor>                     result   = new ArrayList<FileDescriptor>(children.size());
         
-        File parentPathFile = new File(getBaseDirectory(ticket), parentPath);
-        
-        if (parentPathFile.exists())
+        for (Map.Entry<String, PathIndex.Entry> child : children)
         {
-            File[] children = parentPathFile.listFiles();
-            
-            for (File child : children)
-            {
-                result.add(new FileDescriptor(child.getPath(), child.isDirectory() ? FileType.DIR : FileType.FILE, null));  // Note: use of file GUID here is bogus!!
-            }
+            result.add(new FileDescriptor(child.getKey(), child.getValue().getType(), child.getValue().getGuid()));
         }
         
         return(result);
@@ -275,33 +517,92 @@ public class NaiveFilesystemDeploymentTarget
     {
         log.trace("NaiveFilesystemDeploymentTarget.send(" + ticket + ", " + path + ")");
         
-        OutputStream result = null;
+        Session session = getSession(ticket);
         
-        File outputFile = new File(getBaseDirectory(ticket), path);
+        // Hand the content to the write-behind pipeline, so that this thread doesn't wait on the disk
+        return(new SessionOutputStream(session, writePipeline.newOutputStream(session.getWriteBatch(), stage(session, path, guid, mimeType))));
+    }
+    
+    
+    /**
+     * Variant of send for content that's already in a file on this host (or on a mounted volume) - typically a content
+     * store file when the authoring server and the target are co-located.  The content is copied by the operating system
+     * (<code>FileChannel.transferFrom</code>) rather than streamed through the Java heap.  The source channel is read
+     * from its current position to its end, and is not closed.
+     * 
+     * @see #send(String, String, String, String, String, Set, Map)
+     */
+    public void send(final String                    ticket,
+                     final String                    path,
+                     final String                    guid,
+                     final String                    encoding,
+                     final String                    mimeType,
+                     final Set<String>               aspects,
+                     final Map<String, Serializable> props,
+                     final FileChannel               source)
+        throws DeploymentException
+    {
+        log.trace("NaiveFilesystemDeploymentTarget.send(" + ticket + ", " + path + ", <channel>)");
+        
+        Session                session = getSession(ticket);
+        StagedFileOutputStream staged  = stage(session, path, guid, mimeType);
         
         try
         {
-            if (!outputFile.exists())
-            {
-                if (!outputFile.createNewFile())
-                {
-                    throw new DeploymentException("Unable to create file '" + getPath(outputFile) + "'.");
-                }
-            }
-            
-            //####TEST!!!!
-            result = new BufferedOutputStream(new NoopOutputStream());
-            //result = new BufferedOutputStream(new FileOutputStream(outputFile));
+            writePipeline.transfer(session.getWriteBatch(), staged, source);
         }
         catch (IOException ioe)
         {
-            throw new DeploymentException("I/O error opening file '" + getPath(outputFile) + "' for write.", ioe);
+            throw new DeploymentException("I/O error transferring content to '" + getPath(staged.getDestination()) + "'.", ioe);
+        }
+        finally
+        {
+            session.touch();   // The transfer may have taken a while
         }
+    }
+    
+    
+    /**
+     * Variant of send for content that's already in a file on this host (or on a mounted volume).  If
+     * <code>linkLocalContent</code> is enabled and the source is on the same filesystem as the target, the deployed file
+     * is a hard link to the source and no content is copied at all (so the source must never be modified in place).
+     * Otherwise the content is copied as per {@link #send(String, String, String, String, String, Set, Map, FileChannel)}.
+     * 
+     * @see #send(String, String, String, String, String, Set, Map)
+     */
+    public void send(final String                    ticket,
+                     final String                    path,
+                     final String                    guid,
+                     final String                    encoding,
+                     final String                    mimeType,
+                     final Set<String>               aspects,
+                     final Map<String, Serializable> props,
+                     final File                      source)
+        throws DeploymentException
+    {
+        log.trace("NaiveFilesystemDeploymentTarget.send(" + ticket + ", " + path + ", " + source + ")");
         
-        return(result);
+        if (!linkLocal(getSession(ticket), path, guid, mimeType, source))
+        {
+            FileInputStream sourceStream = null;
+            
+            try
+            {
+                sourceStream = new FileInputStream(source);
+                send(ticket, path, guid, encoding, mimeType, aspects, props, sourceStream.getChannel());
+            }
+            catch (IOException ioe)
+            {
+                throw new DeploymentException("I/O error reading file '" + getPath(source) + "'.", ioe);
+            }
+            finally
+            {
+                FileSystemUtils.closeQuietly(sourceStream);
+            }
+        }
     }
-
-
+    
+    
     /**
      * @see org.alfresco.deployment.DeploymentTarget#updateDirectory(java.lang.String, java.lang.String, java.lang.String, java.util.Set, java.util.Map)
      */
@@ -312,30 +613,79 @@ public class NaiveFilesystemDeploymentTarget
                                 final Map<String, Serializable> properties)
         throws DeploymentException
     {
-        log.trace("NaiveFilesystemDeploymentTarget.updateDirectory()");
+        log.trace("NaiveFilesystemDeploymentTarget.updateDirectory(" + ticket + ", " + path + ")");
 
-        // NO-OP - we're ignoring directory aspects and properties in this DeploymentTarget
+        // We're ignoring directory aspects and properties in this DeploymentTarget, but the GUID may have changed
+        PathIndex       index = getSession(ticket).getIndex();
+        PathIndex.Entry entry = index.get(path);
+        
+        if (entry != null)
+        {
+            index.put(path, new PathIndex.Entry(FileType.DIR, guid, entry.getSize(), System.currentTimeMillis(), null));
+        }
     }
 
     
     /**
      * @see org.alfresco.deployment.DeploymentTarget#commit(java.lang.String)
+     * @throws DeploymentException If the deployment isn't in progress (e.g. it's already been committed, aborted or
+     *                             expired) or is already being committed, or if the commit fails.
      */
     public void commit(final String ticket)
+        throws DeploymentException
     {
         log.trace("NaiveFilesystemDeploymentTarget.commit(" + ticket + ")");
         
-        // Update the version number then clear out the transient deployment state
-        if (deployments.containsKey(ticket))   // WARNING WARNING WARNING: Not thread safe (non-atomic test-then-set)
+        // Swap the staging tree in, update the version number then clear out the transient deployment state
+        Session session = getSession(ticket);
+        
+        if (!session.beginCommit())   // Only one of any concurrent commits and aborts gets past here
         {
-            setVersion(getMetaDirectory(ticket), getVersion(ticket));
-            deployments.remove(ticket);
+            throw new DeploymentException("Deployment " + session + " can't be committed - it's already being committed, or has finished.");
+        }
+        
+        String key = session.getTarget() + "/" + session.getStore();
+        
+        try
+        {
+            Integer previousVersion = versionRegistry.get(key);
+            
+            session.getWriteBatch().sync();
+            
+            if (session.getCompressionBatch() != null)
+            {
+                session.getCompressionBatch().await();
+            }
+            
+            writeManifest(session);
+            swapIn(session.getStagingDirectory(), session.getBaseDirectory(), ticket, session.getVersion(),
+                   previousVersion == null ? 0 : previousVersion.intValue());
+            publishIndex(session);
+            versionRegistry.set(key, session.getVersion());
+            pruneVersions(session.getBaseDirectory(), session.getMetaDirectory());
+            pruneManifests(session.getMetaDirectory());
+        }
+        catch (final RuntimeException re)
+        {
+            session.commitFailed();
+            throw re;
+        }
+        
+        session.committed();
+        deployments.remove(ticket, session);
+        expiryService.cancel(session);
+        
+        if (blobStore != null &&
+            blobGarbageCollectionInterval > 0 &&
+            commitCount.incrementAndGet() % blobGarbageCollectionInterval == 0)
+        {
+            blobStore.collectGarbage();
         }
     }
 
 
     /**
-     * Filesystem isn't transactional, so this is effectively a NO-OP.
+     * Throws away the staging tree - the live tree is never touched until commit.
      * 
      * @see org.alfresco.deployment.DeploymentTarget#abort(java.lang.String)
      */
@@ -343,123 +693,1038 @@ public class NaiveFilesystemDeploymentTarget
     {
         log.trace("NaiveFilesystemDeploymentTarget.abort(" + ticket + ")");
         
-        // Clear out the transient deployment state
-        if (deployments.containsKey(ticket))   // WARNING WARNING WARNING: Not thread safe (non-atomic test-then-set)
-        {
-            deployments.remove(ticket);
-        }
-    }
-    
-    
-    /**
-     * @param baseDirectory the baseDirectory to set
-     */
-    public void setBaseDirectory(final File baseDirectory)
-    {
-        this.baseDirectory = baseDirectory;
-    }
-
-
-    /**
-     * @param metadataDirectory the metadataDirectory to set
-     */
-    public void setMetadataDirectory(final File metadataDirectory)
-    {
-        this.metadataDirectory = metadataDirectory;
-    }
-
-    
-
-    
-    private void setVersion(final File metaDirectory, final int version)
-    {
-        Writer writer      = null;
-        File   versionFile = new File(metaDirectory, VERSION_FILENAME);
+        // Clear out the staging tree and the transient deployment state
+        Session session = deployments.get(ticket);
         
-        // Create the version file if it doesn't already exist
-        if (!versionFile.exists())
+        if (session != null && session.abort())   // Only one of any concurrent commits and aborts gets past here
         {
             try
             {
-                versionFile.createNewFile();
+                session.getWriteBatch().cancel();
+                
+                if (session.getCompressionBatch() != null)
+                {
+                    session.getCompressionBatch().cancel();
+                }
+                
+                discard(session.getStagingDirectory(), session.getBaseDirectory());
             }
-            catch (IOException ioe)
+            finally
             {
-                // Checked exceptions suxors
-                throw new DeploymentException("Unable to create version file.", ioe);
+                deployments.remove(ticket, session);
+                expiryService.cancel(session);
             }
         }
-        
-        // Write the version number to it
-        try
-        {
-            writer = new OutputStreamWriter(new FileOutputStream(versionFile));
-            writer.write(version);
-            writer.flush();
-        }
-        catch (IOException ioe)
-        {
-            log.error("Unable to record version " + version + " in '" + getPath(versionFile) + "'.", ioe);
-        }
-        finally
+        else if (session != null && log.isDebugEnabled())
         {
-            if (writer != null)
-            {
-                try
-                {
-                    writer.close();
-                }
-                catch (IOException ioe)
-                {
-                    // *Gulp* - if this occurs there's not a lot else we can do but swallow it...
-                }
-            }
+            log.debug("Not aborting deployment " + session + " - it's already being committed, or has finished.");
         }
     }
-
     
-    private void mkdirs(final File newDirectory)
+    
+    /**
+     * Makes a retained version the live version of the given store.  The live path is repointed at the retained tree
+     * (a rename, regardless of the size of the tree), the tree's index is restored, and the version registry is updated
+     * to match.  The version being replaced is itself retained, so a rollback can be undone the same way.
+     * 
+     * @param target    The target to roll back <i>(must not be null, empty or blank)</i>.
+     * @param storeName The store to roll back <i>(must not be null, empty or blank)</i>.
+     * @param version   The version to roll back to - must be one of {@link #getRetainedVersions(String, String)}.
+     * @throws DeploymentException If the version isn't retained, or the live path can't be repointed.
+     */
+    public void rollback(final String target, final String storeName, final int version)
+        throws DeploymentException
     {
-        if (!newDirectory.exists())
+        log.trace("NaiveFilesystemDeploymentTarget.rollback(" + target + ", " + storeName + ", " + version + ")");
+        
+        String  key                = target + "/" + storeName;
+        File    storeDirectory     = new File(new File(baseDirectory, target), storeName);
+        File    storeMetaDirectory = new File(new File(metadataDirectory, target), storeName);
+        File    versionTree        = getVersionTree(storeDirectory, version);
+        Integer currentVersion     = versionRegistry.get(key);
+        
+        if (versionTree == null)
         {
-            if (!newDirectory.mkdirs())
-            {
-                throw new DeploymentException("Unable to create non-existent directory '" + getPath(newDirectory) + "'.");
-            }
+            throw new DeploymentException("Version " + version + " of '" + key + "' has not been retained.");
         }
-    }
-    
-    private String getPath(final File file)
-    {
-        String result = null;
         
-        try
+        PathIndex index = PathIndex.load(getSnapshotFile(storeMetaDirectory, version));
+        
+        if (index == null)
         {
-            result = file.getCanonicalPath();
+            log.info("Rebuilding path index for version " + version + " of '" + key + "'.");
+            index = PathIndex.scan(versionTree);
         }
-        catch (IOException ioe)
+        
+        File previousTree = repoint(versionTree, storeDirectory, GUID.generate());
+        
+        if (previousTree != null)
         {
-            result = file.getAbsolutePath();
+            retain(previousTree, storeDirectory, currentVersion == null ? 0 : currentVersion.intValue());
         }
         
-        return(result);
+        index.save(new File(storeMetaDirectory, INDEX_FILENAME));
+        indexes.put(key, index);
+        versionRegistry.set(key, version);
+        
+        log.info("Rolled '" + key + "' back to version " + version + ".");
     }
     
     
-    private File getBaseDirectory(final String ticket)
+    /**
+     * @param target    The target <i>(must not be null, empty or blank)</i>.
+     * @param storeName The store <i>(must not be null, empty or blank)</i>.
+     * @param version   The committed version.
+     * @return The change manifest written when the given version was committed <i>(will be null if there isn't one)</i>.
+     */
+    public File getManifest(final String target, final String storeName, final int version)
     {
-        return((File)deployments.get(ticket).get("directory"));
+        File result = getManifestFile(new File(new File(metadataDirectory, target), storeName), version);
+        
+        return(result.exists() ? result : null);
     }
     
     
-    private File getMetaDirectory(final String ticket)
+    /**
+     * @param target    The target <i>(must not be null, empty or blank)</i>.
+     * @param storeName The store <i>(must not be null, empty or blank)</i>.
+     * @return The versions of the given store that are available to {@link #rollback(String, String, int)}, in ascending order <i>(will not be null)</i>.
+     */
+    public List<Integer> getRetainedVersions(final String target, final String storeName)
     {
-        return((File)deployments.get(ticket).get("metaDirectory"));
+        File          storeDirectory = new File(new File(baseDirectory, target), storeName);
+        File          liveTree       = getLiveTree(storeDirectory);
+        List<Integer> result         = new ArrayList<Integer>();
+        File[]        versionTrees   = getVersionsDirectory(storeDirectory).listFiles();
+        
+        if (versionTrees != null)
+        {
+            for (final File versionTree : versionTrees)
+            {
+                int treeVersion = getTreeVersion(versionTree);
+                
+                if (treeVersion >= 0 &&
+                    !versionTree.equals(liveTree) &&
+                    !result.contains(Integer.valueOf(treeVersion)))
+                {
+                    result.add(Integer.valueOf(treeVersion));
+                }
+            }
+        }
+        
+        Collections.sort(result);
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @param baseDirectory the baseDirectory to set
+     */
+    public void setBaseDirectory(final File baseDirectory)
+    {
+        this.baseDirectory = baseDirectory;
+    }
+
+
+    /**
+     * @param metadataDirectory the metadataDirectory to set
+     */
+    public void setMetadataDirectory(final File metadataDirectory)
+    {
+        this.metadataDirectory = metadataDirectory;
+    }
+
+
+    /**
+     * @param contentAddressed true to store file content in a shared, content-addressed blob store and hard link deployed files to it
+     */
+    public void setContentAddressed(final boolean contentAddressed)
+    {
+        this.contentAddressed = contentAddressed;
+    }
+
+
+    /**
+     * @param allowStagingCopies true if live files that can't be hard linked into a staging tree should be copied (false fails the deployment instead)
+     */
+    public void setAllowStagingCopies(final boolean allowStagingCopies)
+    {
+        this.allowStagingCopies = allowStagingCopies;
+    }
+
+
+    /**
+     * @param linkLocalContent true if local files sent to this target may be deployed as hard links to the source file
+     */
+    public void setLinkLocalContent(final boolean linkLocalContent)
+    {
+        this.linkLocalContent = linkLocalContent;
+    }
+
+
+    /**
+     * @param versionRegistrySlots the maximum number of target/store pairs the version registry can hold (only used when the registry is first created)
+     */
+    public void setVersionRegistrySlots(final int versionRegistrySlots)
+    {
+        this.versionRegistrySlots = versionRegistrySlots;
+    }
+
+
+    /**
+     * @param writerThreads the number of write-behind threads (0 or less writes synchronously)
+     */
+    public void setWriterThreads(final int writerThreads)
+    {
+        this.writerThreads = writerThreads;
+    }
+
+
+    /**
+     * @param writeBuffers the maximum number of pooled write-behind buffers
+     */
+    public void setWriteBuffers(final int writeBuffers)
+    {
+        this.writeBuffers = writeBuffers;
+    }
+
+
+    /**
+     * @param writeBufferSize the size of each write-behind buffer, in bytes
+     */
+    public void setWriteBufferSize(final int writeBufferSize)
+    {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+
+    /**
+     * @param fsyncPolicy when deployed content is forced to disk: NONE, PER_FILE or COMMIT
+     */
+    public void setFsyncPolicy(final String fsyncPolicy)
+    {
+        this.fsyncPolicy = WriteBehindPipeline.FsyncPolicy.valueOf(fsyncPolicy.trim().toUpperCase());
+    }
+
+
+    /**
+     * @param deleteMode how deleted paths are removed: TRASH (in the background) or IMMEDIATE
+     */
+    public void setDeleteMode(final String deleteMode)
+    {
+        this.deleteMode = DeleteMode.valueOf(deleteMode.trim().toUpperCase());
+    }
+
+
+    /**
+     * @param maxPurgeDeletesPerSecond the maximum rate at which trashed files are deleted (0 or less is unthrottled)
+     */
+    public void setMaxPurgeDeletesPerSecond(final int maxPurgeDeletesPerSecond)
+    {
+        this.maxPurgeDeletesPerSecond = maxPurgeDeletesPerSecond;
+    }
+
+
+    /**
+     * @return the background purger, for monitoring <i>(will be null if the delete mode is IMMEDIATE)</i>
+     */
+    public TrashPurger getTrashPurger()
+    {
+        return(trashPurger);
+    }
+
+
+    /**
+     * @param sessionTimeoutMillis how long (in milliseconds) a deployment may be idle before it's aborted (0 or less never aborts)
+     */
+    public void setSessionTimeoutMillis(final long sessionTimeoutMillis)
+    {
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+
+    /**
+     * @param expiryService the service that aborts idle deployments (defaults to the shared instance)
+     */
+    public void setSessionExpiryService(final SessionExpiryService expiryService)
+    {
+        this.expiryService = expiryService;
+    }
+
+
+    /**
+     * @param retainedVersions the number of superseded versions of each store to keep for rollback (0 disables rollback)
+     */
+    public void setRetainedVersions(final int retainedVersions)
+    {
+        this.retainedVersions = retainedVersions;
+    }
+
+
+    /**
+     * @param writeManifests true if a change manifest should be written at each commit
+     */
+    public void setWriteManifests(final boolean writeManifests)
+    {
+        this.writeManifests = writeManifests;
+    }
+
+
+    /**
+     * @param retainedManifests the number of change manifests to keep for each store (0 or less keeps them all)
+     */
+    public void setRetainedManifests(final int retainedManifests)
+    {
+        this.retainedManifests = retainedManifests;
+    }
+
+
+    /**
+     * @param precompress true if gzipped variants of compressible files should be generated
+     */
+    public void setPrecompress(final boolean precompress)
+    {
+        this.precompress = precompress;
+    }
+
+
+    /**
+     * @param precompressionThreads the number of threads compressing files
+     */
+    public void setPrecompressionThreads(final int precompressionThreads)
+    {
+        this.precompressionThreads = precompressionThreads;
+    }
+
+
+    /**
+     * @param precompressionMinimumSize the size (in bytes) below which files aren't compressed
+     */
+    public void setPrecompressionMinimumSize(final long precompressionMinimumSize)
+    {
+        this.precompressionMinimumSize = precompressionMinimumSize;
+    }
+
+
+    /**
+     * @param precompressionMimeTypes the mime types to compress (<code>type/*</code> matches every subtype)
+     */
+    public void setPrecompressionMimeTypes(final Set<String> precompressionMimeTypes)
+    {
+        this.precompressionMimeTypes = precompressionMimeTypes;
+    }
+
+
+    /**
+     * @param blobGarbageCollectionInterval the number of commits between sweeps of unreferenced blobs (0 or less disables sweeping)
+     */
+    public void setBlobGarbageCollectionInterval(final int blobGarbageCollectionInterval)
+    {
+        this.blobGarbageCollectionInterval = blobGarbageCollectionInterval;
+    }
+
+    
+    
+    /**
+     * Opens a staged file for the given path, and records it in the deployment's index.
+     */
+    private StagedFileOutputStream stage(final Session session, final String path, final String guid, final String mimeType)
+    {
+        StagedFileOutputStream result = null;
+        
+        final PathIndex index      = session.getIndex();
+        File            outputFile = new File(session.getStagingDirectory(), path);
+        
+        try
+        {
+            mkdirs(outputFile.getParentFile());
+            
+            // Note: the file is written alongside its final location (or into the blob store) then renamed or linked over
+            // it when the stream is closed, so hard links into the live tree are replaced rather than overwritten
+            if (blobStore != null)
+            {
+                result = blobStore.newOutputStream(outputFile);
+            }
+            else
+            {
+                result = new StagedFileOutputStream(outputFile, writeManifests);
+            }
+            
+            // Record the file now, and its size and hash once it's been written
+            index.put(path, new PathIndex.Entry(FileType.FILE, guid, -1, System.currentTimeMillis(), null));
+            session.getManifest().touch(path);
+            result.setListener(new StagedFileListener() {
+                public void fileStaged(final File file, final long size, final String hash)
+                {
+                    index.put(path, new PathIndex.Entry(FileType.FILE, guid, size, System.currentTimeMillis(), hash));
+                    precompress(session, file, mimeType);
+                }
+            });
+        }
+        catch (IOException ioe)
+        {
+            throw new DeploymentException("I/O error opening file '" + getPath(outputFile) + "' for write.", ioe);
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * Deploys a local file as a hard link to it, if that's enabled and possible.
+     * 
+     * @return True if the file was linked, false if its content needs to be copied.
+     */
+    private boolean linkLocal(final Session session, final String path, final String guid, final String mimeType, final File source)
+    {
+        boolean result = false;
+        
+        // Content addressed deployments link to blobs instead, which requires the content to be hashed
+        if (linkLocalContent && blobStore == null && FileSystemUtils.supportsLinks())
+        {
+            File outputFile = new File(session.getStagingDirectory(), path);
+            File tempLink   = new File(outputFile.getParentFile(), "." + outputFile.getName() + "." + System.nanoTime() + ".link");
+            
+            mkdirs(outputFile.getParentFile());
+            
+            // Link alongside then rename, so that a hard link into the live tree is replaced rather than overwritten
+            if (FileSystemUtils.createLink(tempLink, source))
+            {
+                FileSystemUtils.move(tempLink, outputFile);
+                session.getIndex().put(path, new PathIndex.Entry(FileType.FILE, guid, source.length(), System.currentTimeMillis(), null));
+                session.getManifest().touch(path);
+                precompress(session, outputFile, mimeType);
+                result = true;
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * Queues a freshly staged file for compression if it's of a compressible type, or removes its (stale) compressed
+     * variant if it isn't.
+     */
+    private void precompress(final Session session, final File file, final String mimeType)
+    {
+        if (precompressor != null)
+        {
+            if (precompressor.isCompressible(mimeType))
+            {
+                precompressor.compress(session.getCompressionBatch(), file);
+            }
+            else
+            {
+                Precompressor.getVariant(file).delete();
+            }
+        }
+    }
+    
+    
+    /**
+     * Waits for the deployment's pending writes (and compression) at or beneath the given path to finish.
+     */
+    private void awaitPendingWrites(final Session session, final File root)
+    {
+        session.getWriteBatch().await(root);
+        
+        if (precompressor != null)
+        {
+            session.getCompressionBatch().await(root);
+        }
+    }
+    
+    
+    /**
+     * Waits for the deployment's pending writes (and compression) to finish.
+     */
+    private void awaitPendingWrites(final Session session)
+    {
+        session.getWriteBatch().await();
+        
+        if (precompressor != null)
+        {
+            session.getCompressionBatch().await();
+        }
+    }
+    
+    
+    /**
+     * Retrieves the index of the live tree for the given store, loading or rebuilding it if it's not already in memory.
+     */
+    private PathIndex getLiveIndex(final String target, final String storeName, final File storeDirectory, final File storeMetaDirectory)
+    {
+        String    key    = target + "/" + storeName;
+        PathIndex result = indexes.get(key);
+        
+        if (result == null)
+        {
+            result = PathIndex.load(new File(storeMetaDirectory, INDEX_FILENAME));
+            
+            if (result == null)
+            {
+                log.info("Building path index for '" + getPath(storeDirectory) + "'.");
+                result = PathIndex.scan(storeDirectory);
+            }
+            
+            PathIndex existing = indexes.putIfAbsent(key, result);
+            
+            if (existing != null)
+            {
+                result = existing;
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * Persists the deployment's staged index and makes it the live index for its store.
+     */
+    private void publishIndex(final Session session)
+    {
+        PathIndex index = session.getIndex();
+        
+        index.save(new File(session.getMetaDirectory(), INDEX_FILENAME));
+        
+        if (retainedVersions > 0)
+        {
+            File snapshotFile = getSnapshotFile(session.getMetaDirectory(), session.getVersion());
+            
+            mkdirs(snapshotFile.getParentFile());
+            index.save(snapshotFile);
+        }
+        
+        indexes.put(session.getTarget() + "/" + session.getStore(), index);
+    }
+    
+    
+    /**
+     * Writes the manifest of what the deployment changed, relative to the live tree.
+     */
+    private void writeManifest(final Session session)
+    {
+        if (writeManifests)
+        {
+            String    key          = session.getTarget() + "/" + session.getStore();
+            PathIndex liveIndex    = indexes.get(key);
+            File      manifestFile = getManifestFile(session.getMetaDirectory(), session.getVersion());
+            
+            mkdirs(manifestFile.getParentFile());
+            
+            int changes = session.getManifest().write(manifestFile, key, session.getVersion(),
+                                                      liveIndex == null ? new PathIndex() : liveIndex, session.getIndex());
+            
+            if (log.isDebugEnabled())
+            {
+                log.debug("Wrote " + changes + " change(s) to '" + getPath(manifestFile) + "'.");
+            }
+        }
+    }
+    
+    
+    /**
+     * Deletes all but the most recent <code>retainedManifests</code> manifests of the store.
+     */
+    private void pruneManifests(final File storeMetaDirectory)
+    {
+        File[] manifestFiles = new File(storeMetaDirectory, MANIFESTS_DIRECTORY).listFiles();
+        
+        if (retainedManifests > 0 && manifestFiles != null && manifestFiles.length > retainedManifests)
+        {
+            List<Integer> manifestVersions = new ArrayList<Integer>(manifestFiles.length);
+            
+            for (final File manifestFile : manifestFiles)
+            {
+                String name = manifestFile.getName();
+                
+                if (name.endsWith(MANIFEST_SUFFIX))
+                {
+                    try
+                    {
+                        manifestVersions.add(Integer.valueOf(name.substring(0, name.length() - MANIFEST_SUFFIX.length())));
+                    }
+                    catch (final NumberFormatException nfe)
+                    {
+                        // Not one of ours - ignore it
+                    }
+                }
+            }
+            
+            Collections.sort(manifestVersions);
+            
+            for (int i = 0; i < manifestVersions.size() - retainedManifests; i++)
+            {
+                getManifestFile(storeMetaDirectory, manifestVersions.get(i)).delete();
+            }
+        }
+    }
+    
+    
+    private File getManifestFile(final File storeMetaDirectory, final int version)
+    {
+        return(new File(new File(storeMetaDirectory, MANIFESTS_DIRECTORY), String.valueOf(version) + MANIFEST_SUFFIX));
+    }
+    
+    
+    /**
+     * Makes the staging tree the live tree.  The staging tree becomes a version tree, which the live path is then
+     * repointed at.  The previous live tree is retained for rollback if retention is enabled, and deleted otherwise.
+     * 
+     * @param stagingDirectory The staging tree for the deployment <i>(must not be null)</i>.
+     * @param storeDirectory   The live path <i>(must not be null)</i>.
+     * @param ticket           The deployment ticket <i>(must not be null, empty or blank)</i>.
+     * @param version          The version being deployed.
+     * @param previousVersion  The version being replaced.
+     */
+    private void swapIn(final File stagingDirectory, final File storeDirectory, final String ticket, final int version, final int previousVersion)
+    {
+        File versionTree = new File(getVersionsDirectory(storeDirectory), String.valueOf(version) + "." + ticket);
+        
+        mkdirs(versionTree.getParentFile());
+        FileSystemUtils.move(stagingDirectory, versionTree);
+        
+        File previousTree = repoint(versionTree, storeDirectory, ticket);
+        
+        if (previousTree != null)
+        {
+            if (retainedVersions > 0)
+            {
+                retain(previousTree, storeDirectory, previousVersion);
+            }
+            else
+            {
+                discard(previousTree, storeDirectory);
+            }
+        }
+    }
+    
+    
+    /**
+     * Makes the given version tree the live tree.  If symbolic links are available the live path is atomically
+     * repointed at it, and the version tree stays where it is.  Otherwise the live directory is renamed out of the way
+     * and the version tree renamed into its place.
+     * 
+     * @param versionTree    The tree to make live - must be in the store's versions directory <i>(must not be null)</i>.
+     * @param storeDirectory The live path <i>(must not be null)</i>.
+     * @param uniquifier     A string that makes temporary names unique <i>(must not be null, empty or blank)</i>.
+     * @return The tree that was previously live <i>(will be null if there wasn't one)</i>.
+     */
+    private File repoint(final File versionTree, final File storeDirectory, final String uniquifier)
+    {
+        File targetDirectory = storeDirectory.getParentFile();
+        File result          = null;
+        
+        if (FileSystemUtils.supportsLinks())
+        {
+            String versionsPath = VERSIONS_DIRECTORY + File.separator + storeDirectory.getName();
+            File   newLink      = new File(targetDirectory, "." + storeDirectory.getName() + "." + uniquifier);
+            
+            if (FileSystemUtils.createSymbolicLink(newLink, new File(versionsPath, versionTree.getName())))
+            {
+                if (FileSystemUtils.isSymbolicLink(storeDirectory))
+                {
+                    result = FileSystemUtils.readSymbolicLink(storeDirectory);
+                }
+                else if (storeDirectory.exists())
+                {
+                    // First deployment since symbolic links became available - move the plain live directory aside (once)
+                    result = new File(versionTree.getParentFile(), PREVIOUS_PREFIX + uniquifier);
+                    FileSystemUtils.move(storeDirectory, result);
+                }
+                
+                FileSystemUtils.move(newLink, storeDirectory);
+            }
+            else
+            {
+                // Filesystem doesn't support symbolic links - fall back to swapping directories
+                result = swapDirectories(versionTree, storeDirectory, uniquifier);
+            }
+        }
+        else
+        {
+            result = swapDirectories(versionTree, storeDirectory, uniquifier);
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * Keeps a superseded live tree in the store's versions directory, under the version it held.
+     */
+    private void retain(final File previousTree, final File storeDirectory, final int previousVersion)
+    {
+        if (previousTree.getName().startsWith(PREVIOUS_PREFIX))
+        {
+            File versionTree = new File(previousTree.getParentFile(),
+                                        String.valueOf(previousVersion) + "." + previousTree.getName().substring(PREVIOUS_PREFIX.length()));
+            FileSystemUtils.move(previousTree, versionTree);
+        }
+    }
+    
+    
+    /**
+     * Discards all but the most recent <code>retainedVersions</code> version trees (and index snapshots) of the store.
+     */
+    private void pruneVersions(final File storeDirectory, final File storeMetaDirectory)
+    {
+        File   liveTree     = getLiveTree(storeDirectory);
+        File[] versionTrees = getVersionsDirectory(storeDirectory).listFiles();
+        
+        if (versionTrees != null)
+        {
+            List<File> candidates = new ArrayList<File>();
+            
+            for (final File versionTree : versionTrees)
+            {
+                if (!versionTree.equals(liveTree))
+                {
+                    candidates.add(versionTree);
+                }
+            }
+            
+            // Most recent first
+            Collections.sort(candidates, new Comparator<File>()
+            {
+                public int compare(final File left, final File right)
+                {
+                    int leftVersion  = getTreeVersion(left);
+                    int rightVersion = getTreeVersion(right);
+                    
+                    return(leftVersion == rightVersion ? 0 : (leftVersion > rightVersion ? -1 : 1));
+                }
+            });
+            
+            for (int i = Math.max(retainedVersions, 0); i < candidates.size(); i++)
+            {
+                File doomed        = candidates.get(i);
+                int  doomedVersion = getTreeVersion(doomed);
+                
+                discard(doomed, storeDirectory);
+                
+                if (doomedVersion >= 0 && getVersionTree(storeDirectory, doomedVersion) == null)
+                {
+                    getSnapshotFile(storeMetaDirectory, doomedVersion).delete();
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Finds the most recent retained tree for the given version of a store.
+     */
+    private File getVersionTree(final File storeDirectory, final int version)
+    {
+        File   liveTree     = getLiveTree(storeDirectory);
+        File   result       = null;
+        File[] versionTrees = getVersionsDirectory(storeDirectory).listFiles();
+        
+        if (versionTrees != null)
+        {
+            for (final File versionTree : versionTrees)
+            {
+                if (getTreeVersion(versionTree) == version &&
+                    !versionTree.equals(liveTree) &&
+                    (result == null || versionTree.lastModified() > result.lastModified()))
+                {
+                    result = versionTree;
+                }
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @return The version tree the live path currently points at <i>(will be null if the live path isn't a symbolic link)</i>.
+     */
+    private File getLiveTree(final File storeDirectory)
+    {
+        File result = FileSystemUtils.readSymbolicLink(storeDirectory);
+        
+        if (result != null)
+        {
+            result = new File(getVersionsDirectory(storeDirectory), result.getName());
+        }
+        
+        return(result);
+    }
+    
+    
+    private File getVersionsDirectory(final File storeDirectory)
+    {
+        return(new File(new File(storeDirectory.getParentFile(), VERSIONS_DIRECTORY), storeDirectory.getName()));
+    }
+    
+    
+    private File getSnapshotFile(final File storeMetaDirectory, final int version)
+    {
+        return(new File(new File(storeMetaDirectory, SNAPSHOTS_DIRECTORY), String.valueOf(version) + SNAPSHOT_SUFFIX));
+    }
+    
+    
+    /**
+     * @return The version encoded in a version tree's name <i>(will be -1 if it doesn't have one)</i>.
+     */
+    private int getTreeVersion(final File versionTree)
+    {
+        int    result = -1;
+        String name   = versionTree.getName();
+        int    dot    = name.indexOf('.');
+        
+        if (dot > 0)
+        {
+            try
+            {
+                result = Integer.parseInt(name.substring(0, dot));
+            }
+            catch (final NumberFormatException nfe)
+            {
+                result = -1;
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * Deletes a tree belonging to the given store, either immediately or via the trash, depending on the delete mode.
+     */
+    private void discard(final File tree, final File storeDirectory)
+    {
+        if (trashPurger != null)
+        {
+            trashPurger.trash(tree, getTrashDirectory(storeDirectory));
+        }
+        else
+        {
+            FileSystemUtils.deleteRecursively(tree);
+        }
+    }
+    
+    
+    private File getTrashDirectory(final File storeDirectory)
+    {
+        return(new File(new File(storeDirectory.getParentFile(), TRASH_DIRECTORY), storeDirectory.getName()));
+    }
+    
+    
+    /**
+     * Queues anything left in the trash by a previous run for purging.
+     */
+    private void recoverTrash()
+    {
+        File[] targetDirectories = baseDirectory.listFiles();
+        
+        if (targetDirectories != null)
+        {
+            for (final File targetDirectory : targetDirectories)
+            {
+                File[] trashDirectories = new File(targetDirectory, TRASH_DIRECTORY).listFiles();
+                
+                if (trashDirectories != null)
+                {
+                    for (final File trashDirectory : trashDirectories)
+                    {
+                        trashPurger.recover(trashDirectory);
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Discards the staging trees left behind by deployments that were in progress when a previous run crashed or was
+     * killed - no deployment survives a restart, so anything under a staging directory at startup is garbage.
+     */
+    private void recoverStaging()
+    {
+        File[] targetDirectories = baseDirectory.listFiles();
+        
+        if (targetDirectories != null)
+        {
+            for (final File targetDirectory : targetDirectories)
+            {
+                File[] stagingDirectories = new File(targetDirectory, STAGING_DIRECTORY).listFiles();
+                
+                if (stagingDirectories != null)
+                {
+                    for (final File stagingDirectory : stagingDirectories)
+                    {
+                        File[] leftovers = stagingDirectory.listFiles();
+                        
+                        if (leftovers != null && leftovers.length > 0)
+                        {
+                            File storeDirectory = new File(targetDirectory, stagingDirectory.getName());
+                            
+                            log.info("Discarding " + leftovers.length + " staging tree(s) left in '" + getPath(stagingDirectory) + "' by a previous run.");
+                            
+                            for (final File leftover : leftovers)
+                            {
+                                discard(leftover, storeDirectory);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    private File swapDirectories(final File newTree, final File storeDirectory, final String uniquifier)
+    {
+        File previousTree = null;
+        
+        if (storeDirectory.exists())
+        {
+            previousTree = new File(newTree.getParentFile(), PREVIOUS_PREFIX + uniquifier);
+            FileSystemUtils.move(storeDirectory, previousTree);
+        }
+        
+        FileSystemUtils.move(newTree, storeDirectory);
+        
+        return(previousTree);
+    }
+
+    
+    private void mkdirs(final File newDirectory)
+    {
+        if (!newDirectory.exists())
+        {
+            if (!newDirectory.mkdirs())
+            {
+                throw new DeploymentException("Unable to create non-existent directory '" + getPath(newDirectory) + "'.");
+            }
+        }
     }
     
-    private int getVersion(final String ticket)
+    private String getPath(final File file)
+    {
+        String result = null;
+        
+        try
+        {
+            result = file.getCanonicalPath();
+        }
+        catch (IOException ioe)
+        {
+            result = file.getAbsolutePath();
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @param ticket The deployment ticket <i>(must not be null, empty or blank)</i>.
+     * @return The deployment's session <i>(will not be null)</i>.
+     * @throws DeploymentException If there's no such deployment in progress.
+     */
+    private Session getSession(final String ticket)
+        throws DeploymentException
+    {
+        Session result = deployments.get(ticket);
+        
+        if (result == null)
+        {
+            throw new DeploymentException("No deployment with ticket " + ticket + " is in progress.");
+        }
+        
+        result.touch();
+        return(result);
+    }
+    
+    
+    /**
+     * The transient state of a deployment to this target.
+     */
+    private final static class Session
+        extends DeploymentSession
     {
-        return((Integer)deployments.get(ticket).get("version"));
+        private final File                      baseDirectory;
+        private final File                      stagingDirectory;
+        private final File                      metaDirectory;
+        private final PathIndex                 index;
+        private final WriteBehindPipeline.Batch writeBatch;
+        private final ChangeManifest            manifest;
+        private final Precompressor.Batch       compressionBatch;
+        
+        
+        private Session(final String                    ticket,
+                        final String                    target,
+                        final String                    store,
+                        final int                       version,
+                        final File                      baseDirectory,
+                        final File                      stagingDirectory,
+                        final File                      metaDirectory,
+                        final PathIndex                 index,
+                        final WriteBehindPipeline.Batch writeBatch,
+                        final ChangeManifest            manifest,
+                        final Precompressor.Batch       compressionBatch)
+        {
+            super(ticket, target, store, version);
+            
+            this.baseDirectory    = baseDirectory;
+            this.stagingDirectory = stagingDirectory;
+            this.metaDirectory    = metaDirectory;
+            this.index            = index;
+            this.writeBatch       = writeBatch;
+            this.manifest         = manifest;
+            this.compressionBatch = compressionBatch;
+        }
+        
+        
+        File getBaseDirectory()
+        {
+            return(baseDirectory);
+        }
+        
+        
+        File getStagingDirectory()
+        {
+            return(stagingDirectory);
+        }
+        
+        
+        File getMetaDirectory()
+        {
+            return(metaDirectory);
+        }
+        
+        
+        PathIndex getIndex()
+        {
+            return(index);
+        }
+        
+        
+        WriteBehindPipeline.Batch getWriteBatch()
+        {
+            return(writeBatch);
+        }
+        
+        
+        ChangeManifest getManifest()
+        {
+            return(manifest);
+        }
+        
+        
+        /**
+         * @return The deployment's precompression batch <i>(will be null if precompression is disabled)</i>.
+         */
+        Precompressor.Batch getCompressionBatch()
+        {
+            return(compressionBatch);
+        }
     }
     
 }
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Aborts deployments that have been left idle (typically because the authoring side died between <code>begin</code>
+ * and <code>commit</code> or <code>abort</code>) for longer than their timeout, so that their transient state doesn't
+ * leak.
+ *
+ * Sessions are kept in a hashed timing wheel: a ring of buckets, each holding the sessions due to be looked at when a
+ * single background thread's tick reaches it.  Registering or cancelling a session is a constant time bucket insert
+ * or removal, and {@link DeploymentSession#touch()} is just a timestamp write - a session that's been touched since it
+ * was scheduled is simply rescheduled (from its last activity) when its bucket comes round, rather than being moved on
+ * every touch.  Each tick only looks at one bucket, however many sessions are registered.
+ *
+ * Sessions that are being committed when they come due are left alone (and rescheduled), as are sessions that have
+ * already finished.  Every reaped session is logged, and counted (see {@link #getSessionsReaped()}).
+ *
+ * @version $Id$
+ */
+public class SessionExpiryService
+{
+    private final static Log log = LogFactory.getLog(SessionExpiryService.class);
+
+    public final static long DEFAULT_TICK_MILLIS = 1000;
+    public final static int  DEFAULT_WHEEL_SIZE  = 512;
+
+    private static SessionExpiryService defaultInstance      = null;
+    private static int                  defaultInstanceUsers = 0;
+
+    private final long                                           tickMillis;
+    private final List<Set<Registration>>                        wheel;
+    private final ConcurrentMap<DeploymentSession, Registration> registrations = new ConcurrentHashMap<DeploymentSession, Registration>();
+    private final Thread                                         ticker;
+
+    private volatile long    currentTick = 0;
+    private volatile boolean running     = true;
+
+    // Metrics
+    private final AtomicLong sessionsRegistered = new AtomicLong();
+    private final AtomicLong sessionsReaped     = new AtomicLong();
+    private final AtomicLong failures           = new AtomicLong();
+
+
+    /**
+     * The callback that actually aborts an expired session.
+     */
+    public interface Reaper
+    {
+        /**
+         * Aborts the given (expired) session.  The session counts as reaped if it's <code>ABORTED</code> once this returns.
+         *
+         * @param session The expired session <i>(will not be null)</i>.
+         */
+        void reap(DeploymentSession session);
+    }
+
+
+
+    /**
+     * @param tickMillis The resolution of the wheel, in milliseconds - sessions are reaped up to this late.
+     * @param wheelSize  The number of buckets in the wheel.
+     */
+    public SessionExpiryService(final long tickMillis, final int wheelSize)
+    {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.wheel      = new ArrayList<Set<Registration>>(Math.max(1, wheelSize));
+
+        for (int i = 0; i < Math.max(1, wheelSize); i++)
+        {
+            wheel.add(Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>()));
+        }
+
+        ticker = new Thread(new Runnable() {
+            public void run()
+            {
+                tick();
+            }
+        }, "SessionExpiryService");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+
+    /**
+     * Each call must be matched by a call to {@link #releaseDefaultInstance()} once the caller is done with the service.
+     *
+     * @return The service shared by every DeploymentTarget that isn't given its own <i>(will not be null)</i>.
+     */
+    public static synchronized SessionExpiryService getDefaultInstance()
+    {
+        if (defaultInstance == null)
+        {
+            defaultInstance = new SessionExpiryService(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+        }
+
+        defaultInstanceUsers++;
+        return(defaultInstance);
+    }
+
+
+    /**
+     * Releases the shared service obtained from {@link #getDefaultInstance()}.  The service is shut down once its last
+     * user has released it (a later {@link #getDefaultInstance()} starts a new one).
+     */
+    public static synchronized void releaseDefaultInstance()
+    {
+        if (defaultInstance != null && --defaultInstanceUsers <= 0)
+        {
+            defaultInstance.shutdown();
+            defaultInstance      = null;
+            defaultInstanceUsers = 0;
+        }
+    }
+
+
+    /**
+     * Starts watching a session.  The session is reaped once it's been idle (see {@link DeploymentSession#touch()}) for
+     * longer than the timeout.
+     *
+     * @param session       The session to watch <i>(must not be null)</i>.
+     * @param timeoutMillis How long the session may be idle, in milliseconds (0 or less never expires it).
+     * @param reaper        The callback that aborts the session <i>(must not be null)</i>.
+     */
+    public void register(final DeploymentSession session, final long timeoutMillis, final Reaper reaper)
+    {
+        if (timeoutMillis > 0)
+        {
+            Registration registration = new Registration(session, timeoutMillis, reaper);
+
+            session.touch();
+
+            if (registrations.putIfAbsent(session, registration) == null)
+            {
+                schedule(registration, session.getLastActivity() + timeoutMillis);
+                sessionsRegistered.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Stops watching a session (typically because it's been committed or aborted).  Does nothing if the session isn't
+     * registered.
+     *
+     * @param session The session <i>(must not be null)</i>.
+     */
+    public void cancel(final DeploymentSession session)
+    {
+        Registration registration = registrations.remove(session);
+
+        if (registration != null)
+        {
+            synchronized(registration)
+            {
+                registration.cancelled = true;
+                wheel.get(registration.bucket).remove(registration);
+            }
+        }
+    }
+
+
+    /**
+     * Stops the background thread.  Registered sessions will no longer expire.
+     */
+    public void shutdown()
+    {
+        running = false;
+        ticker.interrupt();
+    }
+
+
+    /**
+     * @return The number of sessions currently being watched.
+     */
+    public int getSessionCount()
+    {
+        return(registrations.size());
+    }
+
+
+    /**
+     * @return The number of sessions that have been registered.
+     */
+    public long getSessionsRegistered()
+    {
+        return(sessionsRegistered.get());
+    }
+
+
+    /**
+     * @return The number of expired sessions that have been aborted.
+     */
+    public long getSessionsReaped()
+    {
+        return(sessionsReaped.get());
+    }
+
+
+    /**
+     * @return The number of expired sessions that couldn't be aborted.
+     */
+    public long getFailures()
+    {
+        return(failures.get());
+    }
+
+
+    private void schedule(final Registration registration, final long deadline)
+    {
+        long ticks = Math.max(1, (deadline - System.currentTimeMillis() + tickMillis - 1) / tickMillis);
+
+        synchronized(registration)
+        {
+            if (!registration.cancelled)
+            {
+                registration.deadlineTick = currentTick + ticks;
+                registration.bucket       = (int)(registration.deadlineTick % wheel.size());
+                wheel.get(registration.bucket).add(registration);
+            }
+        }
+    }
+
+
+    private void tick()
+    {
+        long start = System.currentTimeMillis();
+
+        while (running)
+        {
+            try
+            {
+                long next = start + (currentTick + 1) * tickMillis;
+                long now  = System.currentTimeMillis();
+
+                if (next > now)
+                {
+                    Thread.sleep(next - now);
+                }
+
+                currentTick++;
+                expire(wheel.get((int)(currentTick % wheel.size())));
+            }
+            catch (final InterruptedException ie)
+            {
+                if (running)
+                {
+                    log.warn("Session expiry thread interrupted while running.", ie);
+                }
+
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (final RuntimeException re)
+            {
+                log.error("Unexpected exception while expiring sessions.", re);
+            }
+        }
+    }
+
+
+    private void expire(final Set<Registration> bucket)
+    {
+        List<Registration> due = new ArrayList<Registration>();
+
+        // Sessions in later rounds of the wheel stay where they are
+        for (final Registration registration : bucket)
+        {
+            if (registration.deadlineTick <= currentTick && bucket.remove(registration))
+            {
+                due.add(registration);
+            }
+        }
+
+        for (final Registration registration : due)
+        {
+            DeploymentSession session  = registration.session;
+            long              deadline = session.getLastActivity() + registration.timeoutMillis;
+
+            if (session.isFinished())
+            {
+                registrations.remove(session, registration);
+            }
+            else if (deadline > System.currentTimeMillis() ||
+                     session.getState() == DeploymentSession.State.COMMITTING)
+            {
+                // Touched since it was scheduled (or busy committing) - look again once it could next have expired
+                schedule(registration, Math.max(deadline, System.currentTimeMillis() + registration.timeoutMillis / 2));
+            }
+            else
+            {
+                reap(registration);
+            }
+        }
+    }
+
+
+    private void reap(final Registration registration)
+    {
+        DeploymentSession session = registration.session;
+        long              idle    = System.currentTimeMillis() - session.getLastActivity();
+
+        log.warn("Aborting deployment " + session + " - it has been idle for " + idle + "ms (timeout is " + registration.timeoutMillis + "ms).");
+
+        try
+        {
+            registration.reaper.reap(session);
+        }
+        catch (final RuntimeException re)
+        {
+            log.error("Unable to abort expired deployment " + session + ".", re);
+        }
+
+        if (session.getState() == DeploymentSession.State.ABORTED)
+        {
+            registrations.remove(session, registration);
+            sessionsReaped.incrementAndGet();
+        }
+        else if (!session.isFinished())
+        {
+            // Try again after another timeout
+            failures.incrementAndGet();
+            schedule(registration, System.currentTimeMillis() + registration.timeoutMillis);
+        }
+        else
+        {
+            registrations.remove(session, registration);
+        }
+    }
+
+
+    private final static class Registration
+    {
+        private final DeploymentSession session;
+        private final long              timeoutMillis;
+        private final Reaper            reaper;
+
+        private volatile long deadlineTick = 0;
+        private int           bucket       = 0;
+        private boolean       cancelled    = false;
+
+
+        private Registration(final DeploymentSession session, final long timeoutMillis, final Reaper reaper)
+        {
+            this.session       = session;
+            this.timeoutMillis = timeoutMillis;
+            this.reaper        = reaper;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Wraps the stream returned by a DeploymentTarget's <code>send</code>, touching the deployment's session (see
+ * {@link DeploymentSession#touch()}) as content is written and when the stream is closed, so that a deployment that's
+ * busy streaming a large file isn't mistaken for an idle one by the {@link SessionExpiryService}.
+ *
+ * @version $Id$
+ */
+public class SessionOutputStream
+    extends FilterOutputStream
+{
+    private final DeploymentSession session;
+
+
+
+    /**
+     * @param session The deployment the content belongs to <i>(must not be null)</i>.
+     * @param out     The stream to write the content to <i>(must not be null)</i>.
+     */
+    public SessionOutputStream(final DeploymentSession session, final OutputStream out)
+    {
+        super(out);
+        this.session = session;
+    }
+
+
+    /**
+     * @see java.io.FilterOutputStream#write(int)
+     */
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        session.touch();
+        out.write(b);
+    }
+
+
+    /**
+     * @see java.io.FilterOutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        // FilterOutputStream would otherwise write the array one byte at a time
+        session.touch();
+        out.write(b, off, len);
+    }
+
+
+    /**
+     * @see java.io.FilterOutputStream#close()
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            out.close();
+        }
+        finally
+        {
+            session.touch();
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Content-addressed store of immutable file content ("blobs"), keyed by the SHA-1 of the content.
+ *
+ * Deployed files are hard links to blobs, so identical content is only ever stored once no matter how many versions or
+ * paths refer to it.  Blobs are laid out as <code>root/ab/abcdef...</code> and are never modified once written.  A
+ * blob whose link count has dropped to 1 is referenced only by the store itself, and is removed by
+ * {@link #collectGarbage()}.
+ *
+ * @version $Id$
+ */
+public class BlobStore
+{
+    private final static Log log = LogFactory.getLog(BlobStore.class);
+
+    private final static String DIGEST_ALGORITHM = "SHA-1";
+    private final static String TEMP_DIRECTORY   = "tmp";
+
+    private final File          root;
+    private final File          tempDirectory;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+
+    /**
+     * @param root The root directory of the store - must be on the same filesystem as the deployed trees <i>(must not be null)</i>.
+     */
+    public BlobStore(final File root)
+    {
+        this.root          = root;
+        this.tempDirectory = new File(root, TEMP_DIRECTORY);
+
+        if (!tempDirectory.mkdirs() && !tempDirectory.isDirectory())
+        {
+            throw new DeploymentException("Unable to create blob store directory '" + FileSystemUtils.getPath(tempDirectory) + "'.");
+        }
+    }
+
+
+    /**
+     * Returns a stream that hashes its content while writing it into the store, then links the blob in at
+     * <code>destination</code> when it's closed.
+     *
+     * @param destination The path the content should appear at <i>(must not be null)</i>.
+     * @return The stream <i>(will not be null)</i>.
+     * @throws IOException If the stream can't be opened.
+     */
+    public StagedFileOutputStream newOutputStream(final File destination)
+        throws IOException
+    {
+        return(new BlobOutputStream(destination));
+    }
+
+
+    /**
+     * @param hash The hex encoded SHA-1 of the content <i>(must not be null)</i>.
+     * @return The location of the blob with that hash <i>(will not be null, but the blob may not exist)</i>.
+     */
+    public File getBlob(final String hash)
+    {
+        return(new File(new File(root, hash.substring(0, 2)), hash));
+    }
+
+
+    /**
+     * Removes blobs that are no longer linked into any tree.  Does nothing if link counts aren't available.
+     *
+     * @return The number of blobs removed.
+     */
+    public int collectGarbage()
+    {
+        int      result  = 0;
+        File[]   fanouts = root.listFiles();
+
+        if (fanouts != null)
+        {
+            for (final File fanout : fanouts)
+            {
+                File[] blobs = fanout.isDirectory() && !TEMP_DIRECTORY.equals(fanout.getName()) ? fanout.listFiles() : null;
+
+                if (blobs != null)
+                {
+                    for (final File blob : blobs)
+                    {
+                        if (FileSystemUtils.getLinkCount(blob) == 1)
+                        {
+                            // Re-check under the write lock, in case a deployment is linking to it right now
+                            lock.writeLock().lock();
+
+                            try
+                            {
+                                if (FileSystemUtils.getLinkCount(blob) == 1 && blob.delete())
+                                {
+                                    result++;
+                                }
+                            }
+                            finally
+                            {
+                                lock.writeLock().unlock();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        log.debug("Removed " + result + " unreferenced blobs from '" + FileSystemUtils.getPath(root) + "'.");
+
+        return(result);
+    }
+
+
+    /**
+     * @return A new content digest <i>(will not be null)</i>.
+     */
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return(MessageDigest.getInstance(DIGEST_ALGORITHM));
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            // Every JVM is required to provide SHA-1, so this "can't happen"
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available.", nsae);
+        }
+    }
+
+
+    /**
+     * Moves a fully written temporary file into the store (unless a blob with the same hash already exists, in which
+     * case it's discarded) then links the blob in at the destination.
+     */
+    private void publish(final File written, final String hash, final File destination)
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            File blob = getBlob(hash);
+
+            if (blob.exists())
+            {
+                written.delete();
+            }
+            else
+            {
+                File fanout = blob.getParentFile();
+
+                if (!fanout.mkdirs() && !fanout.isDirectory())
+                {
+                    throw new DeploymentException("Unable to create blob store directory '" + FileSystemUtils.getPath(fanout) + "'.");
+                }
+
+                try
+                {
+                    FileSystemUtils.move(written, blob);
+                }
+                catch (final DeploymentException de)
+                {
+                    // Another deployment may have stored the same content concurrently
+                    if (!blob.exists())
+                    {
+                        throw de;
+                    }
+
+                    written.delete();
+                }
+            }
+
+            link(blob, destination);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private void link(final File blob, final File destination)
+    {
+        File newLink = new File(destination.getParentFile(), "." + destination.getName() + "." + System.nanoTime() + ".link");
+
+        if (!FileSystemUtils.createLink(newLink, blob))
+        {
+            // Hard links not available here, so take a copy instead (loses the de-duplication, but still works)
+            FileSystemUtils.copyFile(blob, newLink);
+        }
+
+        FileSystemUtils.move(newLink, destination);
+    }
+
+
+
+    /**
+     * Stream that writes into the store's temporary directory, hashing as it goes.
+     */
+    private class BlobOutputStream
+        extends StagedFileOutputStream
+    {
+        private BlobOutputStream(final File destination)
+            throws IOException
+        {
+            super(destination, tempDirectory, newDigest());
+        }
+
+
+        /**
+         * @see org.alfresco.extension.wcmdeployment.filesystem.StagedFileOutputStream#publish(java.io.File, java.io.File)
+         */
+        @Override
+        protected void publish(final File written, final File target)
+            throws IOException, DeploymentException
+        {
+            BlobStore.this.publish(written, getHash(), target);
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.alfresco.deployment.FileType;
+import org.alfresco.deployment.impl.DeploymentException;
+
+
+/**
+ * Records the paths touched by a single deployment, and writes them out at commit time as a manifest of what actually
+ * changed, so that downstream caches (CDNs, reverse proxies etc.) can invalidate exactly those paths.
+ *
+ * A manifest is a UTF-8 text file with a header line, followed by one line per changed path, sorted so that parents
+ * come before their children:
+ * <pre>
+ * #manifest 1 &lt;target/store&gt; &lt;version&gt; &lt;commit time in millis&gt;
+ * &lt;A|M|D&gt; &lt;F|D&gt; &lt;size&gt; &lt;hash&gt; &lt;path&gt;
+ * </pre>
+ * Fields are tab separated, and the path is always the last field.  The size is -1 and the hash is <code>-</code>
+ * where they're not known (e.g. directories, deleted paths, or hashing disabled).  Deleting a directory lists every
+ * path that was below it.  Paths that were added and deleted again within the same deployment aren't listed.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class ChangeManifest
+{
+    private final static int    FORMAT_VERSION = 1;
+    private final static String HEADER         = "#manifest";
+    private final static String ENCODING       = "UTF-8";
+    private final static String NONE           = "-";
+
+    // Sorted, so that a parent (a prefix of its children's paths) is always resolved before its children
+    private final Set<String> touched = new TreeSet<String>();
+
+
+
+    /**
+     * @param path The path that was written, created or deleted <i>(must not be null)</i>.
+     */
+    public synchronized void touch(final String path)
+    {
+        touched.add(PathIndex.normalise(path));
+    }
+
+
+    /**
+     * @return The number of distinct paths touched so far.
+     */
+    public synchronized int size()
+    {
+        return(touched.size());
+    }
+
+
+    /**
+     * Works out what actually changed between two versions of the tree, and atomically writes (or replaces) the
+     * manifest file.
+     *
+     * @param file    The manifest file to write <i>(must not be null)</i>.
+     * @param key     The target/store being deployed to <i>(must not be null)</i>.
+     * @param version The version being committed.
+     * @param before  The index of the live tree <i>(must not be null)</i>.
+     * @param after   The index of the tree being committed <i>(must not be null)</i>.
+     * @return The number of changed paths in the manifest.
+     * @throws DeploymentException If the manifest couldn't be written.
+     */
+    public int write(final File file, final String key, final int version, final PathIndex before, final PathIndex after)
+        throws DeploymentException
+    {
+        List<String> lines    = resolve(before, after);
+        File         tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer       out      = null;
+
+        try
+        {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), ENCODING), 64 * 1024);
+
+            out.write(HEADER + "\t" + FORMAT_VERSION + "\t" + key + "\t" + version + "\t" + System.currentTimeMillis() + "\n");
+
+            for (final String line : lines)
+            {
+                out.write(line);
+                out.write('\n');
+            }
+
+            out.close();
+            out = null;
+
+            FileSystemUtils.move(tempFile, file);
+        }
+        catch (final IOException ioe)
+        {
+            tempFile.delete();
+            throw new DeploymentException("Unable to write change manifest '" + FileSystemUtils.getPath(file) + "'.", ioe);
+        }
+        finally
+        {
+            FileSystemUtils.closeQuietly(out);
+        }
+
+        return(lines.size());
+    }
+
+
+    private synchronized List<String> resolve(final PathIndex before, final PathIndex after)
+    {
+        List<String> result  = new ArrayList<String>(touched.size());
+        Set<String>  written = new LinkedHashSet<String>();
+
+        for (final String path : touched)
+        {
+            PathIndex.Entry oldEntry = before.get(path);
+            PathIndex.Entry newEntry = after.get(path);
+
+            if (newEntry == null)
+            {
+                if (oldEntry != null)
+                {
+                    addLine(result, written, 'D', path, oldEntry, null);
+
+                    for (final String descendant : before.getDescendants(path))
+                    {
+                        if (after.get(descendant) == null)
+                        {
+                            addLine(result, written, 'D', descendant, before.get(descendant), null);
+                        }
+                    }
+                }
+            }
+            else if (oldEntry == null || oldEntry.getType() != newEntry.getType())
+            {
+                addLine(result, written, 'A', path, newEntry, newEntry);
+            }
+            else if (newEntry.getType() == FileType.FILE && !sameContent(oldEntry, newEntry))
+            {
+                addLine(result, written, 'M', path, newEntry, newEntry);
+            }
+        }
+
+        return(result);
+    }
+
+
+    private static void addLine(final List<String>    lines,
+                                final Set<String>     written,
+                                final char            change,
+                                final String          path,
+                                final PathIndex.Entry entry,
+                                final PathIndex.Entry content)
+    {
+        if (written.add(path))
+        {
+            StringBuilder line = new StringBuilder(path.length() + 64);
+
+            line.append(change).append('\t');
+            line.append(entry != null && entry.getType() == FileType.DIR ? 'D' : 'F').append('\t');
+            line.append(content == null || content.getType() == FileType.DIR ? -1 : content.getSize()).append('\t');
+            line.append(content == null || content.getHash() == null ? NONE : content.getHash()).append('\t');
+            line.append(path);
+
+            lines.add(line.toString());
+        }
+    }
+
+
+    /**
+     * @return True only if both entries are known to have the same content (i.e. they have the same hash).
+     */
+    private static boolean sameContent(final PathIndex.Entry oldEntry, final PathIndex.Entry newEntry)
+    {
+        return(oldEntry.getHash() != null && oldEntry.getHash().equals(newEntry.getHash()));
+    }
+
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Static filesystem helpers used by the filesystem deployment target.
+ *
+ * We still compile for Java 6, so hard links, symbolic links and atomic moves (all of which are only available via
+ * <code>java.nio.file</code> in Java 7+) are accessed reflectively.  When running on Java 6 those operations report
+ * that they're unsupported and callers fall back to plain copies and <code>File.renameTo</code>.
+ *
+ * @version $Id$
+ */
+public final class FileSystemUtils
+{
+    private final static Log log = LogFactory.getLog(FileSystemUtils.class);
+
+    private final static int    COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+    private final static char[] HEX_DIGITS      = "0123456789abcdef".toCharArray();
+
+    private final static Method TO_PATH;
+    private final static Method PATH_TO_FILE;
+    private final static Method CREATE_LINK;
+    private final static Method CREATE_SYMBOLIC_LINK;
+    private final static Method IS_SYMBOLIC_LINK;
+    private final static Method READ_SYMBOLIC_LINK;
+    private final static Method MOVE;
+    private final static Method GET_ATTRIBUTE;
+    private final static Object NO_FILE_ATTRIBUTES;
+    private final static Object ATOMIC_MOVE_OPTIONS;
+    private final static Object NO_LINK_OPTIONS;
+
+    static
+    {
+        Method toPath             = null;
+        Method pathToFile         = null;
+        Method createLink         = null;
+        Method createSymbolicLink = null;
+        Method isSymbolicLink     = null;
+        Method readSymbolicLink   = null;
+        Method move               = null;
+        Method getAttribute       = null;
+        Object noFileAttributes   = null;
+        Object atomicMoveOptions  = null;
+        Object noLinkOptions      = null;
+
+        try
+        {
+            Class<?> filesClass          = Class.forName("java.nio.file.Files");
+            Class<?> pathClass           = Class.forName("java.nio.file.Path");
+            Class<?> fileAttributeClass  = Class.forName("java.nio.file.attribute.FileAttribute");
+            Class<?> copyOptionClass     = Class.forName("java.nio.file.CopyOption");
+            Class<?> standardOptionClass = Class.forName("java.nio.file.StandardCopyOption");
+            Class<?> linkOptionClass     = Class.forName("java.nio.file.LinkOption");
+
+            noFileAttributes  = Array.newInstance(fileAttributeClass, 0);
+            atomicMoveOptions = Array.newInstance(copyOptionClass, 1);
+            Array.set(atomicMoveOptions, 0, standardOptionClass.getField("ATOMIC_MOVE").get(null));
+            noLinkOptions     = Array.newInstance(linkOptionClass, 0);
+
+            toPath             = File.class.getMethod("toPath");
+            pathToFile         = pathClass.getMethod("toFile");
+            createLink         = filesClass.getMethod("createLink", pathClass, pathClass);
+            createSymbolicLink = filesClass.getMethod("createSymbolicLink", pathClass, pathClass, noFileAttributes.getClass());
+            isSymbolicLink     = filesClass.getMethod("isSymbolicLink", pathClass);
+            readSymbolicLink   = filesClass.getMethod("readSymbolicLink", pathClass);
+            move               = filesClass.getMethod("move", pathClass, pathClass, atomicMoveOptions.getClass());
+            getAttribute       = filesClass.getMethod("getAttribute", pathClass, String.class, noLinkOptions.getClass());
+        }
+        catch (final Exception e)
+        {
+            log.info("java.nio.file is not available - hard links, symbolic links and atomic moves are disabled.");
+            toPath = null;
+        }
+
+        TO_PATH              = toPath;
+        PATH_TO_FILE         = pathToFile;
+        CREATE_LINK          = createLink;
+        CREATE_SYMBOLIC_LINK = createSymbolicLink;
+        IS_SYMBOLIC_LINK     = isSymbolicLink;
+        READ_SYMBOLIC_LINK   = readSymbolicLink;
+        MOVE                 = move;
+        GET_ATTRIBUTE        = getAttribute;
+        NO_FILE_ATTRIBUTES   = noFileAttributes;
+        ATOMIC_MOVE_OPTIONS  = atomicMoveOptions;
+        NO_LINK_OPTIONS      = noLinkOptions;
+    }
+
+
+
+    private FileSystemUtils()
+    {
+    }
+
+
+    /**
+     * @return True if hard and symbolic links are supported by this JVM (they may still fail on a given filesystem).
+     */
+    public static boolean supportsLinks()
+    {
+        return(TO_PATH != null);
+    }
+
+
+    /**
+     * Creates a hard link.
+     *
+     * @param link     The new link to create <i>(must not be null, and must not exist)</i>.
+     * @param existing The existing file to link to <i>(must not be null)</i>.
+     * @return True if the link was created, false if hard links aren't supported here.
+     */
+    public static boolean createLink(final File link, final File existing)
+    {
+        boolean result = false;
+
+        if (supportsLinks())
+        {
+            try
+            {
+                CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+                result = true;
+            }
+            catch (final InvocationTargetException ite)
+            {
+                log.debug("Unable to hard link '" + getPath(link) + "' to '" + getPath(existing) + "'.", ite.getCause());
+            }
+            catch (final IllegalAccessException iae)
+            {
+                log.debug("Unable to hard link '" + getPath(link) + "' to '" + getPath(existing) + "'.", iae);
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Creates a symbolic link.
+     *
+     * @param link   The new link to create <i>(must not be null, and must not exist)</i>.
+     * @param target The target of the link, interpreted relative to the link's directory if it isn't absolute <i>(must not be null)</i>.
+     * @return True if the link was created, false if symbolic links aren't supported here.
+     */
+    public static boolean createSymbolicLink(final File link, final File target)
+    {
+        boolean result = false;
+
+        if (supportsLinks())
+        {
+            try
+            {
+                CREATE_SYMBOLIC_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(target), NO_FILE_ATTRIBUTES);
+                result = true;
+            }
+            catch (final InvocationTargetException ite)
+            {
+                log.debug("Unable to symlink '" + getPath(link) + "' to '" + target.getPath() + "'.", ite.getCause());
+            }
+            catch (final IllegalAccessException iae)
+            {
+                log.debug("Unable to symlink '" + getPath(link) + "' to '" + target.getPath() + "'.", iae);
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param file The file to check <i>(must not be null)</i>.
+     * @return True if the file is a symbolic link.
+     */
+    public static boolean isSymbolicLink(final File file)
+    {
+        boolean result = false;
+
+        if (supportsLinks())
+        {
+            try
+            {
+                result = ((Boolean)IS_SYMBOLIC_LINK.invoke(null, TO_PATH.invoke(file))).booleanValue();
+            }
+            catch (final Exception e)
+            {
+                result = false;
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param link The symbolic link to read <i>(must not be null)</i>.
+     * @return The file the link points to, resolved against the link's directory <i>(will be null if the file isn't a link)</i>.
+     */
+    public static File readSymbolicLink(final File link)
+    {
+        File result = null;
+
+        if (isSymbolicLink(link))
+        {
+            try
+            {
+                result = (File)PATH_TO_FILE.invoke(READ_SYMBOLIC_LINK.invoke(null, TO_PATH.invoke(link)));
+
+                if (!result.isAbsolute())
+                {
+                    result = new File(link.getAbsoluteFile().getParentFile(), result.getPath());
+                }
+            }
+            catch (final Exception e)
+            {
+                log.debug("Unable to read symbolic link '" + getPath(link) + "'.", e);
+                result = null;
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param file The file to check <i>(must not be null)</i>.
+     * @return The number of hard links to the file, or -1 if that can't be determined on this JVM or filesystem.
+     */
+    public static int getLinkCount(final File file)
+    {
+        int result = -1;
+
+        if (supportsLinks())
+        {
+            try
+            {
+                result = ((Number)GET_ATTRIBUTE.invoke(null, TO_PATH.invoke(file), "unix:nlink", NO_LINK_OPTIONS)).intValue();
+            }
+            catch (final Exception e)
+            {
+                result = -1;
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Moves (renames) a file or directory, atomically replacing the destination if the platform allows it.  Falls back
+     * to <code>File.renameTo</code> (which may not replace an existing destination) on Java 6.
+     *
+     * @param source      The file to move <i>(must not be null)</i>.
+     * @param destination The new name <i>(must not be null)</i>.
+     * @throws DeploymentException If the move could not be made.
+     */
+    public static void move(final File source, final File destination)
+        throws DeploymentException
+    {
+        boolean moved = false;
+
+        if (supportsLinks())
+        {
+            try
+            {
+                MOVE.invoke(null, TO_PATH.invoke(source), TO_PATH.invoke(destination), ATOMIC_MOVE_OPTIONS);
+                moved = true;
+            }
+            catch (final Exception e)
+            {
+                log.debug("Atomic move of '" + getPath(source) + "' to '" + getPath(destination) + "' failed, falling back to File.renameTo.", e);
+            }
+        }
+
+        if (!moved)
+        {
+            moved = source.renameTo(destination);
+
+            // Windows won't rename over an existing file
+            if (!moved && destination.isFile() && source.isFile())
+            {
+                moved = destination.delete() && source.renameTo(destination);
+            }
+        }
+
+        if (!moved)
+        {
+            throw new DeploymentException("Unable to move '" + getPath(source) + "' to '" + getPath(destination) + "'.");
+        }
+    }
+
+
+    /**
+     * Makes <code>destination</code> a copy of the tree rooted at <code>source</code>, hard linking files where possible
+     * and copying them otherwise.  Symbolic links at the root of <code>source</code> are followed.
+     *
+     * Note that this costs at least one link per file in the tree, and a full copy of the content wherever hard links
+     * aren't available (on Java 6, or across filesystems that don't support them).
+     *
+     * @param source      The root of the tree to clone <i>(must not be null)</i>.
+     * @param destination The root of the new tree <i>(must not be null, and must not exist)</i>.
+     * @param allowCopies True if files that can't be hard linked should be copied, false if that's an error.
+     * @return The number of files that were copied rather than linked.
+     * @throws DeploymentException If the tree could not be cloned.
+     */
+    public static int cloneTree(final File source, final File destination, final boolean allowCopies)
+        throws DeploymentException
+    {
+        int result = 0;
+
+        if (!destination.mkdirs() && !destination.isDirectory())
+        {
+            throw new DeploymentException("Unable to create directory '" + getPath(destination) + "'.");
+        }
+
+        File[] children = source.listFiles();
+
+        if (children != null)
+        {
+            for (final File child : children)
+            {
+                File newChild = new File(destination, child.getName());
+
+                if (child.isDirectory())
+                {
+                    result += cloneTree(child, newChild, allowCopies);
+                }
+                else if (!createLink(newChild, child))
+                {
+                    if (!allowCopies)
+                    {
+                        throw new DeploymentException("Unable to hard link '" + getPath(newChild) + "' to '" + getPath(child) + "', and copying is disabled.");
+                    }
+
+                    copyFile(child, newChild);
+                    result++;
+                }
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Copies a file using channel transfers, so that the content doesn't pass through the Java heap.
+     *
+     * @param source      The file to copy <i>(must not be null)</i>.
+     * @param destination The copy <i>(must not be null)</i>.
+     * @throws DeploymentException If the copy could not be made.
+     */
+    public static void copyFile(final File source, final File destination)
+        throws DeploymentException
+    {
+        FileInputStream  in  = null;
+        FileOutputStream out = null;
+
+        try
+        {
+            in  = new FileInputStream(source);
+            out = new FileOutputStream(destination);
+
+            FileChannel inChannel  = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long        size       = inChannel.size();
+            long        position   = 0;
+
+            while (position < size)
+            {
+                position += inChannel.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), outChannel);
+            }
+        }
+        catch (final IOException ioe)
+        {
+            throw new DeploymentException("Unable to copy '" + getPath(source) + "' to '" + getPath(destination) + "'.", ioe);
+        }
+        finally
+        {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+
+    /**
+     * Deletes a file or directory tree.  Symbolic links are deleted, not followed.
+     *
+     * @param file The file or directory to delete <i>(may be null)</i>.
+     * @return True if everything was deleted.
+     */
+    public static boolean deleteRecursively(final File file)
+    {
+        boolean result = true;
+
+        if (file != null)
+        {
+            if (file.isDirectory() && !isSymbolicLink(file))
+            {
+                File[] children = file.listFiles();
+
+                if (children != null)
+                {
+                    for (final File child : children)
+                    {
+                        result &= deleteRecursively(child);
+                    }
+                }
+            }
+
+            if (!file.delete() && (file.exists() || isSymbolicLink(file)))
+            {
+                log.warn("Unable to delete '" + getPath(file) + "'.");
+                result = false;
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param file A file <i>(must not be null)</i>.
+     * @param root A file or directory <i>(must not be null)</i>.
+     * @return True if the file is the root, or is beneath it.  Paths are compared as given - neither is canonicalised.
+     */
+    public static boolean isWithin(final File file, final File root)
+    {
+        boolean result = false;
+        File    parent = file;
+
+        while (!result && parent != null)
+        {
+            result = parent.equals(root);
+            parent = parent.getParentFile();
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param file The file <i>(must not be null)</i>.
+     * @return The canonical path of the file, or the absolute path if it can't be canonicalised.
+     */
+    public static String getPath(final File file)
+    {
+        String result = null;
+
+        try
+        {
+            result = file.getCanonicalPath();
+        }
+        catch (IOException ioe)
+        {
+            result = file.getAbsolutePath();
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param bytes The bytes to encode <i>(must not be null)</i>.
+     * @return The lower case hex encoding of the bytes <i>(will not be null)</i>.
+     */
+    public static String toHex(final byte[] bytes)
+    {
+        char[] result = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            result[i * 2]     = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            result[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+
+        return(new String(result));
+    }
+
+
+    /**
+     * Closes the given stream or channel, swallowing any exceptions.
+     *
+     * @param closeable The thing to close <i>(may be null)</i>.
+     */
+    public static void closeQuietly(final Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch (IOException ioe)
+            {
+                // *Gulp* - if this occurs there's not a lot else we can do but swallow it...
+            }
+        }
+    }
+
+}
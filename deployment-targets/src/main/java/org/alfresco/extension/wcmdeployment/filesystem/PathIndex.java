@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.alfresco.deployment.FileType;
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * In-memory index of a deployed tree, mapping each path to its type, GUID, size and last modified time.  Allows
+ * listings to be answered without touching the filesystem, and (unlike the filesystem) remembers the GUIDs the
+ * authoring side sent, so that unchanged files aren't resent.
+ *
+ * Paths are always absolute within the tree (e.g. <code>/www/avm_webapps/ROOT/index.html</code>); the root of the tree
+ * is <code>/</code>.  Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class PathIndex
+{
+    private final static Log log = LogFactory.getLog(PathIndex.class);
+
+    private final static int MAGIC          = 0x50494458;   // "PIDX"
+    private final static int FORMAT_VERSION = 1;
+    private final static String ROOT        = "/";
+
+    private final Map<String, Entry>             entries;
+    private final Map<String, SortedSet<String>> children;
+
+
+
+    public PathIndex()
+    {
+        this.entries  = new HashMap<String, Entry>();
+        this.children = new HashMap<String, SortedSet<String>>();
+    }
+
+
+    /**
+     * @param source The index to copy <i>(must not be null)</i>.
+     */
+    public PathIndex(final PathIndex source)
+    {
+        synchronized(source)
+        {
+            this.entries  = new HashMap<String, Entry>(source.entries);
+            this.children = new HashMap<String, SortedSet<String>>(source.children.size() * 2);
+
+            for (final Map.Entry<String, SortedSet<String>> child : source.children.entrySet())
+            {
+                this.children.put(child.getKey(), new TreeSet<String>(child.getValue()));
+            }
+        }
+    }
+
+
+    /**
+     * @param path The path to look up <i>(must not be null)</i>.
+     * @return The entry for that path <i>(will be null if the path isn't in the index)</i>.
+     */
+    public synchronized Entry get(final String path)
+    {
+        return(entries.get(normalise(path)));
+    }
+
+
+    /**
+     * Adds or replaces the entry for a path.
+     *
+     * @param path  The path <i>(must not be null)</i>.
+     * @param entry The entry <i>(must not be null)</i>.
+     */
+    public synchronized void put(final String path, final Entry entry)
+    {
+        String normalisedPath = normalise(path);
+
+        entries.put(normalisedPath, entry);
+
+        if (!ROOT.equals(normalisedPath))
+        {
+            String            parentPath = getParentPath(normalisedPath);
+            SortedSet<String> siblings   = children.get(parentPath);
+
+            if (siblings == null)
+            {
+                siblings = new TreeSet<String>();
+                children.put(parentPath, siblings);
+            }
+
+            siblings.add(getName(normalisedPath));
+        }
+    }
+
+
+    /**
+     * Removes a path and (if it's a directory) everything underneath it.
+     *
+     * @param path The path to remove <i>(must not be null)</i>.
+     * @return The entry that was removed <i>(will be null if the path wasn't in the index)</i>.
+     */
+    public synchronized Entry remove(final String path)
+    {
+        String normalisedPath = normalise(path);
+        Entry  result         = removeSubtree(normalisedPath);
+
+        if (!ROOT.equals(normalisedPath))
+        {
+            SortedSet<String> siblings = children.get(getParentPath(normalisedPath));
+
+            if (siblings != null)
+            {
+                siblings.remove(getName(normalisedPath));
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param parentPath The directory to list <i>(must not be null)</i>.
+     * @return The names and entries of the directory's children, sorted by name <i>(will not be null, but may be empty)</i>.
+     */
+    public synchronized List<Map.Entry<String, Entry>> getChildren(final String parentPath)
+    {
+        String                          normalisedPath = normalise(parentPath);
+        SortedSet<String>               names          = children.get(normalisedPath);
+        List<Map.Entry<String, Entry>>  result         = new ArrayList<Map.Entry<String, Entry>>(names == null ? 0 : names.size());
+
+        if (names != null)
+        {
+            String prefix = ROOT.equals(normalisedPath) ? normalisedPath : normalisedPath + "/";
+
+            for (final String name : names)
+            {
+                result.add(new AbstractMap.SimpleImmutableEntry<String, Entry>(name, entries.get(prefix + name)));
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param path The root of the subtree <i>(must not be null)</i>.
+     * @return The normalised paths of everything below the given path, parents before their children <i>(will not be null)</i>.
+     */
+    public synchronized List<String> getDescendants(final String path)
+    {
+        List<String> result = new ArrayList<String>();
+
+        addDescendants(normalise(path), result);
+
+        return(result);
+    }
+
+
+    /**
+     * @return The number of paths in the index.
+     */
+    public synchronized int size()
+    {
+        return(entries.size());
+    }
+
+
+    /**
+     * Writes the index to disk, atomically replacing any previous copy.
+     *
+     * @param file The file to write to <i>(must not be null)</i>.
+     * @throws DeploymentException If the index couldn't be written.
+     */
+    public synchronized void save(final File file)
+        throws DeploymentException
+    {
+        File             tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out      = null;
+
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+
+            for (final Map.Entry<String, Entry> mapEntry : entries.entrySet())
+            {
+                Entry entry = mapEntry.getValue();
+
+                out.writeUTF(mapEntry.getKey());
+                out.writeBoolean(entry.getType() == FileType.DIR);
+                writeNullableUTF(out, entry.getGuid());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                writeNullableUTF(out, entry.getHash());
+            }
+
+            out.close();
+            out = null;
+
+            FileSystemUtils.move(tempFile, file);
+        }
+        catch (final IOException ioe)
+        {
+            throw new DeploymentException("Unable to write path index '" + FileSystemUtils.getPath(file) + "'.", ioe);
+        }
+        finally
+        {
+            FileSystemUtils.closeQuietly(out);
+        }
+    }
+
+
+    /**
+     * Reads an index previously written by {@link #save(File)}.
+     *
+     * @param file The file to read <i>(must not be null)</i>.
+     * @return The index <i>(will be null if the file doesn't exist or can't be read)</i>.
+     */
+    public static PathIndex load(final File file)
+    {
+        PathIndex       result = null;
+        DataInputStream in     = null;
+
+        if (file.exists())
+        {
+            try
+            {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                {
+                    throw new IOException("Unrecognised file format.");
+                }
+
+                int       count = in.readInt();
+                PathIndex index = new PathIndex();
+
+                for (int i = 0; i < count; i++)
+                {
+                    String   path         = in.readUTF();
+                    FileType type         = in.readBoolean() ? FileType.DIR : FileType.FILE;
+                    String   guid         = readNullableUTF(in);
+                    long     size         = in.readLong();
+                    long     lastModified = in.readLong();
+                    String   hash         = readNullableUTF(in);
+
+                    index.put(path, new Entry(type, guid, size, lastModified, hash));
+                }
+
+                result = index;
+            }
+            catch (final IOException ioe)
+            {
+                log.warn("Unable to read path index '" + FileSystemUtils.getPath(file) + "'.  It will be rebuilt.", ioe);
+            }
+            finally
+            {
+                FileSystemUtils.closeQuietly(in);
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Builds an index by walking a tree.  GUIDs aren't known, so the first deployment after a rebuild will resend
+     * everything.  Temporary files and gzipped variants of other files (see {@link Precompressor}) aren't indexed.
+     *
+     * @param root The root of the tree to index <i>(must not be null)</i>.
+     * @return The index <i>(will not be null)</i>.
+     */
+    public static PathIndex scan(final File root)
+    {
+        PathIndex result = new PathIndex();
+
+        scan(result, root, "");
+
+        return(result);
+    }
+
+
+    private static void scan(final PathIndex index, final File directory, final String path)
+    {
+        File[] files = directory.listFiles();
+
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                String childPath = path + "/" + file.getName();
+
+                if (file.isDirectory())
+                {
+                    index.put(childPath, new Entry(FileType.DIR, null, 0, file.lastModified(), null));
+                    scan(index, file, childPath);
+                }
+                else if (!file.getName().startsWith(".") &&   // Skip our own temporary files...
+                         !isCompressedVariant(file))          // ...and the gzipped variants made by the Precompressor
+                {
+                    index.put(childPath, new Entry(FileType.FILE, null, file.length(), file.lastModified(), null));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return True if the file is a gzipped variant of another file in the same directory.
+     */
+    private static boolean isCompressedVariant(final File file)
+    {
+        String name = file.getName();
+
+        return(name.endsWith(Precompressor.GZIP_SUFFIX) &&
+               new File(file.getParentFile(), name.substring(0, name.length() - Precompressor.GZIP_SUFFIX.length())).isFile());
+    }
+
+
+    private Entry removeSubtree(final String path)
+    {
+        Entry             result = entries.remove(path);
+        SortedSet<String> names  = children.remove(path);
+
+        if (names != null)
+        {
+            String prefix = ROOT.equals(path) ? path : path + "/";
+
+            for (final String name : names)
+            {
+                removeSubtree(prefix + name);
+            }
+        }
+
+        return(result);
+    }
+
+
+    private void addDescendants(final String path, final List<String> result)
+    {
+        SortedSet<String> names = children.get(path);
+
+        if (names != null)
+        {
+            String prefix = ROOT.equals(path) ? path : path + "/";
+
+            for (final String name : names)
+            {
+                result.add(prefix + name);
+                addDescendants(prefix + name, result);
+            }
+        }
+    }
+
+
+    static String normalise(final String path)
+    {
+        String result = path.replace('\\', '/');
+
+        if (!result.startsWith(ROOT))
+        {
+            result = ROOT + result;
+        }
+
+        while (result.length() > 1 && result.endsWith("/"))
+        {
+            result = result.substring(0, result.length() - 1);
+        }
+
+        return(result);
+    }
+
+
+    private static String getParentPath(final String normalisedPath)
+    {
+        int index = normalisedPath.lastIndexOf('/');
+
+        return(index <= 0 ? ROOT : normalisedPath.substring(0, index));
+    }
+
+
+    private static String getName(final String normalisedPath)
+    {
+        return(normalisedPath.substring(normalisedPath.lastIndexOf('/') + 1));
+    }
+
+
+    private static void writeNullableUTF(final DataOutputStream out, final String value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+
+    private static String readNullableUTF(final DataInputStream in)
+        throws IOException
+    {
+        return(in.readBoolean() ? in.readUTF() : null);
+    }
+
+
+
+    /**
+     * Immutable description of a single path in the index.
+     */
+    public static class Entry
+    {
+        private final FileType type;
+        private final String   guid;
+        private final long     size;
+        private final long     lastModified;
+        private final String   hash;
+
+
+        /**
+         * @param type         The type of the path <i>(must not be null)</i>.
+         * @param guid         The GUID the authoring side gave the path <i>(may be null)</i>.
+         * @param size         The size of the file, in bytes (or -1 if not yet known).
+         * @param lastModified The time the path was last deployed, in milliseconds since the epoch.
+         * @param hash         The hex encoded digest of the content <i>(may be null)</i>.
+         */
+        public Entry(final FileType type, final String guid, final long size, final long lastModified, final String hash)
+        {
+            this.type         = type;
+            this.guid         = guid;
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.hash         = hash;
+        }
+
+
+        public FileType getType()
+        {
+            return(type);
+        }
+
+
+        public String getGuid()
+        {
+            return(guid);
+        }
+
+
+        public long getSize()
+        {
+            return(size);
+        }
+
+
+        public long getLastModified()
+        {
+            return(lastModified);
+        }
+
+
+        public String getHash()
+        {
+            return(hash);
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Produces pre-compressed (gzip) variants of deployed files, as <code>.gz</code> siblings of the original, so that web
+ * servers can serve them as-is (e.g. nginx's <code>gzip_static</code>, Apache's <code>mod_rewrite</code> recipes)
+ * rather than compressing on every request.
+ *
+ * Files are compressed by a bounded pool of worker threads once they've been staged (while their content is still in
+ * the page cache); if the pool's queue is full the submitting thread compresses the file itself, which throttles the
+ * (write-behind) writers rather than the thread receiving the deployment.  Variants are written via
+ * {@link StagedFileOutputStream}s so they appear atomically, and variants that turn out to be no smaller than the
+ * original are discarded.  Every file of a deployment belongs to a {@link Batch}, which must be waited on before the
+ * deployment is committed.
+ *
+ * Only gzip is supported - the JDK includes no Brotli encoder (and there's no pure Java one).
+ *
+ * @version $Id$
+ */
+public class Precompressor
+{
+    private final static Log log = LogFactory.getLog(Precompressor.class);
+
+    public final static String GZIP_SUFFIX           = ".gz";
+    public final static int    DEFAULT_THREADS       = 2;
+    public final static int    DEFAULT_QUEUE_SIZE    = 256;
+    public final static long   DEFAULT_MINIMUM_SIZE  = 256;
+
+    public final static Set<String> DEFAULT_MIME_TYPES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+        "text/*",
+        "application/javascript",
+        "application/x-javascript",
+        "application/json",
+        "application/xml",
+        "application/xhtml+xml",
+        "application/rss+xml",
+        "application/atom+xml",
+        "image/svg+xml",
+        "image/x-icon",
+        "application/vnd.ms-fontobject",
+        "font/ttf",
+        "font/otf")));
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final Set<String>        mimeTypes;
+    private final long               minimumSize;
+    private final ThreadPoolExecutor workers;
+
+
+
+    /**
+     * @param threads     The number of compression threads.
+     * @param queueSize   The maximum number of files waiting to be compressed.
+     * @param mimeTypes   The mime types to compress - a type ending in <code>/*</code> matches every subtype <i>(must not be null)</i>.
+     * @param minimumSize The size, in bytes, below which files aren't worth compressing.
+     */
+    public Precompressor(final int threads, final int queueSize, final Set<String> mimeTypes, final long minimumSize)
+    {
+        this.mimeTypes   = new HashSet<String>(mimeTypes);
+        this.minimumSize = minimumSize;
+        this.workers     = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+                                                  0L, TimeUnit.MILLISECONDS,
+                                                  new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                                                  new ThreadFactory() {
+                                                      private final AtomicInteger threadNumber = new AtomicInteger();
+
+                                                      public Thread newThread(final Runnable runnable)
+                                                      {
+                                                          Thread result = new Thread(runnable, "Precompressor-" + threadNumber.incrementAndGet());
+                                                          result.setDaemon(true);
+                                                          return(result);
+                                                      }
+                                                  },
+                                                  new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+
+    /**
+     * @param mimeType The mime type of a file <i>(may be null)</i>.
+     * @return True if files of that type should be compressed.
+     */
+    public boolean isCompressible(final String mimeType)
+    {
+        boolean result = false;
+
+        if (mimeType != null)
+        {
+            String type  = mimeType.toLowerCase();
+            int    semi  = type.indexOf(';');
+
+            if (semi >= 0)
+            {
+                type = type.substring(0, semi);
+            }
+
+            type = type.trim();
+
+            int slash = type.indexOf('/');
+
+            result = mimeTypes.contains(type) ||
+                     (slash > 0 && mimeTypes.contains(type.substring(0, slash) + "/*"));
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @return A new batch, to which the files of a single deployment should belong <i>(will not be null)</i>.
+     */
+    public Batch newBatch()
+    {
+        return(new Batch());
+    }
+
+
+    /**
+     * Queues a (fully written) file for compression.
+     *
+     * @param batch The batch the file belongs to <i>(must not be null)</i>.
+     * @param file  The file to compress <i>(must not be null)</i>.
+     */
+    public void compress(final Batch batch, final File file)
+    {
+        if (!batch.cancelled)
+        {
+            batch.submitted(file);
+            workers.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        if (!batch.cancelled)
+                        {
+                            compress(file);
+                        }
+                    }
+                    catch (final Throwable t)
+                    {
+                        // Variants are an optimisation - a failure shouldn't fail the deployment
+                        log.warn("Unable to compress '" + FileSystemUtils.getPath(file) + "': " + t.getMessage());
+                        getVariant(file).delete();
+                    }
+                    finally
+                    {
+                        batch.completed(file);
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Stops the compression threads once any queued work has been done.
+     */
+    public void shutdown()
+    {
+        workers.shutdown();
+    }
+
+
+    /**
+     * @param file A file <i>(must not be null)</i>.
+     * @return The gzip variant of that file <i>(will not be null, but may not exist)</i>.
+     */
+    public static File getVariant(final File file)
+    {
+        return(new File(file.getParentFile(), file.getName() + GZIP_SUFFIX));
+    }
+
+
+    private void compress(final File file)
+        throws IOException
+    {
+        File variant = getVariant(file);
+
+        if (file.length() < minimumSize)
+        {
+            // Not worth compressing (and any existing variant is stale)
+            variant.delete();
+        }
+        else
+        {
+            InputStream            in     = null;
+            StagedFileOutputStream staged = new StagedFileOutputStream(variant);
+            GZIPOutputStream       gzip   = null;
+
+            try
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int    read   = 0;
+
+                in   = new FileInputStream(file);
+                gzip = new BestGZIPOutputStream(staged);
+
+                while ((read = in.read(buffer)) >= 0)
+                {
+                    gzip.write(buffer, 0, read);
+                }
+
+                gzip.finish();
+
+                if (staged.getSize() >= file.length())
+                {
+                    // Not worth serving
+                    staged.discard();
+                    variant.delete();
+                }
+
+                // Publishes the variant, unless it was discarded
+                gzip.close();
+                gzip = null;
+            }
+            finally
+            {
+                FileSystemUtils.closeQuietly(in);
+                staged.discard();   // No-op if the variant was published
+                FileSystemUtils.closeQuietly(gzip);
+            }
+        }
+    }
+
+
+
+    /**
+     * The set of files compressed for a single deployment.
+     */
+    public class Batch
+    {
+        private final List<File> pending   = new ArrayList<File>();
+        private volatile boolean cancelled = false;
+
+
+        private Batch()
+        {
+        }
+
+
+        /**
+         * Waits for every file in the batch to be compressed.
+         *
+         * @throws DeploymentException If interrupted while waiting.
+         */
+        public synchronized void await()
+            throws DeploymentException
+        {
+            try
+            {
+                while (!pending.isEmpty())
+                {
+                    wait();
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new DeploymentException("Interrupted while waiting for pending compression.", ie);
+            }
+        }
+
+
+        /**
+         * Waits for the batch's files at or beneath the given path to be compressed.  Other files are not waited for.
+         *
+         * @param root The file or directory <i>(must not be null)</i>.
+         * @throws DeploymentException If interrupted while waiting.
+         */
+        public synchronized void await(final File root)
+            throws DeploymentException
+        {
+            try
+            {
+                while (isPending(root))
+                {
+                    wait();
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new DeploymentException("Interrupted while waiting for pending compression.", ie);
+            }
+        }
+
+
+        /**
+         * Abandons the batch - files that haven't been compressed yet never will be, and this method waits until no
+         * worker is still working on the batch.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+            await();
+        }
+
+
+        private synchronized boolean isPending(final File root)
+        {
+            boolean result = false;
+
+            for (final File file : pending)
+            {
+                if (FileSystemUtils.isWithin(file, root))
+                {
+                    result = true;
+                    break;
+                }
+            }
+
+            return(result);
+        }
+
+
+        private synchronized void submitted(final File file)
+        {
+            pending.add(file);
+        }
+
+
+        private synchronized void completed(final File file)
+        {
+            pending.remove(file);
+            notifyAll();
+        }
+    }
+
+
+
+    /**
+     * GZIPOutputStream that compresses as hard as it can - the cost is paid once, at deployment time.
+     */
+    private static class BestGZIPOutputStream
+        extends GZIPOutputStream
+    {
+        private BestGZIPOutputStream(final OutputStream out)
+            throws IOException
+        {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.alfresco.deployment.impl.DeploymentException;
+
+
+/**
+ * OutputStream that streams content into a temporary file next to its destination via a <code>FileChannel</code>, then
+ * renames the temporary file over the destination when closed.
+ *
+ * Because the destination is replaced rather than rewritten, a staged file that is a hard link into the live tree is
+ * never modified in place.  Subclasses may hash the content as it's written and change how the finished file is
+ * published.
+ *
+ * Content that's already in a file can be copied in with {@link #transferFrom(FileChannel)}, which leaves the copying
+ * to the operating system rather than moving the bytes through the Java heap.
+ *
+ * @version $Id$
+ */
+public class StagedFileOutputStream
+    extends OutputStream
+{
+    private final static int    BUFFER_SIZE   = 64 * 1024;
+    private final static String TEMP_PREFIX   = ".deploy";
+    private final static String TEMP_SUFFIX   = ".tmp";
+    private final static long   MAP_SIZE      = 64L * 1024 * 1024;
+
+    private final File             destination;
+    private final File             tempFile;
+    private final FileOutputStream fileStream;
+    private final FileChannel      channel;
+    private final ByteBuffer       buffer;
+    private final MessageDigest    digest;
+
+    private StagedFileListener listener     = null;
+    private boolean            forceOnClose = false;
+    private boolean            closed       = false;
+    private long               size         = 0;
+    private String             hash         = null;
+
+
+
+    public StagedFileOutputStream(final File destination)
+        throws IOException
+    {
+        this(destination, destination.getParentFile(), null);
+    }
+
+
+    /**
+     * @param destination The file to create or replace <i>(must not be null)</i>.
+     * @param hashed      True if the content should be hashed (SHA-1) as it's written - see {@link #getHash()}.
+     */
+    public StagedFileOutputStream(final File destination, final boolean hashed)
+        throws IOException
+    {
+        this(destination, destination.getParentFile(), hashed ? BlobStore.newDigest() : null);
+    }
+
+
+    /**
+     * @param destination   The file to create or replace <i>(must not be null)</i>.
+     * @param tempDirectory The directory to write the temporary file in - must be on the same filesystem as the destination <i>(must not be null)</i>.
+     * @param digest        The digest to update with the content as it's written <i>(may be null)</i>.
+     */
+    protected StagedFileOutputStream(final File destination, final File tempDirectory, final MessageDigest digest)
+        throws IOException
+    {
+        this.destination = destination;
+        this.digest      = digest;
+        this.tempFile    = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, tempDirectory);
+        this.fileStream  = new FileOutputStream(tempFile);
+        this.channel     = fileStream.getChannel();
+        this.buffer      = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+
+    /**
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        if (!buffer.hasRemaining())
+        {
+            drainBuffer();
+        }
+
+        buffer.put((byte)b);
+        
+        if (digest != null)
+        {
+            digest.update((byte)b);
+        }
+        
+        size++;
+    }
+
+
+    /**
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (len > buffer.remaining())
+        {
+            drainBuffer();
+        }
+
+        if (len >= buffer.capacity())
+        {
+            // Large writes bypass the buffer entirely
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+        else
+        {
+            buffer.put(b, off, len);
+        }
+        
+        if (digest != null)
+        {
+            digest.update(b, off, len);
+        }
+        
+        size += len;
+    }
+
+
+    /**
+     * Appends the remaining content of the given channel (from its current position to its end), using
+     * <code>FileChannel.transferFrom</code> so that the copy is done by the operating system.  If the content is being
+     * hashed, the source is memory mapped and hashed in place.  The source channel is not closed.
+     * 
+     * @param source The channel to copy from <i>(must not be null)</i>.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void transferFrom(final FileChannel source)
+        throws IOException
+    {
+        drainBuffer();
+
+        long start    = source.position();
+        long count    = source.size() - start;
+        long position = channel.position();
+        long done     = 0;
+
+        while (done < count)
+        {
+            long transferred = channel.transferFrom(source, position + done, count - done);
+
+            if (transferred <= 0)
+            {
+                throw new IOException("Source channel was truncated after " + done + " of " + count + " bytes.");
+            }
+
+            done += transferred;
+        }
+
+        channel.position(position + count);
+
+        if (digest != null)
+        {
+            for (long offset = 0; offset < count; offset += MAP_SIZE)
+            {
+                MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(MAP_SIZE, count - offset));
+                digest.update(mapped);
+            }
+        }
+
+        source.position(start + count);
+        size += count;
+    }
+
+
+    /**
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        drainBuffer();
+    }
+
+
+    /**
+     * Writes any buffered content then publishes the temporary file.  If anything fails the temporary file is deleted,
+     * so a partially written file is never left behind in the staging tree.
+     *
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (!closed)
+        {
+            boolean published = false;
+
+            closed = true;
+
+            try
+            {
+                try
+                {
+                    drainBuffer();
+
+                    if (forceOnClose)
+                    {
+                        channel.force(true);
+                    }
+                }
+                finally
+                {
+                    FileSystemUtils.closeQuietly(channel);
+                    fileStream.close();
+                }
+
+                if (digest != null)
+                {
+                    hash = FileSystemUtils.toHex(digest.digest());
+                }
+
+                publish(tempFile, destination);
+                published = true;
+            }
+            catch (final DeploymentException de)
+            {
+                throw new IOException(de.getMessage());
+            }
+            finally
+            {
+                if (!published)
+                {
+                    tempFile.delete();
+                }
+            }
+
+            if (listener != null)
+            {
+                listener.fileStaged(destination, size, hash);
+            }
+        }
+    }
+
+
+    /**
+     * Abandons the file - the temporary file is deleted and the destination is left untouched.
+     */
+    public void discard()
+    {
+        if (!closed)
+        {
+            closed = true;
+
+            FileSystemUtils.closeQuietly(channel);
+            FileSystemUtils.closeQuietly(fileStream);
+            tempFile.delete();
+        }
+    }
+
+
+    /**
+     * @param forceOnClose True if the content should be forced to disk (fsync'ed) before the file is published.
+     */
+    public void setForceOnClose(final boolean forceOnClose)
+    {
+        this.forceOnClose = forceOnClose;
+    }
+
+
+    /**
+     * @param listener The listener to notify once the file has been published <i>(may be null)</i>.
+     */
+    public void setListener(final StagedFileListener listener)
+    {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Makes the fully written temporary file visible at its destination.  This implementation simply renames it over
+     * the destination.
+     * 
+     * @param written     The fully written temporary file <i>(will not be null)</i>.
+     * @param target      The destination <i>(will not be null)</i>.
+     * @throws IOException         If an I/O error occurs.
+     * @throws DeploymentException If the file can't be published.
+     */
+    protected void publish(final File written, final File target)
+        throws IOException, DeploymentException
+    {
+        FileSystemUtils.move(written, target);
+    }
+
+
+    /**
+     * @return The hex encoded digest of the content <i>(will be null if no digest was provided, or before the stream is closed)</i>.
+     */
+    public String getHash()
+    {
+        return(hash);
+    }
+
+
+    /**
+     * @return The file this stream will create or replace <i>(will not be null)</i>.
+     */
+    public File getDestination()
+    {
+        return(destination);
+    }
+
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    public long getSize()
+    {
+        return(size);
+    }
+
+
+    private void drainBuffer()
+        throws IOException
+    {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+
+    private void writeFully(final ByteBuffer source)
+        throws IOException
+    {
+        while (source.hasRemaining())
+        {
+            channel.write(source);
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Deletes files and directory trees in the background.
+ *
+ * {@link #trash(File, File)} renames the doomed path into a trash directory on the same filesystem, which takes
+ * constant time regardless of the size of the tree.  A single background thread then deletes trashed trees one file at
+ * a time, throttled to a maximum number of deletions per second so that reclaiming a large tree doesn't saturate the
+ * disk of a host that is also serving the deployed content.
+ *
+ * @version $Id$
+ */
+public class TrashPurger
+{
+    private final static Log log = LogFactory.getLog(TrashPurger.class);
+
+    public final static int DEFAULT_MAX_DELETES_PER_SECOND = 1000;
+
+    private final static int THROTTLE_CHECK_INTERVAL = 50;
+
+    private final int                 maxDeletesPerSecond;
+    private final BlockingQueue<File> queue    = new LinkedBlockingQueue<File>();
+    private final AtomicLong          sequence = new AtomicLong(System.currentTimeMillis());
+    private final Thread              purger;
+
+    // Metrics
+    private final AtomicLong pathsTrashed = new AtomicLong();
+    private final AtomicLong treesPurged  = new AtomicLong();
+    private final AtomicLong filesPurged  = new AtomicLong();
+    private final AtomicLong bytesPurged  = new AtomicLong();
+    private final AtomicLong failures     = new AtomicLong();
+
+    private volatile boolean running = true;
+
+
+
+    /**
+     * @param maxDeletesPerSecond The maximum rate at which the purger deletes files (0 or less is unthrottled).
+     */
+    public TrashPurger(final int maxDeletesPerSecond)
+    {
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+
+        purger = new Thread(new Runnable() {
+            public void run()
+            {
+                purge();
+            }
+        }, "TrashPurger");
+        purger.setDaemon(true);
+        purger.setPriority(Thread.MIN_PRIORITY);
+        purger.start();
+    }
+
+
+    /**
+     * Moves a file or directory tree into the trash, to be deleted in the background.
+     *
+     * @param doomed         The file or directory to delete <i>(may be null, or may not exist)</i>.
+     * @param trashDirectory The trash directory - must be on the same filesystem as <code>doomed</code> <i>(must not be null)</i>.
+     * @throws DeploymentException If the path couldn't be moved into the trash.
+     */
+    public void trash(final File doomed, final File trashDirectory)
+        throws DeploymentException
+    {
+        if (doomed != null && (doomed.exists() || FileSystemUtils.isSymbolicLink(doomed)))
+        {
+            if (!trashDirectory.mkdirs() && !trashDirectory.isDirectory())
+            {
+                throw new DeploymentException("Unable to create trash directory '" + FileSystemUtils.getPath(trashDirectory) + "'.");
+            }
+
+            File trashed = new File(trashDirectory, String.valueOf(sequence.incrementAndGet()) + "-" + doomed.getName());
+
+            FileSystemUtils.move(doomed, trashed);
+            pathsTrashed.incrementAndGet();
+            queue.offer(trashed);
+        }
+    }
+
+
+    /**
+     * Queues anything left in a trash directory (for example by a previous run that was shut down before it finished
+     * purging) for deletion.
+     *
+     * @param trashDirectory The trash directory <i>(must not be null)</i>.
+     */
+    public void recover(final File trashDirectory)
+    {
+        File[] leftovers = trashDirectory.listFiles();
+
+        if (leftovers != null && leftovers.length > 0)
+        {
+            log.info("Purging " + leftovers.length + " leftover paths from '" + FileSystemUtils.getPath(trashDirectory) + "'.");
+
+            for (final File leftover : leftovers)
+            {
+                queue.offer(leftover);
+            }
+        }
+    }
+
+
+    /**
+     * Stops the background thread.  Anything still in the trash will be purged after the next {@link #recover(File)}.
+     */
+    public void shutdown()
+    {
+        running = false;
+        purger.interrupt();
+    }
+
+
+    /**
+     * @return The number of paths moved into the trash.
+     */
+    public long getPathsTrashed()
+    {
+        return(pathsTrashed.get());
+    }
+
+
+    /**
+     * @return The number of trashed paths completely purged.
+     */
+    public long getTreesPurged()
+    {
+        return(treesPurged.get());
+    }
+
+
+    /**
+     * @return The number of files and directories deleted.
+     */
+    public long getFilesPurged()
+    {
+        return(filesPurged.get());
+    }
+
+
+    /**
+     * @return The number of bytes in the files deleted (space is only reclaimed for files that had no other hard links).
+     */
+    public long getBytesPurged()
+    {
+        return(bytesPurged.get());
+    }
+
+
+    /**
+     * @return The number of files that couldn't be deleted.
+     */
+    public long getFailures()
+    {
+        return(failures.get());
+    }
+
+
+    /**
+     * @return The number of trashed paths waiting to be purged (not including the one currently being purged).
+     */
+    public int getPending()
+    {
+        return(queue.size());
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return("TrashPurger[trashed=" + getPathsTrashed() +
+               ", purged=" + getTreesPurged() +
+               ", pending=" + getPending() +
+               ", files=" + getFilesPurged() +
+               ", bytes=" + getBytesPurged() +
+               ", failures=" + getFailures() + "]");
+    }
+
+
+    private void purge()
+    {
+        long windowStart   = System.currentTimeMillis();
+        long windowDeletes = 0;
+
+        while (running)
+        {
+            try
+            {
+                File trashed = queue.take();
+
+                // Depth first, deleting directories once they're empty
+                List<File> stack = new ArrayList<File>();
+                stack.add(trashed);
+
+                while (!stack.isEmpty())
+                {
+                    File   file     = stack.get(stack.size() - 1);
+                    File[] children = file.isDirectory() && !FileSystemUtils.isSymbolicLink(file) ? file.listFiles() : null;
+
+                    if (children != null && children.length > 0)
+                    {
+                        for (final File child : children)
+                        {
+                            stack.add(child);
+                        }
+                    }
+                    else
+                    {
+                        long length = file.isFile() ? file.length() : 0;
+
+                        stack.remove(stack.size() - 1);
+
+                        if (file.delete())
+                        {
+                            filesPurged.incrementAndGet();
+                            bytesPurged.addAndGet(length);
+                        }
+                        else if (file.exists())
+                        {
+                            // Don't get stuck retrying a file we can't delete
+                            failures.incrementAndGet();
+                            log.warn("Unable to purge '" + FileSystemUtils.getPath(file) + "'.");
+                            stack.clear();
+                        }
+
+                        windowDeletes++;
+
+                        if (maxDeletesPerSecond > 0 && windowDeletes % THROTTLE_CHECK_INTERVAL == 0)
+                        {
+                            long elapsed = System.currentTimeMillis() - windowStart;
+                            long target  = windowDeletes * 1000L / maxDeletesPerSecond;
+
+                            if (elapsed < target)
+                            {
+                                Thread.sleep(target - elapsed);
+                            }
+                            else if (elapsed > 1000)
+                            {
+                                windowStart   = System.currentTimeMillis();
+                                windowDeletes = 0;
+                            }
+                        }
+                    }
+                }
+
+                treesPurged.incrementAndGet();
+
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Purged '" + FileSystemUtils.getPath(trashed) + "'.  " + toString());
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                // Shutting down
+            }
+            catch (final RuntimeException re)
+            {
+                failures.incrementAndGet();
+                log.error("Unexpected error purging trash.", re);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Registry of the current version of every target/store pair, held in a single memory-mapped file of fixed size
+ * slots.
+ *
+ * Reads are answered from memory without locking.  Updates are compare-and-set operations that write the new value
+ * into one of two alternating, checksummed copies within the key's slot and then force the mapping to disk, so a crash
+ * part way through an update leaves the previous copy intact.  On startup the valid copy with the highest sequence
+ * number wins.
+ *
+ * Each slot is laid out as two 128 byte copies of:
+ * <pre>
+ *   int    magic
+ *   long   sequence
+ *   int    version
+ *   short  key length (bytes)
+ *   byte[] key (UTF-8, up to 106 bytes)
+ *   int    CRC32 of all of the above
+ * </pre>
+ *
+ * The registry is not safe for use by more than one process at a time.
+ *
+ * @version $Id$
+ */
+public class VersionRegistry
+{
+    private final static Log log = LogFactory.getLog(VersionRegistry.class);
+
+    public final static int DEFAULT_SLOT_COUNT = 1024;
+
+    private final static int MAGIC          = 0x56524547;   // "VREG"
+    private final static int COPY_SIZE      = 128;
+    private final static int SLOT_SIZE      = COPY_SIZE * 2;
+    private final static int MAX_KEY_LENGTH = 106;
+    private final static int OFFSET_SEQ     = 4;
+    private final static int OFFSET_VERSION = 12;
+    private final static int OFFSET_KEYLEN  = 16;
+    private final static int OFFSET_KEY     = 18;
+    private final static int OFFSET_CRC     = COPY_SIZE - 4;
+
+    private final File                        file;
+    private final int                         slotCount;
+    private final MappedByteBuffer            buffer;
+    private final boolean[]                   allocated;
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+
+
+    /**
+     * Opens (creating if necessary) the registry.
+     *
+     * @param file      The registry file <i>(must not be null)</i>.
+     * @param slotCount The number of slots (the maximum number of target/store pairs) - ignored if the file already exists.
+     * @throws DeploymentException If the registry can't be opened.
+     */
+    public VersionRegistry(final File file, final int slotCount)
+        throws DeploymentException
+    {
+        RandomAccessFile randomAccessFile = null;
+
+        this.file = file;
+
+        try
+        {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+
+            if (randomAccessFile.length() == 0)
+            {
+                randomAccessFile.setLength((long)slotCount * SLOT_SIZE);
+            }
+
+            this.slotCount = (int)(randomAccessFile.length() / SLOT_SIZE);
+            this.buffer    = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)this.slotCount * SLOT_SIZE);
+            this.allocated = new boolean[this.slotCount];
+        }
+        catch (final IOException ioe)
+        {
+            throw new DeploymentException("Unable to open version registry '" + FileSystemUtils.getPath(file) + "'.", ioe);
+        }
+        finally
+        {
+            // The mapping remains valid after the file is closed
+            FileSystemUtils.closeQuietly(randomAccessFile);
+        }
+
+        load();
+    }
+
+
+    /**
+     * @param key The key (normally <code>target/store</code>) <i>(must not be null)</i>.
+     * @return The current version for that key <i>(will be null if the key has never been registered)</i>.
+     */
+    public Integer get(final String key)
+    {
+        Slot slot = slots.get(key);
+
+        return(slot == null ? null : Integer.valueOf(slot.version));
+    }
+
+
+    /**
+     * Atomically and durably sets the version for a key, if it currently has the expected value.  A key that has never
+     * been registered is treated as being at version 0.
+     *
+     * @param key      The key <i>(must not be null, and must be no longer than 106 bytes in UTF-8)</i>.
+     * @param expected The version the key is expected to be at.
+     * @param version  The new version.
+     * @return True if the version was updated, false if the key wasn't at the expected version.
+     * @throws DeploymentException If the registry is full, or the update couldn't be written.
+     */
+    public boolean compareAndSet(final String key, final int expected, final int version)
+        throws DeploymentException
+    {
+        boolean result = false;
+        Slot    slot   = getOrAllocate(key);
+
+        synchronized(slot)
+        {
+            if (slot.version == expected)
+            {
+                long sequence = slot.sequence + 1;
+
+                writeCopy(slot.index, (int)(sequence % 2), sequence, version, slot.keyBytes);
+                buffer.force();
+
+                slot.sequence = sequence;
+                slot.version  = version;
+                result        = true;
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Durably sets the version for a key, regardless of its current value.
+     *
+     * @param key     The key <i>(must not be null, and must be no longer than 106 bytes in UTF-8)</i>.
+     * @param version The new version.
+     * @throws DeploymentException If the registry is full, or the update couldn't be written.
+     */
+    public void set(final String key, final int version)
+        throws DeploymentException
+    {
+        Slot slot = getOrAllocate(key);
+
+        while (!compareAndSet(key, slot.version, version))
+        {
+            // Lost a race with another writer - try again
+        }
+    }
+
+
+    /**
+     * Reads a <code>version.txt</code> file written by earlier releases, for migration into the registry.  Those
+     * releases wrote the version with <code>Writer.write(int)</code>, so the file holds exactly one character whose
+     * code is the version (even if that character happens to be a digit).  Anything longer is parsed as a decimal
+     * number.
+     *
+     * @param versionFile The legacy version file <i>(must not be null)</i>.
+     * @return The version held in the file (0 if it's empty or can't be read).
+     */
+    public static int readLegacyVersion(final File versionFile)
+    {
+        int        result = 0;
+        CharBuffer buffer = CharBuffer.allocate(16);
+        Reader     reader = null;
+
+        try
+        {
+            reader = new InputStreamReader(new FileInputStream(versionFile));
+            reader.read(buffer);
+            buffer.flip();
+
+            String value = buffer.toString();
+
+            if (value.length() == 1)
+            {
+                result = value.charAt(0);
+            }
+            else if (value.trim().length() > 0)
+            {
+                result = Integer.valueOf(value.trim());
+            }
+        }
+        catch (final IOException ioe)
+        {
+            log.warn("Unable to retrieve version information from '" + FileSystemUtils.getPath(versionFile) + "'.", ioe);
+        }
+        catch (final NumberFormatException nfe)
+        {
+            log.warn("Unable to parse version number '" + buffer.toString() + "'.", nfe);
+        }
+        finally
+        {
+            FileSystemUtils.closeQuietly(reader);
+        }
+
+        return(result);
+    }
+
+
+    private void load()
+    {
+        for (int i = 0; i < slotCount; i++)
+        {
+            int  bestCopy     = -1;
+            long bestSequence = -1;
+
+            for (int copy = 0; copy < 2; copy++)
+            {
+                int offset = i * SLOT_SIZE + copy * COPY_SIZE;
+
+                if (isValidCopy(offset) && buffer.getLong(offset + OFFSET_SEQ) > bestSequence)
+                {
+                    bestCopy     = copy;
+                    bestSequence = buffer.getLong(offset + OFFSET_SEQ);
+                }
+            }
+
+            if (bestCopy >= 0)
+            {
+                int    offset   = i * SLOT_SIZE + bestCopy * COPY_SIZE;
+                byte[] keyBytes = new byte[buffer.getShort(offset + OFFSET_KEYLEN)];
+
+                for (int j = 0; j < keyBytes.length; j++)
+                {
+                    keyBytes[j] = buffer.get(offset + OFFSET_KEY + j);
+                }
+
+                Slot slot = new Slot(i, keyBytes);
+                slot.sequence = bestSequence;
+                slot.version  = buffer.getInt(offset + OFFSET_VERSION);
+
+                allocated[i] = true;
+                slots.put(decode(keyBytes), slot);
+            }
+        }
+
+        log.debug("Loaded " + slots.size() + " versions from '" + FileSystemUtils.getPath(file) + "'.");
+    }
+
+
+    private boolean isValidCopy(final int offset)
+    {
+        boolean result = false;
+
+        if (buffer.getInt(offset) == MAGIC)
+        {
+            int keyLength = buffer.getShort(offset + OFFSET_KEYLEN);
+
+            result = keyLength > 0 &&
+                     keyLength <= MAX_KEY_LENGTH &&
+                     checksum(offset) == buffer.getInt(offset + OFFSET_CRC);
+        }
+
+        return(result);
+    }
+
+
+    private Slot getOrAllocate(final String key)
+    {
+        Slot result = slots.get(key);
+
+        if (result == null)
+        {
+            byte[] keyBytes = encode(key);
+
+            synchronized(allocated)
+            {
+                result = slots.get(key);
+
+                if (result == null)
+                {
+                    int start = (key.hashCode() & Integer.MAX_VALUE) % slotCount;
+
+                    for (int i = 0; i < slotCount && result == null; i++)
+                    {
+                        int index = (start + i) % slotCount;
+
+                        if (!allocated[index])
+                        {
+                            // Write the initial (version 0) copy before publishing the slot
+                            writeCopy(index, 0, 0, 0, keyBytes);
+                            buffer.force();
+
+                            allocated[index] = true;
+                            result           = new Slot(index, keyBytes);
+                            slots.put(key, result);
+                        }
+                    }
+
+                    if (result == null)
+                    {
+                        throw new DeploymentException("Version registry '" + FileSystemUtils.getPath(file) + "' is full (" + slotCount + " slots).  Increase the number of slots and recreate it.");
+                    }
+                }
+            }
+        }
+
+        return(result);
+    }
+
+
+    private void writeCopy(final int index, final int copy, final long sequence, final int version, final byte[] keyBytes)
+    {
+        int offset = index * SLOT_SIZE + copy * COPY_SIZE;
+
+        buffer.putInt(offset, MAGIC);
+        buffer.putLong(offset + OFFSET_SEQ, sequence);
+        buffer.putInt(offset + OFFSET_VERSION, version);
+        buffer.putShort(offset + OFFSET_KEYLEN, (short)keyBytes.length);
+
+        for (int i = 0; i < MAX_KEY_LENGTH; i++)
+        {
+            buffer.put(offset + OFFSET_KEY + i, i < keyBytes.length ? keyBytes[i] : 0);
+        }
+
+        buffer.putInt(offset + OFFSET_CRC, checksum(offset));
+    }
+
+
+    private int checksum(final int offset)
+    {
+        CRC32 crc = new CRC32();
+
+        for (int i = 0; i < OFFSET_CRC; i++)
+        {
+            crc.update(buffer.get(offset + i));
+        }
+
+        return((int)crc.getValue());
+    }
+
+
+    private static byte[] encode(final String key)
+    {
+        byte[] result = null;
+
+        try
+        {
+            result = key.getBytes("UTF-8");
+        }
+        catch (final UnsupportedEncodingException uee)
+        {
+            // UTF-8 is always supported, so this "can't happen"
+            throw new IllegalStateException(uee);
+        }
+
+        if (result.length == 0 || result.length > MAX_KEY_LENGTH)
+        {
+            throw new DeploymentException("Version registry key '" + key + "' must be between 1 and " + MAX_KEY_LENGTH + " bytes long.");
+        }
+
+        return(result);
+    }
+
+
+    private static String decode(final byte[] keyBytes)
+    {
+        try
+        {
+            return(new String(keyBytes, "UTF-8"));
+        }
+        catch (final UnsupportedEncodingException uee)
+        {
+            // UTF-8 is always supported, so this "can't happen"
+            throw new IllegalStateException(uee);
+        }
+    }
+
+
+
+    /**
+     * In-memory state of a single slot.  Version and sequence are only modified while holding the slot's monitor, and
+     * are volatile so that reads don't need to.
+     */
+    private static class Slot
+    {
+        private final int    index;
+        private final byte[] keyBytes;
+
+        private volatile long sequence = 0;
+        private volatile int  version  = 0;
+
+
+        private Slot(final int index, final byte[] keyBytes)
+        {
+            this.index    = index;
+            this.keyBytes = keyBytes;
+        }
+    }
+
+}
@@ -0,0 +1,901 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have received a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Asynchronous write-behind stage for staged files.
+ *
+ * Streams returned by {@link #newOutputStream(Batch, StagedFileOutputStream)} copy content into pooled buffers and hand
+ * full buffers to a small pool of writer threads, so the deployment receiver thread never waits on the disk (unless
+ * the buffer pool is exhausted, which provides back pressure).  Each file's buffers are written strictly in order, by
+ * one writer at a time.  Closing a stream returns immediately; the file is published by a writer thread once all of its
+ * content is on disk.
+ *
+ * All of a deployment's files belong to a {@link Batch}, which the target waits on (and which reports any write
+ * failures) before it commits.  The fsync policy determines when content is forced to disk:
+ * <ul>
+ *   <li>NONE: never (the operating system writes it back whenever it chooses)</li>
+ *   <li>PER_FILE: each file is forced before it's published</li>
+ *   <li>COMMIT: every file written by the batch is forced, in parallel, when the batch is synced at commit time (group
+ *       commit).  Java offers no way to sync a whole filesystem, so this is a parallel fsync of each file.</li>
+ * </ul>
+ *
+ * With zero writer threads the streams write synchronously, but the fsync policy is still honoured.
+ *
+ * The pool holds at most <code>bufferCount</code> buffers.  When it's exhausted a stream waits briefly for a buffer to
+ * be released, then (in case every pooled buffer is held by a file that's still open) falls back to a temporary buffer.
+ * At most <code>bufferCount / 4</code> temporary buffers (and at least one) can exist at a time - beyond that, streams
+ * block until a buffer is released - so the pipeline never holds more than <code>1.25 * bufferCount</code> buffers.
+ *
+ * @version $Id$
+ */
+public class WriteBehindPipeline
+{
+    private final static Log log = LogFactory.getLog(WriteBehindPipeline.class);
+
+    private final static long       BUFFER_WAIT_MILLIS = 100;
+    private final static long       BUFFER_WARN_MILLIS = 10000;
+    private final static ByteBuffer END_OF_FILE        = ByteBuffer.allocate(0);
+
+    /**
+     * When content is forced to disk.
+     */
+    public enum FsyncPolicy
+    {
+        NONE,
+        PER_FILE,
+        COMMIT
+    }
+
+    private final int                       writerThreads;
+    private final int                       bufferCount;
+    private final int                       bufferSize;
+    private final FsyncPolicy               fsyncPolicy;
+    private final BlockingQueue<ByteBuffer> bufferPool;
+    private final int                       maxOverflowBuffers;
+    private final AtomicInteger             buffersAllocated = new AtomicInteger();
+    private final AtomicInteger             overflowBuffers  = new AtomicInteger();
+    private final AtomicLong                overflowCount    = new AtomicLong();
+    private final ExecutorService           writers;
+
+
+
+    /**
+     * @param writerThreads The number of writer threads (0 or less writes synchronously on the caller's thread).
+     * @param bufferCount   The maximum number of pooled buffers.
+     * @param bufferSize    The size of each buffer, in bytes.
+     * @param fsyncPolicy   When content is forced to disk <i>(must not be null)</i>.
+     */
+    public WriteBehindPipeline(final int writerThreads, final int bufferCount, final int bufferSize, final FsyncPolicy fsyncPolicy)
+    {
+        this.writerThreads = Math.max(0, writerThreads);
+        this.bufferCount   = Math.max(1, bufferCount);
+        this.bufferSize    = bufferSize;
+        this.fsyncPolicy   = fsyncPolicy;
+        this.bufferPool    = new ArrayBlockingQueue<ByteBuffer>(this.bufferCount);
+
+        this.maxOverflowBuffers = Math.max(1, this.bufferCount / 4);
+
+        if (this.writerThreads > 0)
+        {
+            writers = Executors.newFixedThreadPool(this.writerThreads, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                public Thread newThread(final Runnable runnable)
+                {
+                    Thread result = new Thread(runnable, "WriteBehindPipeline-" + threadNumber.incrementAndGet());
+                    result.setDaemon(true);
+                    return(result);
+                }
+            });
+        }
+        else
+        {
+            writers = null;
+        }
+    }
+
+
+    /**
+     * @return A new batch, to which the streams of a single deployment should belong <i>(will not be null)</i>.
+     */
+    public Batch newBatch()
+    {
+        return(new Batch());
+    }
+
+
+    /**
+     * @param batch The batch the file belongs to <i>(must not be null)</i>.
+     * @param file  The staged file to write to <i>(must not be null)</i>.
+     * @return A stream that writes to the staged file through this pipeline <i>(will not be null)</i>.
+     */
+    public OutputStream newOutputStream(final Batch batch, final StagedFileOutputStream file)
+    {
+        OutputStream result = null;
+
+        file.setForceOnClose(fsyncPolicy == FsyncPolicy.PER_FILE);
+
+        if (writers == null)
+        {
+            result = new SynchronousStream(batch, file);
+        }
+        else
+        {
+            result = new WriteBehindStream(batch, file);
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Copies the content of a channel into a staged file and publishes it.  The copy is done by the operating system
+     * (see {@link StagedFileOutputStream#transferFrom(FileChannel)}), so it's done on the calling thread rather than
+     * queued for the writers, but it's otherwise treated like any other file in the batch.
+     * 
+     * @param batch  The batch the file belongs to <i>(must not be null)</i>.
+     * @param file   The staged file to write to <i>(must not be null)</i>.
+     * @param source The channel to copy from <i>(must not be null)</i>.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void transfer(final Batch batch, final StagedFileOutputStream file, final FileChannel source)
+        throws IOException
+    {
+        file.setForceOnClose(fsyncPolicy == FsyncPolicy.PER_FILE);
+
+        try
+        {
+            file.transferFrom(source);
+            file.close();
+        }
+        catch (final IOException ioe)
+        {
+            file.discard();
+            throw ioe;
+        }
+
+        batch.published(file.getDestination());
+    }
+
+
+    /**
+     * Stops the writer threads once any queued work has been done.
+     */
+    public void shutdown()
+    {
+        if (writers != null)
+        {
+            writers.shutdown();
+        }
+    }
+
+
+    private ByteBuffer acquireBuffer()
+        throws IOException
+    {
+        ByteBuffer result = bufferPool.poll();
+
+        if (result == null)
+        {
+            if (buffersAllocated.incrementAndGet() <= bufferCount)
+            {
+                result = ByteBuffer.allocate(bufferSize);
+            }
+            else
+            {
+                buffersAllocated.decrementAndGet();
+
+                try
+                {
+                    result = bufferPool.poll(BUFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a write buffer.");
+                }
+
+                if (result == null)
+                {
+                    if (overflowBuffers.incrementAndGet() <= maxOverflowBuffers)
+                    {
+                        // Every pooled buffer may be held by a file that's still open - rather than risk deadlock, use a temporary buffer
+                        log.debug("Write-behind buffer pool exhausted, allocating a temporary buffer.");
+                        overflowCount.incrementAndGet();
+                        result = ByteBuffer.allocate(bufferSize);
+                    }
+                    else
+                    {
+                        overflowBuffers.decrementAndGet();
+                        result = awaitBuffer();
+                    }
+                }
+            }
+        }
+
+        return(result);
+    }
+
+
+    private ByteBuffer awaitBuffer()
+        throws IOException
+    {
+        ByteBuffer result = null;
+        long       start  = System.currentTimeMillis();
+        boolean    warned = false;
+
+        try
+        {
+            while (result == null)
+            {
+                result = bufferPool.poll(BUFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (result == null && !warned && System.currentTimeMillis() - start > BUFFER_WARN_MILLIS)
+                {
+                    log.warn("Waited more than " + BUFFER_WARN_MILLIS + "ms for a write-behind buffer - " + bufferCount + " pooled and " + maxOverflowBuffers +
+                             " temporary buffers are all in use.  Too many files may be open at once.");
+                    warned = true;
+                }
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a write buffer.");
+        }
+
+        return(result);
+    }
+
+
+    private void releaseBuffer(final ByteBuffer buffer)
+    {
+        buffer.clear();
+
+        if (!bufferPool.offer(buffer))
+        {
+            // The pool is full, so this buffer is surplus - dropping it retires one temporary buffer
+            overflowBuffers.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * @return The number of temporary buffers that have been allocated because the pool was exhausted.
+     */
+    public long getOverflowCount()
+    {
+        return(overflowCount.get());
+    }
+
+
+    private static void force(final File file)
+        throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            randomAccessFile.getChannel().force(true);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+
+
+    /**
+     * The set of files written by a single deployment.
+     */
+    public class Batch
+    {
+        private final List<File>             writtenFiles = Collections.synchronizedList(new ArrayList<File>());
+        private final Set<WriteBehindStream> openStreams  = new HashSet<WriteBehindStream>();
+
+        private Throwable        failure   = null;
+        private volatile boolean cancelled = false;
+
+
+        private Batch()
+        {
+        }
+
+
+        /**
+         * Waits for every file in the batch to be written and published.
+         *
+         * @throws DeploymentException If any file couldn't be written.
+         */
+        public void await()
+            throws DeploymentException
+        {
+            Throwable cause = null;
+
+            synchronized(this)
+            {
+                try
+                {
+                    while (!openStreams.isEmpty())
+                    {
+                        wait();
+                    }
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new DeploymentException("Interrupted while waiting for pending writes.", ie);
+                }
+
+                cause = failure;
+            }
+
+            if (cause != null)
+            {
+                throw new DeploymentException("Unable to write deployed content: " + cause.getMessage(), cause);
+            }
+        }
+
+
+        /**
+         * Waits for the batch's files at or beneath the given path to be written and published (or discarded).  Other
+         * files are not waited for, and write failures are left for {@link #await()} to report.
+         *
+         * @param root The file or directory <i>(must not be null)</i>.
+         * @throws DeploymentException If interrupted while waiting.
+         */
+        public synchronized void await(final File root)
+            throws DeploymentException
+        {
+            try
+            {
+                while (isPending(root))
+                {
+                    wait();
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new DeploymentException("Interrupted while waiting for pending writes.", ie);
+            }
+        }
+
+
+        /**
+         * Waits for every file in the batch to be written and published, then (under the COMMIT fsync policy) forces
+         * all of them to disk.
+         *
+         * @throws DeploymentException If any file couldn't be written or forced.
+         */
+        public void sync()
+            throws DeploymentException
+        {
+            await();
+
+            if (fsyncPolicy == FsyncPolicy.COMMIT)
+            {
+                List<File> files = null;
+
+                synchronized(writtenFiles)
+                {
+                    files = new ArrayList<File>(writtenFiles);
+                    writtenFiles.clear();
+                }
+
+                try
+                {
+                    forceAll(files);
+                }
+                catch (final IOException ioe)
+                {
+                    throw new DeploymentException("Unable to force deployed content to disk.", ioe);
+                }
+            }
+        }
+
+
+        /**
+         * Abandons the batch - pending content is discarded, files that haven't been published yet never will be,
+         * and this method waits until no writer is still working on the batch.
+         */
+        public void cancel()
+        {
+            List<WriteBehindStream> streams = null;
+
+            cancelled = true;
+
+            synchronized(this)
+            {
+                streams = new ArrayList<WriteBehindStream>(openStreams);
+            }
+
+            // Streams the caller never closed would otherwise be waited on forever
+            for (final WriteBehindStream stream : streams)
+            {
+                stream.enqueue(END_OF_FILE);
+            }
+
+            try
+            {
+                await();
+            }
+            catch (final DeploymentException de)
+            {
+                // We're abandoning the batch anyway, so write failures are irrelevant
+            }
+        }
+
+
+        private synchronized boolean isPending(final File root)
+        {
+            boolean result = false;
+
+            for (final WriteBehindStream stream : openStreams)
+            {
+                if (FileSystemUtils.isWithin(stream.file.getDestination(), root))
+                {
+                    result = true;
+                    break;
+                }
+            }
+
+            return(result);
+        }
+
+
+        private synchronized void opened(final WriteBehindStream stream)
+        {
+            openStreams.add(stream);
+        }
+
+
+        private synchronized void finished(final WriteBehindStream stream)
+        {
+            openStreams.remove(stream);
+            notifyAll();
+        }
+
+
+        private synchronized void failed(final Throwable cause)
+        {
+            if (failure == null)
+            {
+                failure = cause;
+            }
+        }
+
+
+        private synchronized Throwable getFailure()
+        {
+            return(failure);
+        }
+
+
+        private boolean isAbandoned()
+        {
+            return(cancelled || getFailure() != null);
+        }
+
+
+        private void published(final File file)
+        {
+            if (fsyncPolicy == FsyncPolicy.COMMIT)
+            {
+                writtenFiles.add(file);
+            }
+        }
+
+
+        private void forceAll(final List<File> files)
+            throws IOException
+        {
+            if (writers == null || files.size() < 2)
+            {
+                for (final File file : files)
+                {
+                    force(file);
+                }
+            }
+            else
+            {
+                // Split the files evenly across the writer threads
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(writerThreads);
+                int                    step  = (files.size() + writerThreads - 1) / writerThreads;
+
+                for (int i = 0; i < files.size(); i += step)
+                {
+                    final List<File> slice = files.subList(i, Math.min(files.size(), i + step));
+
+                    tasks.add(new Callable<Object>() {
+                        public Object call()
+                            throws IOException
+                        {
+                            for (final File file : slice)
+                            {
+                                force(file);
+                            }
+
+                            return(null);
+                        }
+                    });
+                }
+
+                try
+                {
+                    for (final Future<Object> future : writers.invokeAll(tasks))
+                    {
+                        future.get();
+                    }
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while forcing content to disk.");
+                }
+                catch (final ExecutionException ee)
+                {
+                    IOException ioe = new IOException(ee.getCause().getMessage());
+                    ioe.initCause(ee.getCause());
+                    throw ioe;
+                }
+            }
+        }
+    }
+
+
+
+    /**
+     * Stream that writes straight through to the staged file, for when there are no writer threads.
+     */
+    private class SynchronousStream
+        extends OutputStream
+    {
+        private final Batch                  batch;
+        private final StagedFileOutputStream file;
+
+
+        private SynchronousStream(final Batch batch, final StagedFileOutputStream file)
+        {
+            this.batch = batch;
+            this.file  = file;
+        }
+
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            file.write(b);
+        }
+
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            file.write(b, off, len);
+        }
+
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            file.flush();
+        }
+
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            file.close();
+            batch.published(file.getDestination());
+        }
+    }
+
+
+
+    /**
+     * Stream that queues pooled buffers for the writer threads.  Buffers are written by whichever writer picks up the
+     * stream's drain task; the "scheduled" flag ensures only one writer drains a given stream at a time.
+     */
+    private class WriteBehindStream
+        extends OutputStream
+        implements Runnable
+    {
+        private final Batch                  batch;
+        private final StagedFileOutputStream file;
+        private final Queue<ByteBuffer>      queue     = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicBoolean          scheduled = new AtomicBoolean(false);
+
+        // Owned by the producing (deployment receiver) thread
+        private ByteBuffer current = null;
+        private boolean    closed  = false;
+
+        // Owned by whichever writer thread is draining the queue
+        private boolean finished = false;
+
+
+        private WriteBehindStream(final Batch batch, final StagedFileOutputStream file)
+        {
+            this.batch = batch;
+            this.file  = file;
+
+            batch.opened(this);
+        }
+
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            checkOpen();
+
+            if (current == null)
+            {
+                current = acquireBuffer();
+            }
+
+            current.put((byte)b);
+
+            if (!current.hasRemaining())
+            {
+                enqueue(current);
+                current = null;
+            }
+        }
+
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            int offset    = off;
+            int remaining = len;
+
+            checkOpen();
+
+            while (remaining > 0)
+            {
+                if (current == null)
+                {
+                    current = acquireBuffer();
+                }
+
+                int count = Math.min(remaining, current.remaining());
+
+                current.put(b, offset, count);
+                offset    += count;
+                remaining -= count;
+
+                if (!current.hasRemaining())
+                {
+                    enqueue(current);
+                    current = null;
+                }
+            }
+        }
+
+
+        /**
+         * Content is written in the background, so there's nothing to flush here - see {@link Batch#await()}.
+         *
+         * @see java.io.OutputStream#flush()
+         */
+        @Override
+        public void flush()
+            throws IOException
+        {
+            checkOpen();
+        }
+
+
+        /**
+         * Queues the file to be published once its content has been written, and returns immediately.
+         *
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+
+                if (current != null)
+                {
+                    if (current.position() > 0)
+                    {
+                        enqueue(current);
+                    }
+                    else
+                    {
+                        releaseBuffer(current);
+                    }
+
+                    current = null;
+                }
+
+                enqueue(END_OF_FILE);
+            }
+        }
+
+
+        /**
+         * Drains the queue.
+         *
+         * @see java.lang.Runnable#run()
+         */
+        public void run()
+        {
+            do
+            {
+                ByteBuffer buffer = null;
+
+                while ((buffer = queue.poll()) != null)
+                {
+                    process(buffer);
+                }
+
+                scheduled.set(false);
+            }
+            while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+
+        private void checkOpen()
+            throws IOException
+        {
+            if (closed)
+            {
+                throw new IOException("Stream closed.");
+            }
+
+            if (batch.isAbandoned())
+            {
+                Throwable cause = batch.getFailure();
+                throw new IOException(cause == null ? "Deployment cancelled." : "Unable to write deployed content: " + cause.getMessage());
+            }
+        }
+
+
+        private void enqueue(final ByteBuffer buffer)
+        {
+            queue.offer(buffer);
+
+            if (scheduled.compareAndSet(false, true))
+            {
+                try
+                {
+                    writers.execute(this);
+                }
+                catch (final RejectedExecutionException ree)
+                {
+                    // Pipeline has been shut down - drain on this thread so that the batch doesn't wait forever
+                    run();
+                }
+            }
+        }
+
+
+        private void process(final ByteBuffer buffer)
+        {
+            if (buffer == END_OF_FILE)
+            {
+                if (!finished)
+                {
+                    finished = true;
+
+                    try
+                    {
+                        if (batch.isAbandoned())
+                        {
+                            file.discard();
+                        }
+                        else
+                        {
+                            file.close();
+                            batch.published(file.getDestination());
+                        }
+                    }
+                    catch (final Throwable t)
+                    {
+                        file.discard();
+                        batch.failed(t);
+                    }
+                    finally
+                    {
+                        batch.finished(this);
+                    }
+                }
+            }
+            else
+            {
+                try
+                {
+                    if (!finished && !batch.isAbandoned())
+                    {
+                        buffer.flip();
+                        file.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    }
+                }
+                catch (final Throwable t)
+                {
+                    batch.failed(t);
+                }
+                finally
+                {
+                    releaseBuffer(buffer);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+
+/**
+ * Records the paths changed by a single deployment, and publishes them to a capped change-feed collection when the
+ * deployment commits, so that consumers of the deployed data can tail the feed (with a tailable cursor) and apply each
+ * version incrementally, rather than rescanning everything.
+ *
+ * Each committed version is published as one record (or, if it changed a very large number of paths, a run of records
+ * with increasing <code>part</code> numbers, the last of which has <code>last</code> set):
+ * <pre>
+ *   { target, store, version, previousVersion, time, part, last, deleted: [paths], upserted: [paths] }
+ * </pre>
+ * Consumers should apply a version's deletes (each of which covers the whole subtree below the path) before its
+ * upserts.  A path that was deleted, then deployed again, appears in both lists.  Because the feed is capped, old records
+ * eventually age out - a consumer that finds a gap between its last <code>version</code> and the next record's
+ * <code>previousVersion</code> needs to rescan.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class ChangeFeed
+{
+    private final static Log log = LogFactory.getLog(ChangeFeed.class);
+
+    public final static String DEFAULT_COLLECTION = "changeFeed";
+    public final static long   DEFAULT_SIZE       = 32L * 1024 * 1024;
+
+    private final static long        MAX_RECORD_BYTES = 1024L * 1024;     // Well within the document size limit, and a fraction of the feed
+    private final static int         PATH_OVERHEAD    = 16;               // Estimated per-path BSON overhead
+    private final static Set<String> created          = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final DBCollection      feed;
+    private final SortedSet<String> upserted = new TreeSet<String>();
+    private final Set<String>       deleted  = new LinkedHashSet<String>();
+
+
+
+    /**
+     * @param database       The database to publish to <i>(must not be null)</i>.
+     * @param collectionName The name of the change-feed collection <i>(must not be null, empty or blank)</i>.
+     * @param size           The size, in bytes, of the (capped) collection, if it needs to be created (0 disables the feed).
+     */
+    public ChangeFeed(final DB database, final String collectionName, final long size)
+    {
+        this.feed = size > 0 ? ensureCollection(database, collectionName, size) : null;
+    }
+
+
+    /**
+     * Creates the capped change-feed collection, if it doesn't already exist.  This only touches the server the first
+     * time it's called for each collection.
+     *
+     * @param database       The database <i>(must not be null)</i>.
+     * @param collectionName The name of the change-feed collection <i>(must not be null, empty or blank)</i>.
+     * @param size           The size, in bytes, of the (capped) collection.
+     * @return The collection <i>(will not be null)</i>.
+     */
+    public static DBCollection ensureCollection(final DB database, final String collectionName, final long size)
+    {
+        DBCollection result = database.getCollection(collectionName);
+
+        if (!created.contains(result.getFullName()))
+        {
+            if (!database.collectionExists(collectionName))
+            {
+                BasicDBObject options = new BasicDBObject();
+
+                options.put("capped", Boolean.TRUE);
+                options.put("size",   Long.valueOf(size));
+
+                try
+                {
+                    result = database.createCollection(collectionName, options);
+                    log.info("Created capped change-feed collection '" + result.getFullName() + "' (" + size + " bytes).");
+                }
+                catch (final MongoException me)
+                {
+                    // Most likely created by someone else in the meantime
+                    if (!database.collectionExists(collectionName))
+                    {
+                        throw me;
+                    }
+                }
+            }
+
+            created.add(result.getFullName());
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Notes that a file or directory has been deployed to the given path.
+     *
+     * @param path The path <i>(must not be null)</i>.
+     */
+    public synchronized void upsert(final String path)
+    {
+        upserted.add(path);
+    }
+
+
+    /**
+     * Notes that the given path (and everything below it) has been deleted.
+     *
+     * @param path The path <i>(must not be null)</i>.
+     */
+    public synchronized void delete(final String path)
+    {
+        String prefix = path.endsWith("/") ? path : path + "/";
+
+        // Anything deployed at or below the path earlier in the deployment is gone again
+        upserted.remove(path);
+        upserted.subSet(prefix, prefix + "\uffff").clear();
+        deleted.add(path);
+    }
+
+
+    /**
+     * Publishes the deployment's changes as the given version.
+     *
+     * @param storeName       The store <i>(must not be null, empty or blank)</i>.
+     * @param target          The target <i>(must not be null, empty or blank)</i>.
+     * @param previousVersion The version the deployment started from.
+     * @param version         The version the deployment committed.
+     * @return The number of records published (0 if the feed is disabled).
+     */
+    public synchronized int publish(final String storeName, final String target, final int previousVersion, final int version)
+    {
+        log.trace("ChangeFeed.publish(" + storeName + ", " + target + ", " + version + ")");
+        
+        if (feed == null)
+        {
+            return(0);
+        }
+
+        List<DBObject>   records = new ArrayList<DBObject>();
+        Date             time    = new Date();
+        Iterator<String> deletes = deleted.iterator();
+        Iterator<String> upserts = upserted.iterator();
+
+        do
+        {
+            DBObject    record        = new BasicDBObject();
+            BasicDBList recordDeletes = new BasicDBList();
+            BasicDBList recordUpserts = new BasicDBList();
+            long        bytes         = 0;
+
+            // Deletes go out first, so that a consumer applying the parts in order sees them before the upserts
+            while (deletes.hasNext() && bytes < MAX_RECORD_BYTES)
+            {
+                String path = deletes.next();
+
+                recordDeletes.add(path);
+                bytes += path.length() + PATH_OVERHEAD;
+            }
+
+            while (!deletes.hasNext() && upserts.hasNext() && bytes < MAX_RECORD_BYTES)
+            {
+                String path = upserts.next();
+
+                recordUpserts.add(path);
+                bytes += path.length() + PATH_OVERHEAD;
+            }
+
+            record.put("target",          target);
+            record.put("store",           storeName);
+            record.put("version",         Integer.valueOf(version));
+            record.put("previousVersion", Integer.valueOf(previousVersion));
+            record.put("time",            time);
+            record.put("part",            Integer.valueOf(records.size()));
+            record.put("last",            Boolean.valueOf(!deletes.hasNext() && !upserts.hasNext()));
+            record.put("deleted",         recordDeletes);
+            record.put("upserted",        recordUpserts);
+            records.add(record);
+        }
+        while (deletes.hasNext() || upserts.hasNext());
+
+        feed.insert(records);
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Published version " + version + " of target '" + target + "' (" + deleted.size() + " delete(s), " + upserted.size() + " upsert(s)) to " + feed.getFullName() + " in " + records.size() + " record(s).");
+        }
+
+        return(records.size());
+    }
+
+}
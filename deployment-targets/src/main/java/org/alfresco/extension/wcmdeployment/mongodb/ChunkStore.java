@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.alfresco.util.GUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+
+/**
+ * Stores the chunks that very large repeated elements are split into while XML is being mapped (see
+ * {@link XmlToBsonMappingOutputStream}), so that a document never grows past MongoDB's document size limit.
+ *
+ * When the values of a repeated element (an array) reach the size threshold, they're written to a chunk document
+ * straight away, and replaced in the array by a marker - a sub-document with a single <code>#chunk</code> field holding
+ * the chunk's id.  Each chunk is <code>{_id, owner, documentPath, ancestors, seq, values}</code>, where the owner is an
+ * id generated for the document being mapped, which is recorded in the document's <code>chunkOwner</code> field.  Use
+ * {@link ChunkedDocumentReader} to read a chunked document back.
+ *
+ * Chunks are written without waiting for acknowledgement - {@link #verify()} confirms, in bulk, that they're all on the
+ * server.  Chunks belonging to documents that the deployment replaced or deleted are removed once it commits, and
+ * chunks written by a deployment that aborts are removed then - in both cases only if the live collection no longer
+ * refers to them.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class ChunkStore
+{
+    private final static Log log = LogFactory.getLog(ChunkStore.class);
+
+    public final static String CHUNK_MARKER_FIELD = "#chunk";
+    public final static String OWNER_FIELD        = "chunkOwner";
+    public final static String COUNT_FIELD        = "chunkCount";
+    public final static long   DEFAULT_THRESHOLD  = 1024L * 1024;
+    public final static String COLLECTION_SUFFIX  = ".chunks";
+
+    private final static int          SWEEP_BATCH_SIZE = 1000;
+    private final static IndexManager indexes          = new IndexManager(Arrays.asList("owner,seq", "documentPath", "ancestors"));
+
+    private final DBCollection chunks;
+    private final long         threshold;
+
+    private final Set<Object> written      = Collections.synchronizedSet(new LinkedHashSet<Object>());
+    private final Set<String> sentPaths    = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final Set<String> deletedPaths = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final AtomicLong  chunkCount   = new AtomicLong();
+
+
+
+    /**
+     * @param database       The database to store chunks in <i>(must not be null)</i>.
+     * @param collectionName The name of the (live) collection the chunked documents are stored in <i>(must not be null, empty or blank)</i>.
+     * @param threshold      The size, in bytes, at which a repeated element's values are spilled into a chunk.
+     */
+    public ChunkStore(final DB database, final String collectionName, final long threshold)
+    {
+        this.chunks    = database.getCollection(collectionName + COLLECTION_SUFFIX);
+        this.threshold = Math.max(1, threshold);
+
+        ensureIndexes(database, collectionName);
+    }
+
+
+    /**
+     * Makes sure the chunk collection's indexes are in place.  This only touches the server the first time it's called
+     * for each collection.
+     *
+     * @param database       The database <i>(must not be null)</i>.
+     * @param collectionName The name of the (live) collection the chunked documents are stored in <i>(must not be null, empty or blank)</i>.
+     */
+    public static void ensureIndexes(final DB database, final String collectionName)
+    {
+        indexes.ensureIndexes(database.getCollection(collectionName + COLLECTION_SUFFIX));
+    }
+
+
+    /**
+     * @return The size, in bytes, at which a repeated element's values are spilled into a chunk.
+     */
+    public long getThreshold()
+    {
+        return(threshold);
+    }
+
+
+    /**
+     * @return A new owner id, for a document that's about to be mapped <i>(will not be null)</i>.
+     */
+    public String newOwner()
+    {
+        return(GUID.generate());
+    }
+
+
+    /**
+     * Writes a chunk.
+     *
+     * @param document The document the chunk belongs to - must have <code>path</code> and <code>ancestors</code> fields <i>(must not be null)</i>.
+     * @param owner    The owner id of the document <i>(must not be null)</i>.
+     * @param seq      The chunk's sequence number within the document.
+     * @param values   The values in the chunk <i>(must not be null)</i>.
+     * @return The marker that replaces the values in the document <i>(will not be null)</i>.
+     */
+    public DBObject write(final DBObject document, final String owner, final int seq, final BasicDBList values)
+    {
+        DBObject chunk = new BasicDBObject();
+        Object   id    = owner + ":" + seq;
+
+        chunk.put("_id",          id);
+        chunk.put("owner",        owner);
+        chunk.put("documentPath", document.get("path"));
+        chunk.put("ancestors",    document.get("ancestors"));
+        chunk.put("seq",          Integer.valueOf(seq));
+        chunk.put("values",       values);
+        chunks.insert(chunk);
+
+        written.add(owner);
+        chunkCount.incrementAndGet();
+
+        return(new BasicDBObject(CHUNK_MARKER_FIELD, id));
+    }
+
+
+    /**
+     * Notes that a document has been sent to the given path, so that any chunks of the document it replaces can be
+     * removed once the deployment commits.
+     *
+     * @param path The path <i>(must not be null)</i>.
+     */
+    public void send(final String path)
+    {
+        sentPaths.add(path);
+    }
+
+
+    /**
+     * Notes that the given path (and everything below it) has been deleted, so that its chunks can be removed once the
+     * deployment commits.
+     *
+     * @param path The deleted path <i>(must not be null)</i>.
+     */
+    public void delete(final String path)
+    {
+        deletedPaths.add(path);
+    }
+
+
+    /**
+     * Confirms that every chunk written by the deployment is on the server.
+     *
+     * @throws DeploymentException If any chunks are missing.
+     */
+    public void verify()
+        throws DeploymentException
+    {
+        log.trace("ChunkStore.verify()");
+
+        long found = 0;
+
+        for (final List<Object> owners : partition(snapshot(written)))
+        {
+            found += chunks.getCount(new BasicDBObject("owner", new BasicDBObject("$in", owners)));
+        }
+
+        if (found != chunkCount.get())
+        {
+            throw new DeploymentException("Only " + found + " of " + chunkCount.get() + " chunk(s) written to " + chunks.getFullName() + " are on the server - the server didn't apply them.");
+        }
+    }
+
+
+    /**
+     * Removes the chunks of documents replaced or deleted by the deployment.
+     *
+     * @param live The live collection, as of the commit <i>(must not be null)</i>.
+     */
+    public void commit(final DBCollection live)
+    {
+        log.trace("ChunkStore.commit(" + live.getFullName() + ")");
+
+        Set<Object> candidates = new LinkedHashSet<Object>();
+
+        for (final List<Object> paths : partition(snapshot(sentPaths)))
+        {
+            addOwners(candidates, new BasicDBObject("documentPath", new BasicDBObject("$in", paths)));
+        }
+
+        for (final List<Object> paths : partition(snapshot(deletedPaths)))
+        {
+            BasicDBList clauses = new BasicDBList();
+
+            clauses.add(new BasicDBObject("documentPath", new BasicDBObject("$in", paths)));
+            clauses.add(new BasicDBObject("ancestors",    new BasicDBObject("$in", paths)));
+            addOwners(candidates, new BasicDBObject("$or", clauses));
+        }
+
+        sweep(live, candidates);
+    }
+
+
+    /**
+     * Removes the chunks written by the deployment.
+     *
+     * @param live The live collection, after the deployment's changes have been discarded <i>(must not be null)</i>.
+     */
+    public void abort(final DBCollection live)
+    {
+        log.trace("ChunkStore.abort(" + live.getFullName() + ")");
+
+        sweep(live, snapshot(written));
+    }
+
+
+    private void addOwners(final Set<Object> owners, final DBObject query)
+    {
+        DBCursor cursor = chunks.find(query, new BasicDBObject("owner", Integer.valueOf(1)));
+
+        while (cursor.hasNext())
+        {
+            owners.add(cursor.next().get("owner"));
+        }
+    }
+
+
+    /**
+     * Removes the chunks of those of the given owners that the live collection doesn't refer to.
+     */
+    private void sweep(final DBCollection live, final Collection<Object> candidates)
+    {
+        Set<Object> unreferenced = new LinkedHashSet<Object>(candidates);
+
+        for (final List<Object> owners : partition(new ArrayList<Object>(candidates)))
+        {
+            DBCursor cursor = live.find(new BasicDBObject(OWNER_FIELD, new BasicDBObject("$in", owners)),
+                                        new BasicDBObject(OWNER_FIELD, Integer.valueOf(1)));
+
+            while (cursor.hasNext())
+            {
+                unreferenced.remove(cursor.next().get(OWNER_FIELD));
+            }
+        }
+
+        for (final List<Object> owners : partition(new ArrayList<Object>(unreferenced)))
+        {
+            chunks.remove(new BasicDBObject("owner", new BasicDBObject("$in", owners)));
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Removed the chunks of " + unreferenced.size() + " unreferenced document(s) from " + chunks.getFullName() + ".");
+        }
+    }
+
+
+    private static List<Object> snapshot(final Set<?> values)
+    {
+        synchronized(values)
+        {
+            return(new ArrayList<Object>(values));
+        }
+    }
+
+
+    private static List<List<Object>> partition(final List<Object> values)
+    {
+        List<List<Object>> result = new ArrayList<List<Object>>();
+
+        for (int i = 0; i < values.size(); i += SWEEP_BATCH_SIZE)
+        {
+            result.add(values.subList(i, Math.min(values.size(), i + SWEEP_BATCH_SIZE)));
+        }
+
+        return(result);
+    }
+
+}
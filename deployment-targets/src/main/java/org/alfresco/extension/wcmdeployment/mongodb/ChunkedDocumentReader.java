@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+
+/**
+ * Reads documents that may have been split into chunks by {@link ChunkStore}.
+ *
+ * The document itself is read with whatever projection the caller needs (so a huge array needn't be read at all if it
+ * isn't wanted), and any array in it can then be iterated with {@link #iterate(List)}, which fetches the array's chunks
+ * one at a time as the iteration reaches them - so no more than one chunk is ever held in memory, however large the
+ * array.
+ *
+ * Instances are thread safe (although the iterators they return are not).
+ *
+ * @version $Id$
+ */
+public class ChunkedDocumentReader
+{
+    private final DBCollection collection;
+    private final DBCollection chunks;
+
+
+
+    /**
+     * @param database       The database <i>(must not be null)</i>.
+     * @param collectionName The name of the collection the documents are stored in <i>(must not be null, empty or blank)</i>.
+     */
+    public ChunkedDocumentReader(final DB database, final String collectionName)
+    {
+        this.collection = database.getCollection(collectionName);
+        this.chunks     = database.getCollection(collectionName + ChunkStore.COLLECTION_SUFFIX);
+    }
+
+
+    /**
+     * @param path       The path of the document <i>(must not be null)</i>.
+     * @param projection The fields to read <i>(may be null, to read all fields)</i>.
+     * @return The document deployed at that path <i>(may be null)</i>.
+     */
+    public DBObject findOne(final String path, final DBObject projection)
+    {
+        DBObject query = new BasicDBObject("path", path);
+
+        return(projection == null ? collection.findOne(query) : collection.findOne(query, projection));
+    }
+
+
+    /**
+     * @param values An array from a document read by this reader <i>(must not be null)</i>.
+     * @return An iterator over the array's values, with any chunks read (lazily) in place of their markers <i>(will not be null)</i>.
+     */
+    public Iterator<Object> iterate(final List<?> values)
+    {
+        return(new ChunkedIterator(values.iterator()));
+    }
+
+
+    private static boolean isMarker(final Object value)
+    {
+        return(value instanceof DBObject &&
+               ((DBObject)value).containsField(ChunkStore.CHUNK_MARKER_FIELD) &&
+               ((DBObject)value).keySet().size() == 1);
+    }
+
+
+
+    /**
+     * Iterates over an array, replacing each chunk marker with the values from the chunk.
+     */
+    private final class ChunkedIterator
+        implements Iterator<Object>
+    {
+        private final Iterator<?> values;
+        private Iterator<?>       chunk = null;
+
+
+        private ChunkedIterator(final Iterator<?> values)
+        {
+            this.values = values;
+        }
+
+
+        /**
+         * @see java.util.Iterator#hasNext()
+         */
+        public boolean hasNext()
+        {
+            return((chunk != null && chunk.hasNext()) || values.hasNext());
+        }
+
+
+        /**
+         * @see java.util.Iterator#next()
+         */
+        public Object next()
+        {
+            Object result = null;
+
+            if (chunk != null && chunk.hasNext())
+            {
+                result = chunk.next();
+            }
+            else if (values.hasNext())
+            {
+                result = values.next();
+
+                if (isMarker(result))
+                {
+                    Object   id       = ((DBObject)result).get(ChunkStore.CHUNK_MARKER_FIELD);
+                    DBObject chunkDoc = chunks.findOne(new BasicDBObject("_id", id));
+
+                    if (chunkDoc == null)
+                    {
+                        throw new IllegalStateException("Chunk '" + id + "' is missing from " + chunks.getFullName() + ".");
+                    }
+
+                    chunk  = ((List<?>)chunkDoc.get("values")).iterator();
+                    result = next();    // Chunks are never empty
+                }
+            }
+            else
+            {
+                throw new NoSuchElementException();
+            }
+
+            return(result);
+        }
+
+
+        /**
+         * @see java.util.Iterator#remove()
+         */
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
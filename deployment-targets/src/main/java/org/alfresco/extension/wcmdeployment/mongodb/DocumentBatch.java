@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.alfresco.deployment.impl.DeploymentException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+
+/**
+ * Buffers the documents written (and the paths deleted) by a single deployment, and applies them to the collection in
+ * bulk.
+ *
+ * Documents replace whatever was previously deployed with the same <code>_id</code> or at the same <code>path</code>
+ * (even if that had a different GUID), and deletes are by path and remove the whole subtree below the path (via the
+ * documents' <code>ancestors</code> arrays).  A flush pipelines the whole batch over one connection: at most one
+ * <code>remove</code> (via <code>$in</code>) of the deleted subtrees and of any documents left at the batch's paths
+ * under other ids, followed by an upsert (by <code>_id</code>) of each document, and - for an acknowledged batch - a
+ * single check at the end, rather than a round trip per document.  The batch is flushed automatically whenever it
+ * reaches either the maximum number of documents (and deletes) or the maximum (estimated) size.  If the same id is
+ * added more than once before a flush, the last document wins.
+ *
+ * Each document is replaced in place by its upsert, so readers of the collection see either the old or the new version
+ * of it, never neither - unless the path has moved to a different GUID, in which case the old node's document is
+ * removed before the new one is inserted.
+ *
+ * Writes are checked according to the batch's {@link WriteConcernProfile}: with an acknowledged profile, the flush
+ * waits for the last write to satisfy the profile and then confirms (via <code>getpreverror</code>) that none of the
+ * earlier ones failed.  With the <code>unacknowledged</code> profile nothing is waited for, and {@link #verify()}
+ * instead confirms, in bulk, that every document the batch has written is actually there, and that nothing it
+ * replaced or deleted still is.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class DocumentBatch
+{
+    private final static Log log = LogFactory.getLog(DocumentBatch.class);
+
+    public final static int  DEFAULT_MAX_DOCUMENTS = 500;
+    public final static long DEFAULT_MAX_BYTES     = 4L * 1024 * 1024;
+
+    private final static int VERIFY_BATCH_SIZE = 1000;
+
+    private final DBCollection        collection;
+    private final int                 maxDocuments;
+    private final long                maxBytes;
+    private final WriteConcernProfile writeConcern;
+
+    private final Map<Object, DBObject>     pending        = new LinkedHashMap<Object, DBObject>();
+    private final Map<Object, Long>         pendingSizes   = new LinkedHashMap<Object, Long>();
+    private final Set<String>               pendingDeletes = new LinkedHashSet<String>();
+    private final SortedMap<String, Object> unverified     = new TreeMap<String, Object>();   // Path -> id of documents written but not yet confirmed
+    private final SortedSet<String>         deletedPaths   = new TreeSet<String>();           // Paths deleted but not yet confirmed
+    private long                            pendingBytes   = 0;
+    private int                             flushes        = 0;
+
+
+
+    /**
+     * @param collection   The collection to write to <i>(must not be null)</i>.
+     * @param maxDocuments The number of documents at which the batch is flushed.
+     * @param maxBytes     The estimated size, in bytes, at which the batch is flushed.
+     * @param writeConcern How the batch's writes are checked <i>(must not be null)</i>.
+     */
+    public DocumentBatch(final DBCollection collection, final int maxDocuments, final long maxBytes, final WriteConcernProfile writeConcern)
+    {
+        this.collection   = collection;
+        this.maxDocuments = Math.max(1, maxDocuments);
+        this.maxBytes     = Math.max(1, maxBytes);
+        this.writeConcern = writeConcern;
+    }
+
+
+    /**
+     * @return The collection this batch writes to <i>(will not be null)</i>.
+     */
+    public DBCollection getCollection()
+    {
+        return(collection);
+    }
+
+
+    /**
+     * Adds a document to the batch, flushing the batch if it's full.
+     *
+     * @param document      The document to upsert - must have an <code>_id</code> <i>(must not be null)</i>.
+     * @param estimatedSize The estimated size of the document, in bytes.
+     */
+    public synchronized void add(final DBObject document, final long estimatedSize)
+    {
+        Object id       = document.get("_id");
+        Long   previous = pendingSizes.put(id, Long.valueOf(estimatedSize));
+
+        if (previous != null)
+        {
+            pendingBytes -= previous.longValue();
+        }
+
+        pending.put(id, document);
+        pendingBytes += estimatedSize;
+
+        flushIfFull();
+    }
+
+
+    /**
+     * Deletes whatever is deployed at or below the given path (including any pending documents), flushing the batch if
+     * it's full.
+     *
+     * @param path The path to delete <i>(must not be null)</i>.
+     */
+    public synchronized void delete(final String path)
+    {
+        discardPath(path);
+        pendingDeletes.add(path);
+        
+        if (!unverified.isEmpty())
+        {
+            String prefix = path.endsWith("/") ? path : path + "/";
+
+            unverified.remove(path);
+            unverified.subMap(prefix, prefix + "\uffff").clear();
+        }
+        flushIfFull();
+    }
+
+
+    private void discardPath(final String path)
+    {
+        Iterator<Map.Entry<Object, DBObject>> iterator = pending.entrySet().iterator();
+
+        while (iterator.hasNext())
+        {
+            Map.Entry<Object, DBObject> entry = iterator.next();
+
+            if (isInSubtree((String)entry.getValue().get("path"), path))
+            {
+                iterator.remove();
+                pendingBytes -= pendingSizes.remove(entry.getKey()).longValue();
+            }
+        }
+    }
+
+
+    /**
+     * Writes all pending documents to the collection.
+     */
+    public synchronized void flush()
+    {
+        if (!pending.isEmpty() || !pendingDeletes.isEmpty())
+        {
+            List<Object>   ids       = new ArrayList<Object>(pending.keySet());
+            List<DBObject> documents = new ArrayList<DBObject>(pending.values());
+            List<Object>   paths     = new ArrayList<Object>(documents.size());
+            List<Object>   deletes   = new ArrayList<Object>(pendingDeletes);
+            BasicDBList    clauses   = new BasicDBList();
+
+            for (final DBObject document : documents)
+            {
+                if (document.get("path") != null)
+                {
+                    paths.add(document.get("path"));
+                }
+            }
+
+            // Documents at the batch's paths with other ids (i.e. other nodes) would break the unique path index
+            if (!paths.isEmpty())
+            {
+                clauses.add(new BasicDBObject("path", new BasicDBObject("$in", paths)).append("_id", new BasicDBObject("$nin", ids)));
+            }
+
+            if (!deletes.isEmpty())
+            {
+                clauses.add(new BasicDBObject("path",      new BasicDBObject("$in", deletes)));
+                clauses.add(new BasicDBObject("ancestors", new BasicDBObject("$in", deletes)));
+            }
+
+            if (log.isDebugEnabled())
+            {
+                log.debug("Flushing " + documents.size() + " document(s) (~" + pendingBytes + " bytes) and " + deletes.size() + " delete(s) to " + collection.getName() + ".");
+            }
+
+            DB database = collection.getDB();
+
+            // The writes are pipelined over one connection, so the server applies them in order, and (for an
+            // acknowledged batch) getlasterror and getpreverror report on them
+            database.requestStart();
+
+            try
+            {
+                if (writeConcern.isAcknowledged())
+                {
+                    database.resetError();
+                }
+
+                if (!clauses.isEmpty())
+                {
+                    collection.remove(new BasicDBObject("$or", clauses));
+                }
+
+                for (final DBObject document : documents)
+                {
+                    collection.update(new BasicDBObject("_id", document.get("_id")), document, true, false);
+                }
+
+                if (writeConcern.isAcknowledged())
+                {
+                    String what = documents.size() + " upsert(s) and " + deletes.size() + " delete(s) in " + collection.getName();
+
+                    // Waits for every write in the request, but only reports an error in the last one
+                    writeConcern.check(database, what);
+                    writeConcern.checkEarlier(database, what);
+                }
+            }
+            finally
+            {
+                database.requestDone();
+            }
+
+            if (!writeConcern.isAcknowledged())
+            {
+                for (final DBObject document : documents)
+                {
+                    if (document.get("path") != null)
+                    {
+                        unverified.put((String)document.get("path"), document.get("_id"));
+                    }
+                }
+
+                deletedPaths.addAll(pendingDeletes);
+            }
+
+            pending.clear();
+            pendingSizes.clear();
+            pendingDeletes.clear();
+            pendingBytes = 0;
+            flushes++;
+        }
+    }
+
+
+    private static boolean isInSubtree(final String path, final String root)
+    {
+        return(path != null &&
+               (path.equals(root) ||
+                path.startsWith(root.endsWith("/") ? root : root + "/")));
+    }
+
+
+    /**
+     * Flushes the batch, then confirms that every document it has written (and not since deleted) without
+     * acknowledgement is in the collection, and that no other document remains at those paths or at or below the paths
+     * it has deleted.  This is a no-op (beyond the flush) for an acknowledged batch.
+     *
+     * @throws DeploymentException If any of the documents are missing, or any removed documents are still there.
+     */
+    public synchronized void verify()
+        throws DeploymentException
+    {
+        flush();
+
+        if (!unverified.isEmpty())
+        {
+            List<Object> ids     = new ArrayList<Object>(new LinkedHashSet<Object>(unverified.values()));
+            long         missing = 0;
+
+            for (int i = 0; i < ids.size(); i += VERIFY_BATCH_SIZE)
+            {
+                List<Object> slice = ids.subList(i, Math.min(ids.size(), i + VERIFY_BATCH_SIZE));
+
+                missing += slice.size() - collection.getCount(new BasicDBObject("_id", new BasicDBObject("$in", slice)));
+            }
+
+            if (missing > 0)
+            {
+                throw new DeploymentException(missing + " of the " + ids.size() + " document(s) written to " + collection.getName() + " are missing - the server didn't apply them.");
+            }
+
+            if (log.isDebugEnabled())
+            {
+                log.debug("Verified " + ids.size() + " unacknowledged document(s) in " + collection.getName() + ".");
+            }
+        }
+
+        if (!unverified.isEmpty() || !deletedPaths.isEmpty())
+        {
+            verifyRemovals();
+        }
+
+        unverified.clear();
+        deletedPaths.clear();
+    }
+
+
+    /**
+     * Confirms that the documents replaced or deleted without acknowledgement are gone - i.e. that nothing is left at a
+     * written path but the document written there, and nothing is left at or below a deleted path but documents written
+     * there since.
+     */
+    private void verifyRemovals()
+        throws DeploymentException
+    {
+        List<String> paths     = new ArrayList<String>(unverified.keySet());
+        List<String> deletions = new ArrayList<String>(deletedPaths);
+        long         remaining = 0;
+
+        for (int i = 0; i < paths.size(); i += VERIFY_BATCH_SIZE)
+        {
+            List<String> slice = paths.subList(i, Math.min(paths.size(), i + VERIFY_BATCH_SIZE));
+            List<Object> ids   = new ArrayList<Object>(slice.size());
+
+            for (final String path : slice)
+            {
+                ids.add(unverified.get(path));
+            }
+
+            remaining += collection.getCount(new BasicDBObject("path", new BasicDBObject("$in", slice)).append("_id", new BasicDBObject("$nin", ids)));
+        }
+
+        for (int i = 0; i < deletions.size(); i += VERIFY_BATCH_SIZE)
+        {
+            List<String> slice   = deletions.subList(i, Math.min(deletions.size(), i + VERIFY_BATCH_SIZE));
+            Set<Object>  ids     = new LinkedHashSet<Object>();
+            BasicDBList  clauses = new BasicDBList();
+
+            for (final String path : slice)
+            {
+                String prefix = path.endsWith("/") ? path : path + "/";
+
+                if (unverified.containsKey(path))
+                {
+                    ids.add(unverified.get(path));
+                }
+
+                ids.addAll(unverified.subMap(prefix, prefix + "\uffff").values());
+            }
+
+            clauses.add(new BasicDBObject("path",      new BasicDBObject("$in", slice)));
+            clauses.add(new BasicDBObject("ancestors", new BasicDBObject("$in", slice)));
+
+            remaining += collection.getCount(new BasicDBObject("$or", clauses).append("_id", new BasicDBObject("$nin", new ArrayList<Object>(ids))));
+        }
+
+        if (remaining > 0)
+        {
+            throw new DeploymentException(remaining + " document(s) replaced or deleted in " + collection.getName() + " are still there - the server didn't apply the removal.");
+        }
+    }
+
+
+    private void flushIfFull()
+    {
+        if (pending.size() + pendingDeletes.size() >= maxDocuments || pendingBytes >= maxBytes)
+        {
+            flush();
+        }
+    }
+
+
+    /**
+     * Throws away all pending documents and deletes, without applying them.
+     */
+    public synchronized void discard()
+    {
+        pending.clear();
+        pendingSizes.clear();
+        pendingDeletes.clear();
+        unverified.clear();
+        deletedPaths.clear();
+        pendingBytes = 0;
+    }
+
+
+    /**
+     * @return The number of times the batch has been written to the collection.
+     */
+    public synchronized int getFlushCount()
+    {
+        return(flushes);
+    }
+
+}
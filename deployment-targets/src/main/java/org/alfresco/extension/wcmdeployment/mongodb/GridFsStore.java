@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.alfresco.extension.wcmdeployment.filesystem.FileSystemUtils;
+import org.alfresco.util.GUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+
+/**
+ * Stores the (non-XML) content sent during a single deployment in GridFS, using the standard
+ * <code>&lt;bucket&gt;.files</code> / <code>&lt;bucket&gt;.chunks</code> layout, so that any GridFS client can read it
+ * back.
+ *
+ * Content is streamed - each chunk is inserted as soon as it fills, so no more than one chunk per file is ever held in
+ * memory.  When the stream is closed the file's <code>.files</code> document is written, and the path's metadata
+ * document (the same <code>path</code> / <code>parentPath</code> document used for XML content) is added to the
+ * deployment's {@link DocumentBatch}, with its <code>gridFsId</code>, <code>length</code> and <code>contentHash</code>
+ * (SHA-1, hex encoded).
+ *
+ * Every file sent is streamed into a new GridFS file (the content can't be hashed until it has all been sent).  Once
+ * it has, its hash is compared with the <code>contentHash</code> of the metadata document already deployed at the
+ * path (one lookup per file), and if the content hasn't changed the metadata document keeps pointing at the existing
+ * GridFS file - so consumers (and caches) keyed on <code>gridFsId</code> see no change - and the new copy is removed
+ * at commit along with anything else the deployment wrote but the live collection doesn't refer to.  Whatever a
+ * changed file superseded is likewise found in bulk at commit time.
+ *
+ * Each <code>.files</code> document also carries the path's <code>ancestors</code> (in its <code>metadata</code>), so that
+ * the files below a deleted directory can be found in one indexed query.  Files superseded (i.e. files uploaded before
+ * the deployment began with the same <code>filename</code> as one it wrote) or deleted by the deployment are only
+ * removed once it commits, and files written by a deployment that aborts are removed then - in both cases only if the
+ * live collection no longer refers to them.
+ *
+ * Chunks are written without waiting for acknowledgement (which would stall the stream once per chunk) -
+ * {@link #verify()} instead confirms, in bulk, that every file and chunk written is on the server.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class GridFsStore
+{
+    private final static Log log = LogFactory.getLog(GridFsStore.class);
+
+    public final static String DEFAULT_BUCKET     = "fs";
+    public final static int    DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final static String FILE_ID_FIELD      = "gridFsId";
+    private final static String CONTENT_HASH_FIELD = "contentHash";
+    private final static int    METADATA_SIZE      = 512;     // Estimated size of a metadata document, for batching
+    private final static int    SWEEP_BATCH_SIZE   = 1000;
+
+    private final static IndexManager filesIndexes  = new IndexManager(Arrays.asList("filename", "metadata.ancestors"));
+    private final static IndexManager chunksIndexes = new IndexManager(Arrays.asList("files_id,n:unique"));
+
+    private final DBCollection files;
+    private final DBCollection chunks;
+    private final int          chunkSize;
+
+    private final Set<Object> written      = Collections.synchronizedSet(new LinkedHashSet<Object>());
+    private final Set<String> sentPaths    = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final Set<String> deletedPaths = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final AtomicLong  chunkCount   = new AtomicLong();
+    private final Date        started      = new Date();
+
+
+
+    /**
+     * @param database  The database to store files in <i>(must not be null)</i>.
+     * @param bucket    The GridFS bucket (collection prefix) <i>(must not be null, empty or blank)</i>.
+     * @param chunkSize The size of each chunk, in bytes.
+     */
+    public GridFsStore(final DB database, final String bucket, final int chunkSize)
+    {
+        this.files     = database.getCollection(bucket + ".files");
+        this.chunks    = database.getCollection(bucket + ".chunks");
+        this.chunkSize = Math.max(1, chunkSize);
+
+        ensureIndexes(database, bucket);
+    }
+
+
+    /**
+     * Makes sure the given bucket's indexes are in place.  This only touches the server the first time it's called for
+     * each bucket.
+     *
+     * @param database The database <i>(must not be null)</i>.
+     * @param bucket   The GridFS bucket (collection prefix) <i>(must not be null, empty or blank)</i>.
+     */
+    public static void ensureIndexes(final DB database, final String bucket)
+    {
+        filesIndexes.ensureIndexes(database.getCollection(bucket + ".files"));
+        chunksIndexes.ensureIndexes(database.getCollection(bucket + ".chunks"));
+    }
+
+
+    /**
+     * Opens a stream for the content of the given metadata document.
+     *
+     * @param batch    The deployment's batch, which the metadata document is added to when the stream is closed <i>(must not be null)</i>.
+     * @param document The metadata document - must have <code>_id</code> (the GUID) and <code>path</code> fields <i>(must not be null)</i>.
+     * @return The stream to write the content to <i>(will not be null)</i>.
+     */
+    public OutputStream send(final DocumentBatch batch, final DBObject document)
+    {
+        log.trace("GridFsStore.send(" + document.get("path") + ")");
+
+        return(new GridFsOutputStream(batch, document));
+    }
+
+
+    /**
+     * Notes that the given path (and everything below it) has been deleted, so that its files can be removed once the
+     * deployment commits.
+     *
+     * @param path The deleted path <i>(must not be null)</i>.
+     */
+    public void delete(final String path)
+    {
+        deletedPaths.add(path);
+    }
+
+
+    /**
+     * Confirms that every file written by the deployment, and all of their chunks, are on the server.
+     *
+     * @throws DeploymentException If anything is missing.
+     */
+    public void verify()
+        throws DeploymentException
+    {
+        log.trace("GridFsStore.verify()");
+
+        List<Object> ids;
+        long         foundFiles  = 0;
+        long         foundChunks = 0;
+
+        synchronized(written)
+        {
+            ids = new ArrayList<Object>(written);
+        }
+
+        for (final List<Object> slice : partition(ids))
+        {
+            foundFiles  += files.getCount(new BasicDBObject("_id", new BasicDBObject("$in", slice)));
+            foundChunks += chunks.getCount(new BasicDBObject("files_id", new BasicDBObject("$in", slice)));
+        }
+
+        if (foundFiles != ids.size() || foundChunks != chunkCount.get())
+        {
+            throw new DeploymentException("Only " + foundFiles + " of " + ids.size() + " file(s) and " + foundChunks + " of " + chunkCount.get() +
+                                          " chunk(s) written to " + files.getFullName() + " are on the server - the server didn't apply them.");
+        }
+    }
+
+
+    /**
+     * Removes the files superseded or deleted by the deployment.
+     *
+     * @param live The live collection, as of the commit <i>(must not be null)</i>.
+     */
+    public void commit(final DBCollection live)
+    {
+        log.trace("GridFsStore.commit(" + live.getFullName() + ")");
+
+        Set<Object> candidates = new LinkedHashSet<Object>();
+
+        // Files the deployment wrote and then superseded or deleted itself aren't referenced either
+        synchronized(written)
+        {
+            candidates.addAll(written);
+        }
+
+        synchronized(sentPaths)
+        {
+            for (final List<Object> paths : partition(new ArrayList<Object>(sentPaths)))
+            {
+                findEarlierFiles(new BasicDBObject("filename", new BasicDBObject("$in", paths)), candidates);
+            }
+        }
+
+        synchronized(deletedPaths)
+        {
+            for (final List<Object> paths : partition(new ArrayList<Object>(deletedPaths)))
+            {
+                BasicDBList clauses = new BasicDBList();
+
+                clauses.add(new BasicDBObject("filename",           new BasicDBObject("$in", paths)));
+                clauses.add(new BasicDBObject("metadata.ancestors", new BasicDBObject("$in", paths)));
+
+                findEarlierFiles(new BasicDBObject("$or", clauses), candidates);
+            }
+        }
+
+        sweep(live, candidates);
+    }
+
+
+    /**
+     * Removes the files written by the deployment.
+     *
+     * @param live The live collection, after the deployment's changes have been discarded <i>(must not be null)</i>.
+     */
+    public void abort(final DBCollection live)
+    {
+        log.trace("GridFsStore.abort(" + live.getFullName() + ")");
+
+        sweep(live, new LinkedHashSet<Object>(written));
+    }
+
+
+    /**
+     * Adds the ids of the files that match the query and were uploaded before this deployment began (so that files being
+     * written by a concurrent deployment are left alone) to the given set.
+     */
+    private void findEarlierFiles(final BasicDBObject query, final Set<Object> ids)
+    {
+        DBCursor cursor = files.find(query.append("uploadDate", new BasicDBObject("$lt", started)), new BasicDBObject("_id", Integer.valueOf(1)));
+
+        while (cursor.hasNext())
+        {
+            ids.add(cursor.next().get("_id"));
+        }
+    }
+
+
+    /**
+     * Removes those of the given files that the live collection doesn't refer to.
+     */
+    private void sweep(final DBCollection live, final Collection<Object> candidates)
+    {
+        Set<Object> unreferenced = new LinkedHashSet<Object>(candidates);
+
+        for (final List<Object> ids : partition(new ArrayList<Object>(candidates)))
+        {
+            DBCursor cursor = live.find(new BasicDBObject(FILE_ID_FIELD, new BasicDBObject("$in", ids)),
+                                        new BasicDBObject(FILE_ID_FIELD, Integer.valueOf(1)));
+
+            while (cursor.hasNext())
+            {
+                unreferenced.remove(cursor.next().get(FILE_ID_FIELD));
+            }
+        }
+
+        for (final List<Object> ids : partition(new ArrayList<Object>(unreferenced)))
+        {
+            chunks.remove(new BasicDBObject("files_id", new BasicDBObject("$in", ids)));
+            files.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Removed " + unreferenced.size() + " unreferenced file(s) from " + files.getFullName() + ".");
+        }
+    }
+
+
+    private static List<List<Object>> partition(final List<Object> values)
+    {
+        List<List<Object>> result = new ArrayList<List<Object>>();
+
+        for (int i = 0; i < values.size(); i += SWEEP_BATCH_SIZE)
+        {
+            result.add(values.subList(i, Math.min(values.size(), i + SWEEP_BATCH_SIZE)));
+        }
+
+        return(result);
+    }
+
+
+    private static MessageDigest newDigest(final String algorithm)
+    {
+        try
+        {
+            return(MessageDigest.getInstance(algorithm));
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException("JVM doesn't support " + algorithm + ".", nsae);
+        }
+    }
+
+
+    /**
+     * Streams content into chunks, then writes the file and metadata documents when closed.
+     */
+    private final class GridFsOutputStream
+        extends OutputStream
+    {
+        private final DocumentBatch batch;
+        private final DBObject      document;
+        private final Object        fileId     = GUID.generate();
+        private final MessageDigest sha1       = newDigest("SHA-1");
+        private final MessageDigest md5        = newDigest("MD5");
+        private final byte[]        singleByte = new byte[1];
+
+        private byte[]  buffer = new byte[chunkSize];
+        private int     count  = 0;
+        private int     n      = 0;
+        private long    length = 0;
+        private boolean closed = false;
+
+
+        private GridFsOutputStream(final DocumentBatch batch, final DBObject document)
+        {
+            this.batch    = batch;
+            this.document = document;
+        }
+
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            singleByte[0] = (byte)b;
+            write(singleByte, 0, 1);
+        }
+
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (closed)
+            {
+                throw new IOException("Stream closed.");
+            }
+
+            int done = 0;
+
+            while (done < len)
+            {
+                int copied = Math.min(len - done, buffer.length - count);
+
+                System.arraycopy(b, off + done, buffer, count, copied);
+                count += copied;
+                done  += copied;
+
+                if (count == buffer.length)
+                {
+                    writeChunk();
+                }
+            }
+
+            sha1.update(b, off, len);
+            md5.update(b, off, len);
+            length += len;
+        }
+
+
+        /**
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            log.trace("GridFsOutputStream.close()");
+
+            if (!closed)
+            {
+                closed = true;
+
+                if (count > 0)
+                {
+                    writeChunk();
+                }
+
+                String   hash = FileSystemUtils.toHex(sha1.digest());
+                DBObject file = new BasicDBObject();
+
+                file.put("_id",         fileId);
+                file.put("filename",    document.get("path"));
+                file.put("contentType", document.get("mimeType"));
+                file.put("length",      Long.valueOf(length));
+                file.put("chunkSize",   Integer.valueOf(chunkSize));
+                file.put("uploadDate",  new Date());
+                file.put("md5",         FileSystemUtils.toHex(md5.digest()));
+                file.put("sha1",        hash);
+                file.put("metadata",    new BasicDBObject("ancestors", document.get("ancestors")));
+                files.insert(file);
+                written.add(fileId);
+                sentPaths.add((String)document.get("path"));
+                chunkCount.addAndGet(n);
+
+                // If the content hasn't changed, keep the file that's already deployed - the new one is swept at commit
+                Object unchanged = findUnchangedFile(hash);
+
+                document.put("length",           Long.valueOf(length));
+                document.put(CONTENT_HASH_FIELD, hash);
+                document.put(FILE_ID_FIELD,      unchanged == null ? fileId : unchanged);
+                batch.add(document, METADATA_SIZE);
+            }
+        }
+
+
+        /**
+         * @return The id of the file already deployed at the path, if its content has the given hash <i>(may be null)</i>.
+         */
+        private Object findUnchangedFile(final String hash)
+        {
+            Object   result   = null;
+            DBObject deployed = batch.getCollection().findOne(new BasicDBObject("path", document.get("path")),
+                                                              new BasicDBObject(FILE_ID_FIELD, Integer.valueOf(1)).append(CONTENT_HASH_FIELD, Integer.valueOf(1)));
+
+            if (deployed != null && deployed.get(FILE_ID_FIELD) != null && hash.equals(deployed.get(CONTENT_HASH_FIELD)))
+            {
+                result = deployed.get(FILE_ID_FIELD);
+
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Content of " + document.get("path") + " is unchanged - keeping GridFS file " + result + ".");
+                }
+            }
+
+            return(result);
+        }
+
+
+        private void writeChunk()
+        {
+            DBObject chunk = new BasicDBObject();
+            byte[]   data  = buffer;
+
+            if (count < buffer.length)
+            {
+                data = new byte[count];
+                System.arraycopy(buffer, 0, data, 0, count);
+            }
+            else
+            {
+                buffer = new byte[chunkSize];   // The full buffer is handed to the driver as is, rather than copied
+            }
+
+            chunk.put("files_id", fileId);
+            chunk.put("n",        Integer.valueOf(n++));
+            chunk.put("data",     data);
+            chunks.insert(chunk);
+            count = 0;
+        }
+
+    }
+
+}
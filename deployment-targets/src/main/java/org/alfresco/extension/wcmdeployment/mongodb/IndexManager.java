@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+
+/**
+ * Creates (or verifies) the indexes described by a declarative spec, once per collection, and remembers which
+ * collections are ready so that the hot paths never need to call <code>ensureIndex</code>.
+ *
+ * Each entry in the spec is a comma separated list of (ascending) fields, optionally followed by <code>:unique</code>
+ * - for example <code>path:unique</code> or <code>parentPath,filename</code>.  Indexes are named after their fields in
+ * the same way the driver names them, and an index is considered present if an index with that name exists.  If a
+ * unique index can't be built (because the existing data has duplicates) a non-unique index is built instead.
+ *
+ * While indexes are being built, their progress (as reported by the server's current operation list) is logged
+ * periodically, and is also available from {@link #getBuildProgress(DB)}, so that a cold target can be warmed up (and
+ * monitored) before traffic arrives.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class IndexManager
+{
+    private final static Log log = LogFactory.getLog(IndexManager.class);
+
+    public final static List<String> DEFAULT_SPEC = Collections.unmodifiableList(Arrays.asList(
+        "path:unique",
+        "parentPath",
+        "ancestors",
+        "contentHash",
+        "gridFsId",
+        "chunkOwner"));
+
+    private final static String UNIQUE_SUFFIX            = ":unique";
+    private final static long   PROGRESS_INTERVAL_MILLIS = 5000;
+
+    private final List<IndexSpec> specs = new ArrayList<IndexSpec>();
+    private final Set<String>     ready = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+
+
+    /**
+     * @param spec The indexes to maintain <i>(must not be null)</i>.
+     */
+    public IndexManager(final List<String> spec)
+    {
+        for (final String entry : spec)
+        {
+            if (entry != null && entry.trim().length() > 0)
+            {
+                specs.add(new IndexSpec(entry.trim()));
+            }
+        }
+    }
+
+
+    /**
+     * Makes sure every index in the spec exists on the given collection.  This is a no-op (and doesn't touch the
+     * server) once it's been done for the collection.
+     *
+     * @param collection The collection to index <i>(must not be null)</i>.
+     */
+    public void ensureIndexes(final DBCollection collection)
+    {
+        String key = collection.getFullName();
+
+        if (!ready.contains(key))
+        {
+            synchronized(this)
+            {
+                if (!ready.contains(key))
+                {
+                    buildIndexes(collection);
+                    ready.add(key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @param collection The collection <i>(must not be null)</i>.
+     * @return True if the collection's indexes are known to be in place.
+     */
+    public boolean isReady(final DBCollection collection)
+    {
+        return(ready.contains(collection.getFullName()));
+    }
+
+
+    /**
+     * @param database Any database on the server <i>(must not be null)</i>.
+     * @return A description of each index build currently in progress on the server <i>(will not be null, but may be empty)</i>.
+     */
+    public List<String> getBuildProgress(final DB database)
+    {
+        List<String> result   = new ArrayList<String>();
+        DBObject     response = database.getSisterDB("admin").getCollection("$cmd.sys.inprog").findOne(new BasicDBObject());
+        Object       inprog   = response == null ? null : response.get("inprog");
+
+        if (inprog instanceof BasicDBList)
+        {
+            for (final Object op : (BasicDBList)inprog)
+            {
+                Object message = ((DBObject)op).get("msg");
+
+                if (message != null && String.valueOf(message).startsWith("index"))
+                {
+                    result.add(((DBObject)op).get("ns") + ": " + message);
+                }
+            }
+        }
+
+        return(result);
+    }
+
+
+    private void buildIndexes(final DBCollection collection)
+    {
+        Set<String> existing = new HashSet<String>();
+
+        for (final DBObject indexInfo : collection.getIndexInfo())
+        {
+            existing.add(String.valueOf(indexInfo.get("name")));
+        }
+
+        List<IndexSpec> missing = new ArrayList<IndexSpec>();
+
+        for (final IndexSpec spec : specs)
+        {
+            if (!existing.contains(spec.name))
+            {
+                missing.add(spec);
+            }
+        }
+
+        if (!missing.isEmpty())
+        {
+            Thread monitor = startProgressMonitor(collection);
+            long   start   = System.currentTimeMillis();
+
+            try
+            {
+                for (final IndexSpec spec : missing)
+                {
+                    log.info("Building index '" + spec.name + "' on '" + collection.getFullName() + "'.");
+
+                    if (!createIndex(collection, spec, spec.unique) && spec.unique)
+                    {
+                        log.warn("Unable to build unique index '" + spec.name + "' on '" + collection.getFullName() + "' (duplicate values?) - building a non-unique index instead.");
+                        createIndex(collection, spec, false);
+                    }
+                }
+            }
+            finally
+            {
+                monitor.interrupt();
+            }
+
+            log.info("Built " + missing.size() + " index(es) on '" + collection.getFullName() + "' in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+    }
+
+
+    /**
+     * @return True if the index was built successfully.
+     */
+    private boolean createIndex(final DBCollection collection, final IndexSpec spec, final boolean unique)
+    {
+        DBObject options = new BasicDBObject();
+
+        options.put("name", spec.name);
+
+        if (unique)
+        {
+            options.put("unique", Boolean.TRUE);
+        }
+
+        collection.ensureIndex(spec.keys, options);
+
+        // Index creation is fire-and-forget, so ask the server how it went (this also waits for the build to finish)
+        CommandResult lastError = collection.getDB().getLastError();
+        Object        error     = lastError == null ? null : lastError.get("err");
+
+        if (error != null)
+        {
+            log.debug("Index '" + spec.name + "' failed: " + error);
+        }
+
+        return(error == null);
+    }
+
+
+    /**
+     * Starts a thread that periodically logs the progress of index builds on the collection.
+     */
+    private Thread startProgressMonitor(final DBCollection collection)
+    {
+        Thread result = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    while (!Thread.currentThread().isInterrupted())
+                    {
+                        Thread.sleep(PROGRESS_INTERVAL_MILLIS);
+
+                        for (final String progress : getBuildProgress(collection.getDB()))
+                        {
+                            if (progress.startsWith(collection.getFullName()))
+                            {
+                                log.info("Index build in progress - " + progress);
+                            }
+                        }
+                    }
+                }
+                catch (final InterruptedException ie)
+                {
+                    // We're done
+                }
+                catch (final RuntimeException re)
+                {
+                    log.debug("Unable to monitor index build progress: " + re.getMessage());
+                }
+            }
+        }, "IndexManager-progress");
+
+        result.setDaemon(true);
+        result.start();
+
+        return(result);
+    }
+
+
+
+    /**
+     * A single parsed entry from the spec.
+     */
+    private final static class IndexSpec
+    {
+        private final DBObject keys   = new BasicDBObject();
+        private final String   name;
+        private final boolean  unique;
+
+
+        private IndexSpec(final String entry)
+        {
+            String        fields = entry;
+            StringBuilder name   = new StringBuilder();
+
+            this.unique = entry.endsWith(UNIQUE_SUFFIX);
+
+            if (unique)
+            {
+                fields = entry.substring(0, entry.length() - UNIQUE_SUFFIX.length());
+            }
+
+            for (final String field : fields.split(","))
+            {
+                if (name.length() > 0)
+                {
+                    name.append('_');
+                }
+
+                keys.put(field.trim(), Integer.valueOf(1));
+                name.append(field.trim()).append("_1");
+            }
+
+            this.name = name.toString();
+        }
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Rules that control how {@link XmlToBsonMappingOutputStream} maps particular elements, keyed by mime type and root
+ * element.
+ *
+ * Each rule is a whitespace separated line of the form <code>mimeType rootElement path action [fieldName]</code>, where
+ * the mime type and root element may be <code>*</code> (any), and the path is a <code>/</code> separated list of
+ * element names below the root element, any of which may be <code>*</code> (any single element).  The actions are:
+ * <ul>
+ *   <li><code>field fieldName</code> - the element is mapped to a top-level field of the document (where it can be
+ *       indexed), instead of being nested in <code>content</code></li>
+ *   <li><code>array</code> - the element always maps to an array, even if it only occurs once</li>
+ *   <li><code>skip</code> - the element (and everything in it) is left out of the document</li>
+ *   <li><code>nested</code> - the default mapping (useful to override a less specific rule)</li>
+ * </ul>
+ * For example:
+ * <pre>
+ *   text/xml  article  title          field  title
+ *   *         article  tags/tag       array
+ *   *         *        body/&#42;/script  skip
+ * </pre>
+ *
+ * The rules that apply to a given mime type and root element are compiled, the first time they're needed, into a
+ * state machine (a trie of element names), which is cached.  The mapper then moves from state to state with a single
+ * lookup per element, so the cost of mapping a document doesn't depend on the number of rules.  Where rules conflict,
+ * rules with an exact mime type beat those without, then rules with an exact root element, then later rules.  Rules
+ * with <code>*</code> steps still apply below elements that other rules name exactly (e.g. <code>body/&#42;/script
+ * skip</code> applies to <code>body/div/script</code> even if there's also a rule for <code>body/div</code>), but
+ * where an exact element name and <code>*</code> give the same element different actions, the exact name wins.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class MappingRules
+{
+    private final static Log log = LogFactory.getLog(MappingRules.class);
+
+    public final static MappingRules NONE = new MappingRules(Collections.<String>emptyList());
+
+    private final static String      WILDCARD          = "*";
+    private final static int         MAX_CACHED_STATES = 1000;
+    private final static Set<String> RESERVED_FIELDS   = new HashSet<String>(Arrays.asList(
+        "_id", "path", "parentPath", "ancestors", "filename", "mimeType", "type", "rootElement", "content", "gridFsId", "contentHash", "length",
+        ChunkStore.OWNER_FIELD, ChunkStore.COUNT_FIELD));
+
+    /**
+     * What to do with an element.
+     */
+    public enum Action { NESTED, FIELD, ARRAY, SKIP }
+
+    /**
+     * The state the mapper is in when no rule applies - it has no transitions, other than back to itself.
+     */
+    final static State DEFAULT_STATE = new State();
+
+    private final List<Rule>                   rules = new ArrayList<Rule>();
+    private final ConcurrentMap<String, State> cache = new ConcurrentHashMap<String, State>();
+
+
+
+    /**
+     * @param spec The rules, one per entry <i>(must not be null)</i>.
+     * @throws IllegalArgumentException If a rule can't be parsed.
+     */
+    public MappingRules(final List<String> spec)
+    {
+        for (final String entry : spec)
+        {
+            if (entry != null && entry.trim().length() > 0)
+            {
+                rules.add(new Rule(entry.trim()));
+            }
+        }
+    }
+
+
+    /**
+     * Returns the compiled state machine for documents of the given type and root element.
+     *
+     * @param mimeType    The mime type of the document <i>(may be null)</i>.
+     * @param rootElement The (mapped) name of the document's root element <i>(must not be null)</i>.
+     * @return The initial state <i>(will not be null)</i>.
+     */
+    State getRootState(final String mimeType, final String rootElement)
+    {
+        State result = DEFAULT_STATE;
+
+        if (!rules.isEmpty())
+        {
+            String key = mimeType + " " + rootElement;
+
+            result = cache.get(key);
+
+            if (result == null)
+            {
+                result = compile(mimeType, rootElement);
+
+                // Don't let an unbounded variety of root elements grow the cache without limit
+                if (cache.size() < MAX_CACHED_STATES)
+                {
+                    cache.putIfAbsent(key, result);
+                }
+            }
+        }
+
+        return(result);
+    }
+
+
+    private State compile(final String mimeType, final String rootElement)
+    {
+        List<Rule> matching = new ArrayList<Rule>();
+
+        for (final Rule rule : rules)
+        {
+            if (rule.matches(mimeType, rootElement))
+            {
+                matching.add(rule);
+            }
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Compiling " + matching.size() + " mapping rule(s) for " + mimeType + " documents with root element '" + rootElement + "'.");
+        }
+
+        State result = DEFAULT_STATE;
+
+        if (!matching.isEmpty())
+        {
+            result = new State();
+
+            // Stable sort, so later rules (of the same specificity) override earlier ones
+            Collections.sort(matching);
+
+            for (final Rule rule : matching)
+            {
+                State state = result;
+
+                for (final String step : rule.path)
+                {
+                    state = state.addTransition(step);
+                }
+
+                state.action    = rule.action;
+                state.fieldName = rule.fieldName;
+                state.explicit  = true;
+            }
+
+            resolveWildcards(result);
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Merges each state's wildcard branch into its exact branches (top down, so that wildcards merged into a branch are
+     * themselves resolved), so that the mapper never has to follow more than one transition per element.
+     */
+    private static void resolveWildcards(final State state)
+    {
+        if (state.wildcard != null)
+        {
+            for (final State child : state.transitions.values())
+            {
+                child.merge(state.wildcard);
+            }
+        }
+
+        for (final State child : state.transitions.values())
+        {
+            resolveWildcards(child);
+        }
+
+        if (state.wildcard != null)
+        {
+            resolveWildcards(state.wildcard);
+        }
+    }
+
+
+
+    /**
+     * A state of the compiled mapping - the action to take for the element that led to it, and the transitions for its
+     * child elements.
+     */
+    final static class State
+    {
+        private final Map<String, State> transitions = new HashMap<String, State>();
+        private State                    wildcard    = null;
+
+        Action  action    = Action.NESTED;
+        String  fieldName = null;
+        boolean explicit  = false;     // True if a rule gave this state its action
+
+
+        /**
+         * @param elementName The (mapped) name of a child element <i>(must not be null)</i>.
+         * @return The state for that child element <i>(will not be null)</i>.
+         */
+        State next(final String elementName)
+        {
+            State result = transitions.isEmpty() ? null : transitions.get(elementName);
+
+            if (result == null)
+            {
+                result = wildcard == null ? DEFAULT_STATE : wildcard;
+            }
+
+            return(result);
+        }
+
+
+        /**
+         * Copies another (less specific) state's action, where this state doesn't have one of its own, and its
+         * transitions into this state's.  The other state isn't modified, or shared.
+         */
+        private void merge(final State source)
+        {
+            if (!explicit && source.explicit)
+            {
+                action    = source.action;
+                fieldName = source.fieldName;
+                explicit  = true;
+            }
+
+            for (final Map.Entry<String, State> entry : source.transitions.entrySet())
+            {
+                addTransition(entry.getKey()).merge(entry.getValue());
+            }
+
+            if (source.wildcard != null)
+            {
+                addTransition(WILDCARD).merge(source.wildcard);
+            }
+        }
+
+
+        private State addTransition(final String step)
+        {
+            State result = WILDCARD.equals(step) ? wildcard : transitions.get(step);
+
+            if (result == null)
+            {
+                result = new State();
+
+                if (WILDCARD.equals(step))
+                {
+                    wildcard = result;
+                }
+                else
+                {
+                    transitions.put(step, result);
+                }
+            }
+
+            return(result);
+        }
+    }
+
+
+    /**
+     * A parsed rule.
+     */
+    private final static class Rule
+        implements Comparable<Rule>
+    {
+        private final String   mimeType;
+        private final String   rootElement;
+        private final String[] path;
+        private final Action   action;
+        private final String   fieldName;
+
+
+        private Rule(final String spec)
+        {
+            String[] tokens = spec.split("\\s+");
+
+            if (tokens.length < 4 || tokens.length > 5)
+            {
+                throw new IllegalArgumentException("Invalid mapping rule '" + spec + "' - expected 'mimeType rootElement path action [fieldName]'.");
+            }
+
+            try
+            {
+                action = Action.valueOf(tokens[3].toUpperCase());
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new IllegalArgumentException("Invalid action '" + tokens[3] + "' in mapping rule '" + spec + "'.", iae);
+            }
+
+            if ((action == Action.FIELD) != (tokens.length == 5))
+            {
+                throw new IllegalArgumentException("Invalid mapping rule '" + spec + "' - a field name must be given for (and only for) the 'field' action.");
+            }
+
+            mimeType    = tokens[0];
+            rootElement = WILDCARD.equals(tokens[1]) ? WILDCARD : XmlToBsonMappingOutputStream.toFieldName(null, tokens[1]);
+            fieldName   = action == Action.FIELD ? tokens[4] : null;
+
+            if (fieldName != null &&
+                (RESERVED_FIELDS.contains(fieldName) || fieldName.startsWith("$") || fieldName.indexOf('.') >= 0))
+            {
+                throw new IllegalArgumentException("Invalid field name '" + fieldName + "' in mapping rule '" + spec + "'.");
+            }
+
+            String[] steps = tokens[2].replaceAll("^/+|/+$", "").split("/+");
+
+            path = new String[steps.length];
+
+            for (int i = 0; i < steps.length; i++)
+            {
+                if (steps[i].length() == 0)
+                {
+                    throw new IllegalArgumentException("Invalid path '" + tokens[2] + "' in mapping rule '" + spec + "'.");
+                }
+
+                path[i] = WILDCARD.equals(steps[i]) ? WILDCARD : XmlToBsonMappingOutputStream.toFieldName(null, steps[i]);
+            }
+        }
+
+
+        private boolean matches(final String documentMimeType, final String documentRootElement)
+        {
+            return((WILDCARD.equals(mimeType)    || mimeType.equals(documentMimeType)) &&
+                   (WILDCARD.equals(rootElement) || rootElement.equals(documentRootElement)));
+        }
+
+
+        private int getSpecificity()
+        {
+            return((WILDCARD.equals(mimeType) ? 0 : 2) + (WILDCARD.equals(rootElement) ? 0 : 1));
+        }
+
+
+        /**
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        public int compareTo(final Rule other)
+        {
+            return(getSpecificity() - other.getSpecificity());
+        }
+    }
+
+}
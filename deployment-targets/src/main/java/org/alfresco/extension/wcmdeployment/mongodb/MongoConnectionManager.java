@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.MongoOptions;
+import com.mongodb.ServerAddress;
+
+
+/**
+ * Owns the (pooled) connection to a MongoDB server, and a cache of the database handles obtained from it.
+ *
+ * Managers are shared - every target that asks for the same server with the same pool settings gets the same instance
+ * (see {@link #getInstance(String, int, MongoOptions)}), and so the same connection pool.  The connection is made lazily,
+ * the first time it's needed (or in the background, via {@link #warmUp()}), so that startup never waits on the server.
+ *
+ * Database handles are cached by store and user, and are only authenticated the first time they're obtained (or when a
+ * different password is presented), rather than on every deployment.
+ *
+ * Instances are thread safe.
+ *
+ * @version $Id$
+ */
+public class MongoConnectionManager
+{
+    private final static Log log = LogFactory.getLog(MongoConnectionManager.class);
+
+    public final static int DEFAULT_CONNECTIONS_PER_HOST   = 10;
+    public final static int DEFAULT_WAIT_QUEUE_MULTIPLIER  = 5;
+    public final static int DEFAULT_MAX_WAIT_TIME_MILLIS   = 120000;
+    public final static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public final static int DEFAULT_SOCKET_TIMEOUT_MILLIS  = 0;       // No timeout
+
+    private final static ConcurrentMap<String, MongoConnectionManager> instances = new ConcurrentHashMap<String, MongoConnectionManager>();
+
+    private final String       hostname;
+    private final int          port;
+    private final MongoOptions options;
+
+    private final ConcurrentMap<String, DatabaseHandle> handles = new ConcurrentHashMap<String, DatabaseHandle>();
+
+    private volatile Mongo mongo = null;
+
+
+
+    private MongoConnectionManager(final String hostname, final int port, final MongoOptions options)
+    {
+        this.hostname = hostname;
+        this.port     = port;
+        this.options  = options;
+    }
+
+
+    /**
+     * Returns the shared manager for the given server and pool settings, creating it (but not connecting) if necessary.
+     *
+     * @param hostname The server's hostname <i>(must not be null, empty or blank)</i>.
+     * @param port     The server's port.
+     * @param options  The pool settings <i>(must not be null)</i>.
+     * @return The manager <i>(will not be null)</i>.
+     */
+    public static MongoConnectionManager getInstance(final String hostname, final int port, final MongoOptions options)
+    {
+        String                 key    = hostname + ":" + port + "?" + describe(options);
+        MongoConnectionManager result = instances.get(key);
+
+        if (result == null)
+        {
+            MongoConnectionManager created = new MongoConnectionManager(hostname, port, options);
+
+            result = instances.putIfAbsent(key, created);
+
+            if (result == null)
+            {
+                result = created;
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @param connectionsPerHost    The maximum number of pooled connections.
+     * @param waitQueueMultiplier   The number of threads (as a multiple of the pool size) that may wait for a connection.
+     * @param maxWaitTimeMillis     How long a thread may wait for a connection.
+     * @param connectTimeoutMillis  How long to wait for a connection to be established (0 = forever).
+     * @param socketTimeoutMillis   How long to wait for a response on an established connection (0 = forever).
+     * @return Pool settings with the given values <i>(will not be null)</i>.
+     */
+    public static MongoOptions newOptions(final int connectionsPerHost,
+                                          final int waitQueueMultiplier,
+                                          final int maxWaitTimeMillis,
+                                          final int connectTimeoutMillis,
+                                          final int socketTimeoutMillis)
+    {
+        MongoOptions result = new MongoOptions();
+
+        result.connectionsPerHost                           = connectionsPerHost;
+        result.threadsAllowedToBlockForConnectionMultiplier = waitQueueMultiplier;
+        result.maxWaitTime                                  = maxWaitTimeMillis;
+        result.connectTimeout                               = connectTimeoutMillis;
+        result.socketTimeout                                = socketTimeoutMillis;
+        result.autoConnectRetry                             = true;
+
+        return(result);
+    }
+
+
+    /**
+     * @return The connection, which is made if it hasn't been already <i>(will not be null)</i>.
+     * @throws DeploymentException If the server can't be reached.
+     */
+    public Mongo getMongo()
+        throws DeploymentException
+    {
+        Mongo result = mongo;
+
+        if (result == null)
+        {
+            synchronized(this)
+            {
+                result = mongo;
+
+                if (result == null)
+                {
+                    try
+                    {
+                        result = new Mongo(new ServerAddress(hostname, port), options);
+                        mongo  = result;
+                    }
+                    catch (final UnknownHostException uhe)
+                    {
+                        throw new DeploymentException("Unable to connect to MongoDB server at: " + hostname + ":" + String.valueOf(port), uhe);
+                    }
+                    catch (final MongoException me)
+                    {
+                        throw new DeploymentException("Unable to connect to MongoDB server at: " + hostname + ":" + String.valueOf(port), me);
+                    }
+
+                    log.info("Connected to MongoDB server at " + hostname + ":" + port + " (" + describe(options) + ").");
+                }
+            }
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Connects (if that hasn't happened already) and makes sure the server is responding.
+     *
+     * @throws DeploymentException If the server can't be reached.
+     */
+    public void warmUp()
+        throws DeploymentException
+    {
+        log.trace("MongoConnectionManager.warmUp()");
+
+        CommandResult result = getMongo().getDB("admin").command(new BasicDBObject("ping", Integer.valueOf(1)));
+
+        if (!result.ok())
+        {
+            throw new DeploymentException("MongoDB server at " + hostname + ":" + port + " didn't respond to a ping: " + result.get("errmsg"));
+        }
+    }
+
+
+    /**
+     * @param storeName The store (database name) <i>(must not be null, empty or blank)</i>.
+     * @return An unauthenticated handle for the store's database <i>(will not be null)</i>.
+     */
+    public DB getDatabase(final String storeName)
+    {
+        return(getMongo().getDB(storeName));
+    }
+
+
+    /**
+     * Returns the (cached) handle for the store's database, authenticated as the given user.  The server is only asked
+     * to authenticate the first time a store and user are seen, or if the password differs from last time.
+     *
+     * @param storeName The store (database name) <i>(must not be null, empty or blank)</i>.
+     * @param user      The user to authenticate as <i>(must not be null, empty or blank)</i>.
+     * @param password  The user's password <i>(may be null)</i>.
+     * @return The authenticated handle <i>(will not be null)</i>.
+     * @throws DeploymentException If authentication fails.
+     */
+    public DB getDatabase(final String storeName, final String user, final char[] password)
+        throws DeploymentException
+    {
+        String         key      = storeName + "/" + user;
+        byte[]         digest   = digest(password);
+        DatabaseHandle existing = handles.get(key);
+        DB             result   = null;
+
+        if (existing != null && MessageDigest.isEqual(existing.passwordDigest, digest))
+        {
+            result = existing.database;
+        }
+        else
+        {
+            result = getMongo().getDB(storeName);
+
+            if (!result.authenticate(user, password == null ? new char[0] : password))
+            {
+                handles.remove(key);
+                throw new DeploymentException("Unable to authenticate with MongoDB database '" + storeName + "' as '" + user + "'.");
+            }
+
+            handles.put(key, new DatabaseHandle(result, digest));
+        }
+
+        return(result);
+    }
+
+
+    private static byte[] digest(final char[] password)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            if (password != null)
+            {
+                for (final char c : password)
+                {
+                    digest.update((byte)(c >> 8));
+                    digest.update((byte)c);
+                }
+            }
+
+            return(digest.digest());
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException("JVM doesn't support SHA-1.", nsae);
+        }
+    }
+
+
+    private static String describe(final MongoOptions options)
+    {
+        return("connectionsPerHost=" + options.connectionsPerHost +
+               ", waitQueueMultiplier=" + options.threadsAllowedToBlockForConnectionMultiplier +
+               ", maxWaitTime=" + options.maxWaitTime +
+               ", connectTimeout=" + options.connectTimeout +
+               ", socketTimeout=" + options.socketTimeout);
+    }
+
+
+    /**
+     * An authenticated database handle, along with a digest of the password it was authenticated with.
+     */
+    private final static class DatabaseHandle
+    {
+        private final DB     database;
+        private final byte[] passwordDigest;
+
+        private DatabaseHandle(final DB database, final byte[] passwordDigest)
+        {
+            this.database       = database;
+            this.passwordDigest = passwordDigest;
+        }
+    }
+
+}
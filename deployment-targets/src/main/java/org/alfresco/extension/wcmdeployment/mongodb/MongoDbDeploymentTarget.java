@@ -28,9 +28,9 @@ package org.alfresco.extension.wcmdeployment.mongodb;
 import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,21 +41,75 @@ import org.alfresco.deployment.DeploymentTarget;
 import org.alfresco.deployment.FileDescriptor;
 import org.alfresco.deployment.FileType;
 import org.alfresco.deployment.impl.DeploymentException;
+import org.alfresco.extension.wcmdeployment.DeploymentSession;
 import org.alfresco.extension.wcmdeployment.NoopOutputStream;
+import org.alfresco.extension.wcmdeployment.SessionExpiryService;
+import org.alfresco.extension.wcmdeployment.SessionOutputStream;
 import org.alfresco.util.GUID;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.Mongo;
 
 
 /**
- * ####TODO: Add description
+ * DeploymentTarget that maps deployed XML files into documents in a MongoDB database (one database per store).
+ * How particular XML elements are mapped (e.g. promoted to top-level, indexable fields) can be configured per mime type
+ * and root element with <code>mappingRules</code> (see {@link MappingRules}).  Everything else is streamed into GridFS
+ * (see {@link GridFsStore}), with a metadata document in the same collection - a redeployed file whose content hasn't
+ * changed keeps its existing GridFS file.  Repeated XML elements whose values grow past <code>chunkThreshold</code>
+ * bytes are split off into chunk documents as they're parsed (see {@link ChunkStore} and
+ * {@link ChunkedDocumentReader}), so that very large XML files don't exceed MongoDB's document size limit.
+ *
+ * Directories are stored as placeholder documents (<code>type</code> <code>dir</code>), so listings include them.  Every
+ * document carries its materialized <code>path</code> and an (indexed) <code>ancestors</code> array of the paths of all
+ * the directories above it, so that a whole subtree can be deleted (or counted) with a single indexed query, however
+ * many documents it contains.  Documents deployed by earlier releases, which lack <code>ancestors</code>, are given them
+ * the first time their store is used.
+ *
+ * Documents (and deletes) are buffered per deployment and applied in bulk (see {@link DocumentBatch}), in batches of up
+ * to <code>batchMaxDocuments</code> documents or <code>batchMaxBytes</code> bytes, with a final flush at prepare/commit.
+ * Each document is upserted in place, so even when deploying straight into the live collection, readers see either the
+ * old or the new version of a page, never neither - although they do see a deployment's changes appear one by one,
+ * which only <code>blueGreen</code> mode (below) avoids.
+ *
+ * In <code>blueGreen</code> mode each deployment works on a private shadow copy of the live collection (made at begin),
+ * which commit then renames over the live collection in one step, so readers never see a partially deployed site and
+ * deployment writes don't contend with reads of the live collection.  Abort simply drops the shadow.  The price is a
+ * full copy of the collection per deployment.
+ *
+ * Indexes are described declaratively (<code>indexSpec</code>) and created or verified by an {@link IndexManager} the
+ * first time each store is deployed to (or at startup, in the background, for the stores listed in
+ * <code>warmUpStores</code>), rather than on every query.
+ *
+ * Writes are checked per phase: while content is being sent they're made with the (cheap) <code>sendWriteConcern</code>
+ * - by default unacknowledged - and prepare and commit then act as a barrier that confirms every write the deployment
+ * made is on the server, and that it's durable according to the <code>commitWriteConcern</code> (by default
+ * journaled), before the version number is moved on.
+ *
+ * Each target's current version is kept in a <code>version:&lt;target&gt;</code> document in the
+ * <code>deploymentSystem</code> collection, and cached, so asking for it doesn't cost a round trip.  Commit moves the
+ * version on with an atomic compare-and-set (<code>findandmodify</code>), so a deployment that commits against a
+ * version that someone else has since moved on fails, rather than silently overwriting it.
+ *
+ * Each committed version is also published, as the list of paths it deleted and upserted, to a capped
+ * <code>changeFeed</code> collection (see {@link ChangeFeed}) that consumers can tail, rather than rescanning the
+ * deployed data to find out what changed.
+ *
+ * Connections come from a pool that's shared by every target configured for the same server (see
+ * {@link MongoConnectionManager}).  The connection is made lazily - in the background at startup, or by the first
+ * deployment if that comes first - and authenticated database handles are cached, so a deployment doesn't pay for a
+ * fresh authentication.
+ *
+ * Deployments that are left idle for longer than <code>sessionTimeoutMillis</code> (e.g. because the authoring side
+ * died mid-deployment) are aborted by a {@link SessionExpiryService}, which drops their shadow collection (in
+ * <code>blueGreen</code> mode) and removes whatever GridFS files and chunks they'd written.
  *
  * @author Peter Monks (peter.monks@alfresco.com)
  * @version $Id$
@@ -67,13 +121,46 @@ public class MongoDbDeploymentTarget
     
     private final static String DEFAULT_MONGO_DB_HOSTNAME = "localhost";
     private final static int    DEFAULT_MONGO_DB_PORT     = 27017;
+    private final static String DEPLOYED_DATA_COLLECTION  = "deployedData";
+    private final static String SYSTEM_COLLECTION         = "deploymentSystem";
+    private final static String VERSION_ID_PREFIX         = "version:";
+    private final static String LEGACY_VERSION_ID         = "version";     // Shared by all targets, prior to per-target version documents
+    private final static String SHADOW_COLLECTION_PREFIX  = DEPLOYED_DATA_COLLECTION + ".shadow.";
+    private final static String DIRECTORY_TYPE            = "dir";
+    private final static int    DIRECTORY_SIZE            = 256;  // Estimated size of a directory placeholder, for batching
+    private final static long   DEFAULT_SESSION_TIMEOUT   = 60L * 60 * 1000;
+    
+    private boolean authenticate         = false;
+    private boolean blueGreen            = false;
+    private String  hostname             = DEFAULT_MONGO_DB_HOSTNAME;
+    private int     port                 = DEFAULT_MONGO_DB_PORT;
+    private int     connectionsPerHost   = MongoConnectionManager.DEFAULT_CONNECTIONS_PER_HOST;
+    private int     waitQueueMultiplier  = MongoConnectionManager.DEFAULT_WAIT_QUEUE_MULTIPLIER;
+    private int     maxWaitTimeMillis    = MongoConnectionManager.DEFAULT_MAX_WAIT_TIME_MILLIS;
+    private int     connectTimeoutMillis = MongoConnectionManager.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int     socketTimeoutMillis  = MongoConnectionManager.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    private int     batchMaxDocuments    = DocumentBatch.DEFAULT_MAX_DOCUMENTS;
+    private long    batchMaxBytes        = DocumentBatch.DEFAULT_MAX_BYTES;
+    private String  gridFsBucket         = GridFsStore.DEFAULT_BUCKET;
+    private int     gridFsChunkSize      = GridFsStore.DEFAULT_CHUNK_SIZE;
+    private long    chunkThreshold       = ChunkStore.DEFAULT_THRESHOLD;
+    private long    changeFeedSize       = ChangeFeed.DEFAULT_SIZE;
+    private long    sessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT;
     
-    private boolean authenticate = false;
-    private String  hostname     = DEFAULT_MONGO_DB_HOSTNAME;
-    private int     port         = DEFAULT_MONGO_DB_PORT;
+    private WriteConcernProfile sendWriteConcern   = WriteConcernProfile.UNACKNOWLEDGED;
+    private WriteConcernProfile commitWriteConcern = WriteConcernProfile.JOURNALED;
     
-    private Mongo                                      mongo       = null;
-    private ConcurrentMap<String, Map<String, Object>> deployments = null;
+    private List<String> indexSpec    = IndexManager.DEFAULT_SPEC;
+    private List<String> warmUpStores = Collections.emptyList();
+    private MappingRules mappingRules = MappingRules.NONE;
+    
+    private MongoConnectionManager         connections   = null;
+    private IndexManager                   indexManager  = null;
+    private SessionExpiryService           expiryService = null;
+    private boolean                        sharedExpiry  = false;
+    private ConcurrentMap<String, Session> deployments   = null;
+    private ConcurrentMap<String, Integer> versions      = null;
+    private Set<String>                    migrated      = null;
 
     
     
@@ -81,17 +168,85 @@ public class MongoDbDeploymentTarget
     {
         log.trace("MongoDbDeploymentTarget.init()");
         
-        try
+        // Note: this doesn't connect - that happens in the background (below), or on first use
+        connections  = MongoConnectionManager.getInstance(hostname, port, MongoConnectionManager.newOptions(connectionsPerHost,
+                                                                                                            waitQueueMultiplier,
+                                                                                                            maxWaitTimeMillis,
+                                                                                                            connectTimeoutMillis,
+                                                                                                            socketTimeoutMillis));
+        indexManager = new IndexManager(indexSpec);
+        deployments  = new ConcurrentHashMap<String, Session>();
+        versions     = new ConcurrentHashMap<String, Integer>();
+        migrated     = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        
+        if (expiryService == null)
         {
-            mongo = new Mongo(hostname, port);
+            expiryService = SessionExpiryService.getDefaultInstance();
+            sharedExpiry  = true;
         }
-        catch (UnknownHostException uhe)
+        
+        Thread warmer = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    connections.warmUp();
+                }
+                catch (final RuntimeException re)
+                {
+                    log.warn("Unable to connect to MongoDB server at " + hostname + ":" + port + " - will retry on first use.", re);
+                    return;
+                }
+                
+                for (final String storeName : warmUpStores)
+                {
+                    try
+                    {
+                        warmUp(storeName);
+                    }
+                    catch (final RuntimeException re)
+                    {
+                        log.warn("Unable to warm up store '" + storeName + "'.", re);
+                    }
+                }
+            }
+        }, "MongoDbDeploymentTarget-warmUp");
+        
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+    
+    
+    /**
+     * Aborts any deployments still in progress and releases the shared {@link SessionExpiryService} (one set via
+     * <code>sessionExpiryService</code> is left running for its owner to shut down).  Configure this as the bean's
+     * <code>destroy-method</code>.
+     */
+    public void destroy()
+    {
+        log.trace("MongoDbDeploymentTarget.destroy()");
+        
+        if (deployments != null)
         {
-            // Tra-lala-lala I hate checked exceptions...
-            throw new DeploymentException("Unable to connect to MongoDB server at: " + hostname + ":" + String.valueOf(port), uhe);
+            for (final String ticket : deployments.keySet())
+            {
+                try
+                {
+                    abort(ticket);
+                }
+                catch (final RuntimeException re)
+                {
+                    log.warn("Unable to abort deployment " + ticket + " during shutdown.", re);
+                }
+            }
         }
         
-        deployments = new ConcurrentHashMap<String, Map<String, Object>>();
+        if (sharedExpiry)
+        {
+            SessionExpiryService.releaseDefaultInstance();
+            expiryService = null;
+            sharedExpiry  = false;
+        }
     }
     
     
@@ -107,29 +262,39 @@ public class MongoDbDeploymentTarget
         log.trace("MongoDbDeploymentTarget.begin(" + target + ", " + storeName + ", " + version + ")");
         String result = GUID.generate();
         
-        DB database = mongo.getDB(storeName);        // We use the target name as the Mongo database name
+        DB database = null;          // We use the store name as the Mongo database name
         
         if (authenticate && user != null && user.trim().length() > 0)
         {
-            if (!database.authenticate(user, password))
-            {
-                throw new RuntimeException("Unable to authenticate with MongoDB database '" + target + "'.");
-            }
+            database = connections.getDatabase(storeName, user, password);
+        }
+        else
+        {
+            database = connections.getDatabase(storeName);
         }
         
-        Map<String, Object> deploymentState = new HashMap<String, Object>();
+        indexManager.ensureIndexes(database.getCollection(DEPLOYED_DATA_COLLECTION));
+        migrateLegacyDocuments(storeName, database);
         
-        deploymentState.put("target",   target);
-        deploymentState.put("store",    storeName);
-        deploymentState.put("version",  Integer.valueOf(version));
-        deploymentState.put("database", database);
+        Session session = new Session(result, target, storeName, version, getCurrentVersion(target, storeName), database,
+                                      new DocumentBatch(blueGreen ? createShadowCollection(database, result) :
+                                                                    database.getCollection(DEPLOYED_DATA_COLLECTION),
+                                                        batchMaxDocuments, batchMaxBytes, sendWriteConcern),
+                                      new GridFsStore(database, gridFsBucket, gridFsChunkSize),
+                                      new ChunkStore(database, DEPLOYED_DATA_COLLECTION, chunkThreshold),
+                                      new ChangeFeed(database, ChangeFeed.DEFAULT_COLLECTION, changeFeedSize));
 
-        if (deployments.putIfAbsent(result, deploymentState) != null)
+        if (deployments.putIfAbsent(result, session) != null)
         {
             throw new IllegalStateException("A deployment to this target is already in progress.");
         }
         
-        database.requestStart();
+        expiryService.register(session, sessionTimeoutMillis, new SessionExpiryService.Reaper() {
+            public void reap(final DeploymentSession expired)
+            {
+                abort(expired.getTicket());
+            }
+        });
         
         return(result);
     }
@@ -143,7 +308,11 @@ public class MongoDbDeploymentTarget
     {
         log.trace("MongoDbDeploymentTarget.prepare(" + ticket + ")");
         
-        // Note: MongoDB isn't transactional, so this is a NO-OP
+        // Note: MongoDB isn't transactional, so all we can do is make sure everything's been written (durably)
+        Session session = getSession(ticket);
+        
+        barrier(session);
+        session.prepare();
     }
 
 
@@ -159,9 +328,7 @@ public class MongoDbDeploymentTarget
     {
         log.trace("MongoDbDeploymentTarget.createDirectory(" + ticket + ", " + path + ")");
         
-        //####TODO!!!!
-        //####NOTE: may need to be stored anyway (as some kind of placeholder document), to ensure getListing works as authoring expects
-        // NO-OP - we don't need the concept of directories in MongoDB
+        addDirectory(getSession(ticket), path, guid);
     }
 
 
@@ -173,13 +340,13 @@ public class MongoDbDeploymentTarget
     {
         log.trace("MongoDbDeploymentTarget.delete(" + ticket + ", " + path + ")");
         
-        DBCollection collection = getCollection(ticket);
-        DBObject     document   = findByPath(collection, path);
+        // Deletes are batched along with the upserts, and take the whole subtree with them (any GridFS content is removed once the deployment commits)
+        Session session = getSession(ticket);
         
-        if (document != null)
-        {
-            collection.remove(document);
-        }
+        session.getBatch().delete(path);
+        session.getGridFs().delete(path);
+        session.getChunks().delete(path);
+        session.getChanges().delete(path);
     }
 
 
@@ -189,24 +356,17 @@ public class MongoDbDeploymentTarget
     public int getCurrentVersion(final String target, final String storeName)
     {
         log.trace("MongoDbDeploymentTarget.getCurrentVersion(" + target + ", " + storeName + ")");
-        int result = 0;
         
-        DB       database          = mongo.getDB(storeName);
-        DBObject currentVersionDoc = findOrCreateVersionDoc(database);
-        Object   currentVersion    = currentVersionDoc.get(target);
+        String  key    = storeName + "/" + target;
+        Integer result = versions.get(key);
         
-        try
-        {
-            result = Integer.valueOf(String.valueOf(currentVersion));
-        }
-        catch (NumberFormatException nfe)
+        if (result == null)
         {
-            log.warn("Unable to parse version '" + String.valueOf(currentVersion) + "' from current version document.  Ignoring and resetting version to 0.");
-            result = 0;
-            setVersion(database, result);
+            result = Integer.valueOf(readVersion(connections.getDatabase(storeName), target));
+            versions.putIfAbsent(key, result);
         }
         
-        return(result);
+        return(result.intValue());
     }
     
     
@@ -218,19 +378,22 @@ public class MongoDbDeploymentTarget
     {
         log.trace("MongoDbDeploymentTarget.getListing(" + ticket + ", " + parentPath + ")");
         
+        Session              session         = getSession(ticket);
         List<FileDescriptor> result          = new ArrayList<FileDescriptor>();
-        DBCollection         collection      = getCollection(ticket);
+        DBCollection         collection      = getCollection(session);
         DBObject             parentPathQuery = new BasicDBObject();
         DBCursor             cursor          = null; 
         
-        collection.ensureIndex("parentPath");   // Make sure we index parentPath, so that listings are efficient
+        session.getBatch().flush();             // Make sure the listing includes everything sent so far
         parentPathQuery.put("parentPath", parentPath);
         cursor = collection.find(parentPathQuery);
         
         while (cursor.hasNext())
         {
             DBObject document = cursor.next();
-            result.add(new FileDescriptor((String)document.get("path"), FileType.FILE, (String)document.get("_id")));
+            FileType type     = DIRECTORY_TYPE.equals(document.get("type")) ? FileType.DIR : FileType.FILE;
+            
+            result.add(new FileDescriptor((String)document.get("path"), type, (String)document.get("_id")));
         }
         
         return(result);
@@ -251,26 +414,27 @@ public class MongoDbDeploymentTarget
     {
         log.trace("MongoDbDeploymentTarget.send(" + ticket + ", " + path + ")");
         
-        OutputStream result = null;
+        Session      session  = getSession(ticket);
+        OutputStream result   = null;
+        DBObject     document = newDocument(path, guid);
+        
+        document.put("mimeType", mimeType);
+        session.getChunks().send(path);     // So any chunks of what it replaces are removed at commit
+        session.getChanges().upsert(path);
         
         if (mimeType.equals("text/xml") ||
             mimeType.equals("application/xml") ||
             mimeType.endsWith("+xml"))
         {
-            DBCollection collection = getCollection(ticket);
-            DBObject     document   = new BasicDBObject();
-            
-            document.put("_id",        guid);
-            document.put("path",       path);
-            document.put("parentPath", getParentPath(path));
-            document.put("filename",   getFileName(path));
-            document.put("mimeType",   mimeType);
-
             // We use a BufferedOutputStream here since using the XmlToBsonMappingOutputStream results in "read end dead" IOExceptions. ####TODO: Get to the bottom of this...
-            result = new BufferedOutputStream(new XmlToBsonMappingOutputStream(collection, document));
+            result = new BufferedOutputStream(new XmlToBsonMappingOutputStream(session.getBatch(), document, mappingRules, session.getChunks()));
+        }
+        else
+        {
+            result = session.getGridFs().send(session.getBatch(), document);
         }
         
-        return(result);
+        return(new SessionOutputStream(session, result));
     }
 
 
@@ -284,31 +448,83 @@ public class MongoDbDeploymentTarget
                                 final Map<String, Serializable> properties)
         throws DeploymentException
     {
-        log.trace("MongoDbDeploymentTarget.updateDirectory()");
+        log.trace("MongoDbDeploymentTarget.updateDirectory(" + ticket + ", " + path + ")");
 
-        //####TODO!!!!
-        // NO-OP - we don't need the concept of directories in MongoDB
+        // The placeholder simply replaces the existing one (the directory's contents are untouched)
+        addDirectory(getSession(ticket), path, guid);
     }
 
     
     /**
      * @see org.alfresco.deployment.DeploymentTarget#commit(java.lang.String)
+     * @throws DeploymentException If the deployment isn't in progress (e.g. it's already been committed, aborted or
+     *                             expired) or is already being committed, or if the commit fails.
      */
     public void commit(final String ticket)
+        throws DeploymentException
     {
         log.trace("MongoDbDeploymentTarget.commit(" + ticket + ")");
         
-        // Update the version number then clear out the transient deployment state
-        DB database = getDatabase(ticket);
+        // Write any pending documents, update the version number then clear out the transient deployment state
+        Session session = getSession(ticket);
+        
+        if (!session.beginCommit())   // Only one of any concurrent commits and aborts gets past here
+        {
+            throw new DeploymentException("Deployment " + session + " can't be committed - it's already being committed, or has finished.");
+        }
+        
+        DB     database = session.getDatabase();
+        String target   = session.getTarget();
+        int    previous = session.getPreviousVersion();
+        int    version  = session.getVersion();
         
-        setVersion(database, getVersion(ticket));
-        database.requestDone();
-        deployments.remove(ticket);
+        try
+        {
+            barrier(session);
+            
+            // The version is moved on first, so that a deployment that's lost the race doesn't get swapped in
+            compareAndSetVersion(database, session.getStore(), target, previous, version);
+        }
+        catch (final RuntimeException re)
+        {
+            session.commitFailed();
+            throw re;
+        }
+        
+        if (blueGreen)
+        {
+            try
+            {
+                swapIn(database, session.getBatch().getCollection());
+            }
+            catch (final RuntimeException re)
+            {
+                compareAndSetVersion(database, session.getStore(), target, version, previous);
+                session.commitFailed();
+                throw re;
+            }
+        }
+        
+        // The deployment is live from here on, so it can no longer be aborted
+        session.committed();
+        
+        try
+        {
+            publishChanges(session, previous, version);
+            session.getGridFs().commit(database.getCollection(DEPLOYED_DATA_COLLECTION));
+            session.getChunks().commit(database.getCollection(DEPLOYED_DATA_COLLECTION));
+        }
+        finally
+        {
+            deployments.remove(ticket, session);
+            expiryService.cancel(session);
+        }
     }
 
 
     /**
-     * MongoDB isn't transactional, so this is effectively a NO-OP.
+     * MongoDB isn't transactional, so this is effectively a NO-OP (unless in blue/green mode, in which case the shadow
+     * collection is dropped).
      * 
      * @see org.alfresco.deployment.DeploymentTarget#abort(java.lang.String)
      */
@@ -317,14 +533,85 @@ public class MongoDbDeploymentTarget
         log.trace("MongoDbDeploymentTarget.abort(" + ticket + ")");
         
         // Clear out the transient deployment state
-        if (deployments.containsKey(ticket))   // WARNING WARNING WARNING: Not thread safe
+        Session session = deployments.get(ticket);
+        
+        if (session != null && session.abort())   // Only one of any concurrent commits and aborts gets past here
         {
-            getDatabase(ticket).requestDone();
-            deployments.remove(ticket);
+            DBCollection live = session.getDatabase().getCollection(DEPLOYED_DATA_COLLECTION);
+            
+            try
+            {
+                session.getBatch().discard();
+                
+                if (blueGreen)
+                {
+                    session.getBatch().getCollection().drop();
+                }
+                
+                session.getGridFs().abort(live);
+                session.getChunks().abort(live);
+            }
+            finally
+            {
+                deployments.remove(ticket, session);
+                expiryService.cancel(session);
+            }
+        }
+        else if (session != null && log.isDebugEnabled())
+        {
+            log.debug("Not aborting deployment " + session + " - it's already being committed, or has finished.");
         }
     }
 
 
+    /**
+     * Makes sure the given store's indexes are in place, building them if necessary (which may take some time for a
+     * large, unindexed collection - see {@link #getIndexBuildProgress()}).
+     * 
+     * @param storeName The store to warm up <i>(must not be null, empty or blank)</i>.
+     */
+    public void warmUp(final String storeName)
+    {
+        log.trace("MongoDbDeploymentTarget.warmUp(" + storeName + ")");
+        
+        DB database = connections.getDatabase(storeName);
+        
+        indexManager.ensureIndexes(database.getCollection(DEPLOYED_DATA_COLLECTION));
+        migrateLegacyDocuments(storeName, database);
+        GridFsStore.ensureIndexes(database, gridFsBucket);
+        ChunkStore.ensureIndexes(database, DEPLOYED_DATA_COLLECTION);
+        
+        if (changeFeedSize > 0)
+        {
+            ChangeFeed.ensureCollection(database, ChangeFeed.DEFAULT_COLLECTION, changeFeedSize);
+        }
+    }
+    
+    
+    /**
+     * Counts the documents (files and directories) deployed at or below the given path, with a single indexed query.
+     * 
+     * @param storeName The store <i>(must not be null, empty or blank)</i>.
+     * @param path      The root of the subtree <i>(must not be null, empty or blank)</i>.
+     * @return The number of documents in the subtree.
+     */
+    public long getSubtreeSize(final String storeName, final String path)
+    {
+        log.trace("MongoDbDeploymentTarget.getSubtreeSize(" + storeName + ", " + path + ")");
+        
+        return(connections.getDatabase(storeName).getCollection(DEPLOYED_DATA_COLLECTION).getCount(newSubtreeQuery(path)));
+    }
+    
+    
+    /**
+     * @return A description of each index build currently in progress on the server <i>(will not be null, but may be empty)</i>.
+     */
+    public List<String> getIndexBuildProgress()
+    {
+        return(indexManager.getBuildProgress(connections.getDatabase("admin")));
+    }
+
+
     /**
      * @param authenticate the authenticate to set
      */
@@ -335,6 +622,46 @@ public class MongoDbDeploymentTarget
     }
 
 
+    /**
+     * @param blueGreen true if deployments should be made to a shadow collection that's swapped in at commit
+     */
+    public void setBlueGreen(final boolean blueGreen)
+    {
+        log.trace("MongoDbDeploymentTarget.setBlueGreen(" + blueGreen + ")");
+        this.blueGreen = blueGreen;
+    }
+
+
+    /**
+     * @param indexSpec the indexes to maintain on the deployed data collection (e.g. <code>path:unique</code>, <code>parentPath</code>)
+     */
+    public void setIndexSpec(final List<String> indexSpec)
+    {
+        log.trace("MongoDbDeploymentTarget.setIndexSpec(" + indexSpec + ")");
+        this.indexSpec = indexSpec;
+    }
+
+
+    /**
+     * @param mappingRules the rules that control how particular XML elements are mapped (see {@link MappingRules})
+     */
+    public void setMappingRules(final List<String> mappingRules)
+    {
+        log.trace("MongoDbDeploymentTarget.setMappingRules(" + mappingRules + ")");
+        this.mappingRules = new MappingRules(mappingRules);
+    }
+
+
+    /**
+     * @param warmUpStores the stores whose indexes should be built (in the background) at startup
+     */
+    public void setWarmUpStores(final List<String> warmUpStores)
+    {
+        log.trace("MongoDbDeploymentTarget.setWarmUpStores(" + warmUpStores + ")");
+        this.warmUpStores = warmUpStores;
+    }
+
+
     /**
      * @param hostname the hostname to set
      */
@@ -353,149 +680,644 @@ public class MongoDbDeploymentTarget
         log.trace("MongoDbDeploymentTarget.setPort(" + port + ")");
         this.port = port;
     }
+
+
+    /**
+     * @param gridFsBucket the GridFS bucket (collection prefix) non-XML content is stored in
+     */
+    public void setGridFsBucket(final String gridFsBucket)
+    {
+        log.trace("MongoDbDeploymentTarget.setGridFsBucket(" + gridFsBucket + ")");
+        this.gridFsBucket = gridFsBucket;
+    }
+
+
+    /**
+     * @param gridFsChunkSize the size, in bytes, of the GridFS chunks non-XML content is streamed in
+     */
+    public void setGridFsChunkSize(final int gridFsChunkSize)
+    {
+        log.trace("MongoDbDeploymentTarget.setGridFsChunkSize(" + gridFsChunkSize + ")");
+        this.gridFsChunkSize = gridFsChunkSize;
+    }
+
+
+    /**
+     * @param connectionsPerHost the maximum number of pooled connections to the server
+     */
+    public void setConnectionsPerHost(final int connectionsPerHost)
+    {
+        log.trace("MongoDbDeploymentTarget.setConnectionsPerHost(" + connectionsPerHost + ")");
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+
+    /**
+     * @param waitQueueMultiplier the number of threads (as a multiple of the pool size) that may wait for a connection
+     */
+    public void setWaitQueueMultiplier(final int waitQueueMultiplier)
+    {
+        log.trace("MongoDbDeploymentTarget.setWaitQueueMultiplier(" + waitQueueMultiplier + ")");
+        this.waitQueueMultiplier = waitQueueMultiplier;
+    }
+
+
+    /**
+     * @param maxWaitTimeMillis how long a thread may wait for a pooled connection
+     */
+    public void setMaxWaitTimeMillis(final int maxWaitTimeMillis)
+    {
+        log.trace("MongoDbDeploymentTarget.setMaxWaitTimeMillis(" + maxWaitTimeMillis + ")");
+        this.maxWaitTimeMillis = maxWaitTimeMillis;
+    }
+
+
+    /**
+     * @param connectTimeoutMillis how long to wait for a connection to be established (0 = forever)
+     */
+    public void setConnectTimeoutMillis(final int connectTimeoutMillis)
+    {
+        log.trace("MongoDbDeploymentTarget.setConnectTimeoutMillis(" + connectTimeoutMillis + ")");
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+
+    /**
+     * @param socketTimeoutMillis how long to wait for a response from the server (0 = forever)
+     */
+    public void setSocketTimeoutMillis(final int socketTimeoutMillis)
+    {
+        log.trace("MongoDbDeploymentTarget.setSocketTimeoutMillis(" + socketTimeoutMillis + ")");
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+
+    /**
+     * @param sendWriteConcern how writes are checked while content is being sent (e.g. <code>unacknowledged</code>, <code>acknowledged</code>)
+     */
+    public void setSendWriteConcern(final String sendWriteConcern)
+    {
+        log.trace("MongoDbDeploymentTarget.setSendWriteConcern(" + sendWriteConcern + ")");
+        this.sendWriteConcern = WriteConcernProfile.parse(sendWriteConcern);
+    }
+
+
+    /**
+     * @param commitWriteConcern how durable a deployment's writes must be before it's prepared or committed (e.g. <code>journaled</code>, <code>majority</code>, <code>w=2,j=true,wtimeout=10000</code>)
+     */
+    public void setCommitWriteConcern(final String commitWriteConcern)
+    {
+        log.trace("MongoDbDeploymentTarget.setCommitWriteConcern(" + commitWriteConcern + ")");
+        this.commitWriteConcern = WriteConcernProfile.parse(commitWriteConcern);
+    }
+
+
+    /**
+     * @param chunkThreshold the size, in bytes, at which the values of a repeated XML element are split off into a chunk
+     */
+    public void setChunkThreshold(final long chunkThreshold)
+    {
+        log.trace("MongoDbDeploymentTarget.setChunkThreshold(" + chunkThreshold + ")");
+        this.chunkThreshold = chunkThreshold;
+    }
+
+
+    /**
+     * @param changeFeedSize the size, in bytes, of the capped change feed collection (0 disables the change feed)
+     */
+    public void setChangeFeedSize(final long changeFeedSize)
+    {
+        log.trace("MongoDbDeploymentTarget.setChangeFeedSize(" + changeFeedSize + ")");
+        this.changeFeedSize = changeFeedSize;
+    }
+
+
+    /**
+     * @param batchMaxDocuments the number of documents written per bulk write
+     */
+    public void setBatchMaxDocuments(final int batchMaxDocuments)
+    {
+        log.trace("MongoDbDeploymentTarget.setBatchMaxDocuments(" + batchMaxDocuments + ")");
+        this.batchMaxDocuments = batchMaxDocuments;
+    }
+
+
+    /**
+     * @param batchMaxBytes the (estimated) number of bytes written per bulk write
+     */
+    public void setBatchMaxBytes(final long batchMaxBytes)
+    {
+        log.trace("MongoDbDeploymentTarget.setBatchMaxBytes(" + batchMaxBytes + ")");
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+
+    /**
+     * @param sessionTimeoutMillis how long (in milliseconds) a deployment may be idle before it's aborted (0 or less never aborts)
+     */
+    public void setSessionTimeoutMillis(final long sessionTimeoutMillis)
+    {
+        log.trace("MongoDbDeploymentTarget.setSessionTimeoutMillis(" + sessionTimeoutMillis + ")");
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+
+    /**
+     * @param expiryService the service that aborts idle deployments (defaults to the shared instance)
+     */
+    public void setSessionExpiryService(final SessionExpiryService expiryService)
+    {
+        this.expiryService = expiryService;
+    }
     
     
     
     /**
-     * Retrieves the collection for the given ticket.
+     * Retrieves the collection for the given deployment.
      * ####TODO: Refactor to use a collection per source document root element
      * 
-     * @param ticket The ticket <i>(must not be null, empty or blank)</i>.
-     * @return The collection (if any) for that ticket <i>(may be null)</i>.
+     * @param session The deployment <i>(must not be null)</i>.
+     * @return The collection (if any) for that deployment <i>(may be null)</i>.
      */
-    private DBCollection getCollection(final String ticket)
+    private DBCollection getCollection(final Session session)
     {
-        log.trace("MongoDbDeploymentTarget.getCollection(" + ticket + ")");
+        log.trace("MongoDbDeploymentTarget.getCollection(" + session.getTicket() + ")");
         
-        return(getDatabase(ticket).getCollection("deployedData"));
+        return(session.getBatch().getCollection());
     }
     
-    private DB getDatabase(final String ticket)
+    
+    /**
+     * Flushes the deployment, confirms that all of its writes were applied, then waits for them to become durable
+     * according to the commit write concern.
+     * 
+     * @param session The deployment <i>(must not be null)</i>.
+     * @throws DeploymentException If any write was lost, or the writes couldn't be made durable.
+     */
+    private void barrier(final Session session)
+        throws DeploymentException
     {
-        return((DB)deployments.get(ticket).get("database"));
+        log.trace("MongoDbDeploymentTarget.barrier(" + session.getTicket() + ")");
+        
+        DB       database = session.getDatabase();
+        DBObject marker   = new BasicDBObject();
+        
+        session.getBatch().verify();
+        session.getGridFs().verify();
+        session.getChunks().verify();
+        
+        // Every write is now known to have been applied, so once this later write is journaled (or replicated), so are they
+        marker.put("ticket", session.getTicket());
+        marker.put("time",   new Date());
+        database.requestStart();
+        
+        try
+        {
+            database.getCollection(SYSTEM_COLLECTION).update(new BasicDBObject("_id", "barrier"), new BasicDBObject("$set", marker), true, false);
+            commitWriteConcern.check(database, "deployment " + session.getTicket());
+        }
+        finally
+        {
+            database.requestDone();
+        }
     }
     
     
-    private String getTarget(final String ticket)
+    /**
+     * Publishes the deployment's changes to the change feed.  The deployment has already committed by this point, so a
+     * failure is logged rather than thrown - consumers will see a gap in the feed's versions, and rescan.
+     */
+    private void publishChanges(final Session session, final int previousVersion, final int version)
     {
-        return((String)deployments.get(ticket).get("target"));
+        DB database = session.getDatabase();
+        
+        database.requestStart();
+        
+        try
+        {
+            if (session.getChanges().publish(session.getStore(), session.getTarget(), previousVersion, version) > 0)
+            {
+                commitWriteConcern.check(database, "change feed record(s) for version " + version);
+            }
+        }
+        catch (final RuntimeException re)
+        {
+            log.error("Unable to publish version " + version + " of target '" + session.getTarget() + "' to the change feed.", re);
+        }
+        finally
+        {
+            database.requestDone();
+        }
     }
     
     
-    private String getStore(final String ticket)
+    /**
+     * Adds (or replaces) the placeholder document for a directory.
+     */
+    private void addDirectory(final Session session, final String path, final String guid)
     {
-        return((String)deployments.get(ticket).get("store"));
+        DBObject document = newDocument(path, guid);
+        
+        document.put("type", DIRECTORY_TYPE);
+        session.getBatch().add(document, DIRECTORY_SIZE);
+        session.getChanges().upsert(path);
     }
-
-
-    private int getVersion(final String ticket)
+    
+    
+    /**
+     * Creates a new document with the fields common to files and directories.
+     */
+    private DBObject newDocument(final String path, final String guid)
     {
-        return((Integer)deployments.get(ticket).get("version"));
+        DBObject result = new BasicDBObject();
+        
+        result.put("_id",        guid);
+        result.put("path",       path);
+        result.put("parentPath", getParentPath(path));
+        result.put("ancestors",  getAncestors(path));
+        result.put("filename",   getFileName(path));
+        
+        return(result);
     }
     
     
-    private DBObject findByPath(final DBCollection collection, final String path)
+    /**
+     * @return A query that matches the given path and everything below it <i>(will not be null)</i>.
+     */
+    private DBObject newSubtreeQuery(final String path)
     {
-        DBObject result = null;
+        BasicDBList clauses = new BasicDBList();
+        
+        clauses.add(new BasicDBObject("path",      path));
+        clauses.add(new BasicDBObject("ancestors", path));
         
-        if (collection != null && path != null)
+        return(new BasicDBObject("$or", clauses));
+    }
+    
+    
+    /**
+     * Brings documents deployed by earlier releases up to date, the first time each store is used:
+     * <ul>
+     *   <li>documents at the top level of the store (whose <code>parentPath</code> was <code>""</code>) get the
+     *       <code>parentPath</code> they're now deployed with (<code>/</code>), so that listings of the root include
+     *       them - a single (indexed) multi-update.</li>
+     *   <li>documents without an <code>ancestors</code> array get one, so that subtree deletes and counts (see
+     *       {@link #newSubtreeQuery(String)}) find them - one pipelined update per legacy document.</li>
+     * </ul>
+     * Both are checked before the store is considered migrated, and retried the next time the store is used if they
+     * fail.
+     * 
+     * @param storeName The store <i>(must not be null, empty or blank)</i>.
+     * @param database  The store's database <i>(must not be null)</i>.
+     */
+    private void migrateLegacyDocuments(final String storeName, final DB database)
+    {
+        if (migrated.add(storeName))
         {
-            DBObject pathQuery = new BasicDBObject();
+            DBCollection collection = database.getCollection(DEPLOYED_DATA_COLLECTION);
+            boolean      succeeded  = false;
+            
+            database.requestStart();
             
-            collection.ensureIndex("path");   // Make sure we index path, so that listings are efficient
-            pathQuery.put("path", path);
-            result = collection.findOne(pathQuery);
+            try
+            {
+                collection.update(new BasicDBObject("parentPath", ""),
+                                  new BasicDBObject("$set", new BasicDBObject("parentPath", "/")),
+                                  false, true);
+                WriteConcernProfile.ACKNOWLEDGED.check(database, "migration of top level parentPaths in " + storeName);
+                
+                database.resetError();
+                
+                DBCursor cursor = collection.find(new BasicDBObject("ancestors", new BasicDBObject("$exists", Boolean.FALSE)),
+                                                  new BasicDBObject("path", Integer.valueOf(1)));
+                int      count  = 0;
+                
+                while (cursor.hasNext())
+                {
+                    DBObject document = cursor.next();
+                    String   path     = (String)document.get("path");
+                    
+                    if (path != null)
+                    {
+                        collection.update(new BasicDBObject("_id", document.get("_id")),
+                                          new BasicDBObject("$set", new BasicDBObject("ancestors", getAncestors(path))),
+                                          false, false);
+                        count++;
+                    }
+                }
+                
+                if (count > 0)
+                {
+                    String what = "ancestors backfill of " + count + " document(s) in " + storeName;
+                    
+                    WriteConcernProfile.ACKNOWLEDGED.check(database, what);
+                    WriteConcernProfile.ACKNOWLEDGED.checkEarlier(database, what);
+                    log.info("Added ancestors to " + count + " document(s) deployed to " + storeName + " by an earlier release.");
+                }
+                
+                succeeded = true;
+            }
+            finally
+            {
+                database.requestDone();
+                
+                if (!succeeded)
+                {
+                    migrated.remove(storeName);   // Try again next time
+                }
+            }
         }
-        
-        return(result);
     }
     
     
-    private String getParentPath(final String path)
+    /**
+     * Creates a private copy of the live collection (indexes and documents) for a deployment to work on.
+     * 
+     * @param database The database <i>(must not be null)</i>.
+     * @param ticket   The deployment ticket <i>(must not be null, empty or blank)</i>.
+     * @return The shadow collection <i>(will not be null)</i>.
+     */
+    private DBCollection createShadowCollection(final DB database, final String ticket)
     {
-        return(path.substring(0, path.lastIndexOf('/')));
+        log.trace("MongoDbDeploymentTarget.createShadowCollection(" + database.getName() + ", " + ticket + ")");
+        
+        DBCollection   live      = database.getCollection(DEPLOYED_DATA_COLLECTION);
+        DBCollection   result    = database.createCollection(SHADOW_COLLECTION_PREFIX + ticket, new BasicDBObject());  // Explicitly created, so that it exists (to be renamed) even if it's empty
+        List<DBObject> documents = new ArrayList<DBObject>(batchMaxDocuments);
+        long           count     = 0;
+        long           start     = System.currentTimeMillis();
+        
+        // Build the indexes first, so the copy doesn't have to be indexed after the fact
+        for (final DBObject indexInfo : live.getIndexInfo())
+        {
+            if (!"_id_".equals(indexInfo.get("name")))
+            {
+                result.ensureIndex((DBObject)indexInfo.get("key"), (String)indexInfo.get("name"), Boolean.TRUE.equals(indexInfo.get("unique")));
+            }
+        }
+        
+        DBCursor cursor = live.find().batchSize(batchMaxDocuments);
+        
+        while (cursor.hasNext())
+        {
+            documents.add(cursor.next());
+            
+            if (documents.size() >= batchMaxDocuments)
+            {
+                result.insert(documents);
+                count += documents.size();
+                documents.clear();
+            }
+        }
+        
+        if (!documents.isEmpty())
+        {
+            result.insert(documents);
+            count += documents.size();
+        }
+        
+        if (result.getCount() != count)
+        {
+            throw new DeploymentException("Only " + result.getCount() + " of the " + count + " document(s) copied to shadow collection '" + result.getFullName() + "' are on the server.");
+        }
+        
+        log.info("Copied " + count + " document(s) to shadow collection '" + result.getFullName() + "' in " + (System.currentTimeMillis() - start) + "ms.");
+        
+        return(result);
     }
     
     
-    private String getFileName(final String path)
+    /**
+     * Atomically replaces the live collection with the given shadow collection.
+     */
+    private void swapIn(final DB database, final DBCollection shadow)
     {
-        return(path.substring(path.lastIndexOf('/')));
+        DBObject command = new BasicDBObject();
+        
+        command.put("renameCollection", shadow.getFullName());
+        command.put("to",               database.getName() + "." + DEPLOYED_DATA_COLLECTION);
+        command.put("dropTarget",       Boolean.TRUE);
+        
+        CommandResult result = connections.getDatabase("admin").command(command);
+        
+        if (!result.ok())
+        {
+            throw new DeploymentException("Unable to swap shadow collection '" + shadow.getFullName() + "' in: " + result.get("errmsg"));
+        }
     }
     
     
-    private DBObject findVersionDoc(final DB database)
+    /**
+     * @param ticket The deployment ticket <i>(must not be null, empty or blank)</i>.
+     * @return The deployment's session <i>(will not be null)</i>.
+     * @throws DeploymentException If there's no such deployment in progress.
+     */
+    private Session getSession(final String ticket)
+        throws DeploymentException
     {
-        DBObject result = null;
+        Session result = deployments.get(ticket);
         
-        if (database != null)
+        if (result == null)
         {
-            DBCollection collection = database.getCollection("deploymentSystem");
-            result = collection.findOne("version");
+            throw new DeploymentException("No deployment with ticket " + ticket + " is in progress.");
         }
         
+        result.touch();
         return(result);
     }
     
     
-    private DBObject createVersionDoc(final DB database)
+    private String getParentPath(final String path)
+    {
+        int index = path.lastIndexOf('/');
+        
+        return(index > 0 ? path.substring(0, index) : "/");
+    }
+    
+    
+    /**
+     * @return The paths of all of the directories above the given path, outermost first (e.g. <code>/</code>, <code>/a</code>, <code>/a/b</code> for <code>/a/b/c.xml</code>) <i>(will not be null)</i>.
+     */
+    private BasicDBList getAncestors(final String path)
     {
-        DBObject result = null;
+        BasicDBList result = new BasicDBList();
+        int         index  = path.indexOf('/');
         
-        if (database != null)
+        while (index >= 0 && index < path.length() - 1)
         {
-            DBCollection collection = database.getCollection("deploymentSystem");
-            result = new BasicDBObject();
-            result.put("_id", "version");
-            result.put("version", 0);
-            collection.save(result);
+            result.add(index == 0 ? "/" : path.substring(0, index));
+            index = path.indexOf('/', index + 1);
         }
         
         return(result);
     }
     
     
-    private DBObject findOrCreateVersionDoc(final DB database)
+    private String getFileName(final String path)
     {
-        DBObject result = findVersionDoc(database);
+        return(path.substring(path.lastIndexOf('/')));
+    }
+    
+    
+    /**
+     * Reads the target's version from the server, falling back to the (pre per-target) legacy version document.
+     * 
+     * @return The version, or 0 if the target hasn't been deployed to.
+     */
+    private int readVersion(final DB database, final String target)
+    {
+        DBCollection collection = database.getCollection(SYSTEM_COLLECTION);
+        DBObject     versionDoc = collection.findOne(new BasicDBObject("_id", VERSION_ID_PREFIX + target));
+        int          result     = 0;
         
-        if (result == null)
+        if (versionDoc == null)
         {
-            result = createVersionDoc(database);
+            versionDoc = collection.findOne(new BasicDBObject("_id", LEGACY_VERSION_ID));
         }
         
-        if (result != null)
+        if (versionDoc != null)
         {
-            if (!result.containsField("version"))
+            Object version = versionDoc.get("version");
+            
+            if (version instanceof Number)
             {
-                // Shouldn't happen, but just in case...
-                log.warn("Version document was missing 'version' field.  Resetting to 0.");
-                result.put("version", 0);
-                setVersion(database, 0);
+                result = ((Number)version).intValue();
+            }
+            else
+            {
+                log.warn("Unable to parse version '" + String.valueOf(version) + "' from version document '" + versionDoc.get("_id") + "'.  Treating it as 0.");
             }
-        }
-        else
-        {
-            // Shouldn't happen, but just in case...
-            throw new IllegalStateException("Unable to find or create version document.");
         }
         
         return(result);
     }
     
     
-    private void setVersion(final DB database, final int version)
+    /**
+     * Atomically moves the target's version from <code>expected</code> to <code>version</code> (creating the version
+     * document if it doesn't exist yet), and updates the cache.
+     * 
+     * @throws DeploymentException If the target's version isn't <code>expected</code> (i.e. another deployment got there first).
+     */
+    private void compareAndSetVersion(final DB database, final String storeName, final String target, final int expected, final int version)
+        throws DeploymentException
     {
-        if (database != null)
+        String        key     = storeName + "/" + target;
+        BasicDBObject command = new BasicDBObject();
+        BasicDBObject query   = new BasicDBObject();
+        CommandResult result  = null;
+        
+        query.put("_id",     VERSION_ID_PREFIX + target);
+        query.put("version", Integer.valueOf(expected));
+        
+        command.put("findandmodify", SYSTEM_COLLECTION);
+        command.put("query",         query);
+        command.put("update",        new BasicDBObject("$set", new BasicDBObject("version", Integer.valueOf(version))));
+        command.put("new",           Boolean.TRUE);
+        command.put("upsert",        Boolean.TRUE);    // Creates the document on the first deployment - if it exists with another version, the upsert fails on the duplicate _id
+        
+        database.requestStart();
+        
+        try
         {
-            DBCollection collection = database.getCollection("deploymentSystem");
-            DBObject     query      = new BasicDBObject();
-            DBObject     statement  = new BasicDBObject();
+            result = database.command(command);
             
-            query.put("_id", "version");
-            statement.put("$set", new BasicDBObject("version", version));
-            collection.update(query, statement);
+            if (result.ok() && result.get("value") != null)
+            {
+                commitWriteConcern.check(database, "version update of target '" + target + "'");
+            }
+        }
+        finally
+        {
+            database.requestDone();
         }
+        
+        if (!result.ok() || result.get("value") == null)
+        {
+            int actual = readVersion(database, target);
+            
+            versions.put(key, Integer.valueOf(actual));
+            throw new DeploymentException("Version conflict on target '" + target + "': expected version " + expected + " but found " + actual +
+                                          " - another deployment has committed in the meantime.");
+        }
+        
+        versions.put(key, Integer.valueOf(version));
     }
     
     
+    /**
+     * The transient state of a deployment to this target.
+     */
+    private final static class Session
+        extends DeploymentSession
+    {
+        private final int           previousVersion;
+        private final DB            database;
+        private final DocumentBatch batch;
+        private final GridFsStore   gridFs;
+        private final ChunkStore    chunks;
+        private final ChangeFeed    changes;
+        
+        
+        private Session(final String        ticket,
+                        final String        target,
+                        final String        store,
+                        final int           version,
+                        final int           previousVersion,
+                        final DB            database,
+                        final DocumentBatch batch,
+                        final GridFsStore   gridFs,
+                        final ChunkStore    chunks,
+                        final ChangeFeed    changes)
+        {
+            super(ticket, target, store, version);
+            
+            this.previousVersion = previousVersion;
+            this.database        = database;
+            this.batch           = batch;
+            this.gridFs          = gridFs;
+            this.chunks          = chunks;
+            this.changes         = changes;
+        }
+        
+        
+        /**
+         * @return The version that was live when the deployment began.
+         */
+        int getPreviousVersion()
+        {
+            return(previousVersion);
+        }
+        
+        
+        DB getDatabase()
+        {
+            return(database);
+        }
+        
+        
+        DocumentBatch getBatch()
+        {
+            return(batch);
+        }
+        
+        
+        GridFsStore getGridFs()
+        {
+            return(gridFs);
+        }
+        
+        
+        ChunkStore getChunks()
+        {
+            return(chunks);
+        }
+        
+        
+        ChangeFeed getChanges()
+        {
+            return(changes);
+        }
+    }
+    
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+
+
+/**
+ * How (and whether) writes are acknowledged by the server, expressed as the options passed to the
+ * <code>getlasterror</code> command.
+ *
+ * A profile is either one of the named profiles:
+ * <ul>
+ *   <li><code>unacknowledged</code> - writes aren't checked at all</li>
+ *   <li><code>acknowledged</code> - the server has applied the write</li>
+ *   <li><code>journaled</code> - the write has been committed to the server's journal</li>
+ *   <li><code>fsynced</code> - the server's data files have been flushed to disk</li>
+ *   <li><code>majority</code> - the write has been journaled, and replicated to a majority of the replica set</li>
+ * </ul>
+ * or a comma separated list of <code>getlasterror</code> options, e.g. <code>w=2,j=true,wtimeout=10000</code>.
+ *
+ * Note that <code>getlasterror</code> reports on the last write made over the same connection, so {@link #check(DB, String)}
+ * must be called in the same request (see <code>DB.requestStart()</code>) as the write(s) it's checking.
+ *
+ * Instances are immutable.
+ *
+ * @version $Id$
+ */
+public final class WriteConcernProfile
+{
+    private final static Log log = LogFactory.getLog(WriteConcernProfile.class);
+
+    public final static WriteConcernProfile UNACKNOWLEDGED = new WriteConcernProfile("unacknowledged", null,               false, false, 0);
+    public final static WriteConcernProfile ACKNOWLEDGED   = new WriteConcernProfile("acknowledged",   Integer.valueOf(1), false, false, 0);
+    public final static WriteConcernProfile JOURNALED      = new WriteConcernProfile("journaled",      Integer.valueOf(1), true,  false, 0);
+    public final static WriteConcernProfile FSYNCED        = new WriteConcernProfile("fsynced",        Integer.valueOf(1), false, true,  0);
+    public final static WriteConcernProfile MAJORITY       = new WriteConcernProfile("majority",       "majority",         true,  false, 0);
+
+    private final static WriteConcernProfile[] NAMED = { UNACKNOWLEDGED, ACKNOWLEDGED, JOURNALED, FSYNCED, MAJORITY };
+
+    private final String  name;
+    private final Object  w;
+    private final boolean journal;
+    private final boolean fsync;
+    private final int     wtimeoutMillis;
+
+
+
+    private WriteConcernProfile(final String name, final Object w, final boolean journal, final boolean fsync, final int wtimeoutMillis)
+    {
+        this.name           = name;
+        this.w              = w;
+        this.journal        = journal;
+        this.fsync          = fsync;
+        this.wtimeoutMillis = wtimeoutMillis;
+    }
+
+
+    /**
+     * @param spec The name of a profile, or a list of <code>getlasterror</code> options <i>(must not be null, empty or blank)</i>.
+     * @return The profile <i>(will not be null)</i>.
+     * @throws IllegalArgumentException If the spec can't be parsed.
+     */
+    public static WriteConcernProfile parse(final String spec)
+    {
+        WriteConcernProfile result  = null;
+        String              trimmed = spec.trim();
+
+        for (final WriteConcernProfile named : NAMED)
+        {
+            if (named.name.equalsIgnoreCase(trimmed))
+            {
+                result = named;
+                break;
+            }
+        }
+
+        if (result == null)
+        {
+            Object  w              = Integer.valueOf(1);
+            boolean journal        = false;
+            boolean fsync          = false;
+            int     wtimeoutMillis = 0;
+
+            for (final String option : trimmed.split(","))
+            {
+                String[] pair = option.split("=", 2);
+
+                if (pair.length != 2)
+                {
+                    throw new IllegalArgumentException("Invalid write concern option '" + option + "' in '" + spec + "'.");
+                }
+
+                String key   = pair[0].trim();
+                String value = pair[1].trim();
+
+                try
+                {
+                    if ("w".equals(key))
+                    {
+                        w = value.matches("\\d+") ? (Object)Integer.valueOf(value) : value;
+                    }
+                    else if ("j".equals(key))
+                    {
+                        journal = Boolean.parseBoolean(value);
+                    }
+                    else if ("fsync".equals(key))
+                    {
+                        fsync = Boolean.parseBoolean(value);
+                    }
+                    else if ("wtimeout".equals(key))
+                    {
+                        wtimeoutMillis = Integer.parseInt(value);
+                    }
+                    else
+                    {
+                        throw new IllegalArgumentException("Unknown write concern option '" + key + "' in '" + spec + "'.");
+                    }
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    throw new IllegalArgumentException("Invalid value for write concern option '" + key + "' in '" + spec + "'.", nfe);
+                }
+            }
+
+            result = new WriteConcernProfile(trimmed, Integer.valueOf(0).equals(w) ? null : w, journal, fsync, wtimeoutMillis);
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * @return True if writes are checked at all.
+     */
+    public boolean isAcknowledged()
+    {
+        return(w != null || journal || fsync);
+    }
+
+
+    /**
+     * Waits for the last write made in the current request to satisfy this profile.  This is a no-op for the
+     * <code>unacknowledged</code> profile.
+     *
+     * @param database The database the write was made to <i>(must not be null)</i>.
+     * @param what     A description of the write, for error messages <i>(must not be null)</i>.
+     * @throws DeploymentException If the write failed, or couldn't be acknowledged as required.
+     */
+    public void check(final DB database, final String what)
+        throws DeploymentException
+    {
+        if (isAcknowledged())
+        {
+            BasicDBObject command = new BasicDBObject("getlasterror", Integer.valueOf(1));
+
+            if (w != null)
+            {
+                command.put("w", w);
+            }
+
+            if (journal)
+            {
+                command.put("j", Boolean.TRUE);
+            }
+
+            if (fsync)
+            {
+                command.put("fsync", Boolean.TRUE);
+            }
+
+            if (wtimeoutMillis > 0)
+            {
+                command.put("wtimeout", Integer.valueOf(wtimeoutMillis));
+            }
+
+            CommandResult result = database.command(command);
+
+            if (!result.ok())
+            {
+                throw new DeploymentException("Unable to confirm " + what + " (" + name + "): " + result.get("errmsg"));
+            }
+
+            if (result.get("err") != null)
+            {
+                throw new DeploymentException("MongoDB rejected " + what + ": " + result.get("err"));
+            }
+
+            if (Boolean.TRUE.equals(result.get("wtimeout")))
+            {
+                throw new DeploymentException("Timed out waiting for " + what + " to be replicated (" + name + ").");
+            }
+
+            if (result.get("jnote") != null && log.isWarnEnabled())
+            {
+                log.warn("Unable to journal " + what + ": " + result.get("jnote"));
+            }
+        }
+    }
+
+
+    /**
+     * Checks that none of the writes made in the current request since it called <code>DB.resetError()</code> failed.
+     * Unlike {@link #check(DB, String)}, which only reports on the last write, this covers a whole pipeline of writes
+     * with one round trip (so call {@link #check(DB, String)} first, to wait for them).  This is a no-op for the
+     * <code>unacknowledged</code> profile.
+     *
+     * @param database The database the writes were made to <i>(must not be null)</i>.
+     * @param what     A description of the writes, for error messages <i>(must not be null)</i>.
+     * @throws DeploymentException If any of the writes failed.
+     */
+    public void checkEarlier(final DB database, final String what)
+        throws DeploymentException
+    {
+        if (isAcknowledged())
+        {
+            CommandResult result = database.getPreviousError();
+
+            if (result != null && result.get("err") != null)
+            {
+                throw new DeploymentException("MongoDB rejected one of the " + what + " (" + result.get("nPrev") + " write(s) from the end): " + result.get("err"));
+            }
+        }
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return(name);
+    }
+
+}
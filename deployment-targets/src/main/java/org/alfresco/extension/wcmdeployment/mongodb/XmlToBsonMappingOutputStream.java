@@ -26,15 +26,50 @@ package org.alfresco.extension.wcmdeployment.mongodb;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.mongodb.DBCollection;
+import com.fasterxml.aalto.AsyncByteArrayFeeder;
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
 /**
- * This class TODO
+ * OutputStream that maps the XML written to it into a BSON document, which is added to the deployment's
+ * {@link DocumentBatch} when the stream is closed.
+ *
+ * Bytes are fed to a non-blocking (Aalto async) StAX parser as they arrive, and the document is built up event by
+ * event, so the XML itself is never buffered - only the document being built is held in memory.  The mapping is:
+ * <ul>
+ *   <li>the root element's name is stored in the <code>rootElement</code> field, and its value in the
+ *       <code>content</code> field</li>
+ *   <li>an element with neither attributes nor child elements maps to its text (a string)</li>
+ *   <li>any other element maps to a sub-document, with attributes as <code>@name</code> fields, child elements as
+ *       fields named after the element, and any (non-whitespace) text in a <code>#text</code> field</li>
+ *   <li>repeated child elements map to an array</li>
+ * </ul>
+ * Names are qualified with their prefix (if any), and characters MongoDB doesn't allow in field names
+ * (<code>.</code> anywhere, <code>$</code> at the start) are replaced with <code>_</code>.  Comments, processing
+ * instructions and DTDs are ignored.  The async parser supports UTF-8, US-ASCII and ISO-8859-1 encoded XML.
+ *
+ * The default mapping can be changed for particular elements by {@link MappingRules} (keyed by the document's
+ * <code>mimeType</code> and root element) - for example to promote an element to a top-level field, or to leave it out.
+ *
+ * If a {@link ChunkStore} is provided, the (estimated) size of each repeated element's values is tracked as they're
+ * parsed, and whenever it reaches the store's threshold the values are spilled into a chunk document and replaced by a
+ * marker, so memory use (and the size of the mapped document) stays bounded however large the XML is.
  *
  * @author Peter Monks (pmonks@alfresco.com)
  *
@@ -44,16 +79,75 @@ public class XmlToBsonMappingOutputStream
 {
     private final static Log log = LogFactory.getLog(XmlToBsonMappingOutputStream.class);
     
-    private final DBCollection collection;
-    private final DBObject     document;
+    private final static String ROOT_ELEMENT_FIELD = "rootElement";
+    private final static String CONTENT_FIELD      = "content";
+    private final static String ATTRIBUTE_PREFIX   = "@";
+    private final static String TEXT_FIELD         = "#text";
+    private final static long   MAX_DOCUMENT_SIZE  = 16L * 1024 * 1024;     // MongoDB's document size limit
+    private final static long   MARKER_SIZE        = 64;                    // Estimated size of a chunk marker
+    
+    private final static AsyncXMLInputFactory factory = new InputFactoryImpl();
+    
+    static
+    {
+        // Deployed content is untrusted - don't process DTDs or go looking for external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD,                     Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+    
+    private final DocumentBatch                              batch;
+    private final DBObject                                   document;
+    private final MappingRules                               rules;
+    private final ChunkStore                                 chunkStore;
+    private final AsyncXMLStreamReader<AsyncByteArrayFeeder> parser;
+    private final List<Element>                              stack      = new ArrayList<Element>();
+    private final byte[]                                     singleByte = new byte[1];
+    
+    private boolean closed    = false;
+    private long    size      = 0;
+    private int     skipDepth = 0;     // Depth within an element that's being skipped (0 = not skipping)
+    private String  owner     = null;  // The document's chunk owner id, once it has chunks
+    private int     chunks    = 0;
+    private long    mapped    = 0;     // Estimated size of the mapped document
+    
+    
     
+    public XmlToBsonMappingOutputStream(final DocumentBatch batch,
+                                        final DBObject      document)
+    {
+        this(batch, document, MappingRules.NONE);
+    }
     
     
-    public XmlToBsonMappingOutputStream(final DBCollection collection,
-                                        final DBObject     document)
+    /**
+     * @param batch    The batch to add the document to when the stream is closed <i>(must not be null)</i>.
+     * @param document The document to map the XML into - its <code>mimeType</code> selects the mapping rules <i>(must not be null)</i>.
+     * @param rules    The mapping rules <i>(must not be null)</i>.
+     */
+    public XmlToBsonMappingOutputStream(final DocumentBatch batch,
+                                        final DBObject      document,
+                                        final MappingRules  rules)
     {
-        this.collection = collection;
+        this(batch, document, rules, null);
+    }
+    
+    
+    /**
+     * @param batch      The batch to add the document to when the stream is closed <i>(must not be null)</i>.
+     * @param document   The document to map the XML into - its <code>mimeType</code> selects the mapping rules, and it must have <code>path</code> and <code>ancestors</code> fields if chunking <i>(must not be null)</i>.
+     * @param rules      The mapping rules <i>(must not be null)</i>.
+     * @param chunkStore The store to spill large repeated elements into <i>(may be null, in which case nothing is chunked)</i>.
+     */
+    public XmlToBsonMappingOutputStream(final DocumentBatch batch,
+                                        final DBObject      document,
+                                        final MappingRules  rules,
+                                        final ChunkStore    chunkStore)
+    {
+        this.batch      = batch;
         this.document   = document;
+        this.rules      = rules;
+        this.chunkStore = chunkStore;
+        this.parser     = factory.createAsyncForByteArray();
     }
     
 
@@ -64,7 +158,8 @@ public class XmlToBsonMappingOutputStream
     public void write(final int b)
         throws IOException
     {
-        //####TODO: implement this
+        singleByte[0] = (byte)b;
+        write(singleByte, 0, 1);
     }
     
 
@@ -75,7 +170,7 @@ public class XmlToBsonMappingOutputStream
     public void write(final byte[] b)
         throws IOException
     {
-        // TODO Auto-generated method stub
+        write(b, 0, b.length);
     }
 
 
@@ -86,7 +181,25 @@ public class XmlToBsonMappingOutputStream
     public void write(final byte[] b, final int off, final int len)
         throws IOException
     {
-        // TODO Auto-generated method stub
+        if (closed)
+        {
+            throw new IOException("Stream closed.");
+        }
+        
+        if (len > 0)
+        {
+            try
+            {
+                // Note: the parser doesn't copy the input, so it must all be consumed before we return
+                parser.getInputFeeder().feedInput(b, off, len);
+                parse();
+                size += len;
+            }
+            catch (final XMLStreamException xse)
+            {
+                throw newIOException(xse);
+            }
+        }
     }
 
 
@@ -97,7 +210,7 @@ public class XmlToBsonMappingOutputStream
     public void flush()
         throws IOException
     {
-        // TODO Auto-generated method stub
+        // NO-OP - everything written so far has already been parsed
     }
 
 
@@ -109,7 +222,327 @@ public class XmlToBsonMappingOutputStream
         throws IOException
     {
         log.trace("XmlToBsonMappingOutputStream.close()");
-        collection.save(document);
+        
+        if (!closed)
+        {
+            closed = true;
+            
+            try
+            {
+                parser.getInputFeeder().endOfInput();
+                parse();
+                parser.close();
+            }
+            catch (final XMLStreamException xse)
+            {
+                throw newIOException(xse);
+            }
+            
+            if (!stack.isEmpty())
+            {
+                throw new IOException("Premature end of XML document (unclosed element '" + stack.get(stack.size() - 1).name + "').");
+            }
+            
+            if (mapped > MAX_DOCUMENT_SIZE)
+            {
+                throw new IOException("XML document '" + document.get("path") + "' maps to a document of ~" + mapped + " bytes, which is larger than MongoDB allows" +
+                                      (chunkStore == null ? "." : ", even with its repeated elements chunked."));
+            }
+            
+            if (owner != null)
+            {
+                document.put(ChunkStore.OWNER_FIELD, owner);
+                document.put(ChunkStore.COUNT_FIELD, Integer.valueOf(chunks));
+            }
+            
+            // The XML is (almost always) bigger than the BSON it maps to, so makes a safe size estimate (unless it's been chunked)
+            batch.add(document, owner == null ? size : mapped);
+        }
+    }
+    
+    
+    /**
+     * Processes every event the input fed so far produces.
+     */
+    private void parse()
+        throws XMLStreamException
+    {
+        int event = parser.next();
+        
+        while (event != AsyncXMLStreamReader.EVENT_INCOMPLETE &&
+               event != XMLStreamConstants.END_DOCUMENT)
+        {
+            switch (event)
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    startElement();
+                    break;
+                
+                case XMLStreamConstants.END_ELEMENT:
+                    endElement();
+                    break;
+                
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (!stack.isEmpty() && skipDepth == 0)
+                    {
+                        stack.get(stack.size() - 1).appendText(parser.getTextCharacters(), parser.getTextStart(), parser.getTextLength());
+                    }
+                    break;
+                
+                default:
+                    // Comments, processing instructions, DTDs etc. are ignored
+                    break;
+            }
+            
+            event = parser.next();
+        }
+    }
+    
+    
+    private void startElement()
+    {
+        if (skipDepth > 0)
+        {
+            skipDepth++;
+            return;
+        }
+        
+        String             name  = toFieldName(parser.getPrefix(), parser.getLocalName());
+        MappingRules.State state = stack.isEmpty() ? rules.getRootState((String)document.get("mimeType"), name) :
+                                                     stack.get(stack.size() - 1).state.next(name);
+        
+        if (state.action == MappingRules.Action.SKIP)
+        {
+            skipDepth = 1;
+            return;
+        }
+        
+        Element element = new Element(name, state);
+        
+        for (int i = 0; i < parser.getAttributeCount(); i++)
+        {
+            String attributeName  = ATTRIBUTE_PREFIX + toFieldName(parser.getAttributePrefix(i), parser.getAttributeLocalName(i));
+            String attributeValue = parser.getAttributeValue(i);
+            
+            element.fields.put(attributeName, attributeValue);
+            element.size += attributeName.length() + attributeValue.length();
+        }
+        
+        stack.add(element);
+    }
+    
+    
+    private void endElement()
+    {
+        if (skipDepth > 0)
+        {
+            skipDepth--;
+            return;
+        }
+        
+        Element element   = stack.remove(stack.size() - 1);
+        Object  value     = element.getValue();
+        long    valueSize = element.size + element.name.length();
+        
+        if (stack.isEmpty())
+        {
+            document.put(ROOT_ELEMENT_FIELD, element.name);
+            document.put(CONTENT_FIELD,      value);
+            mapped += valueSize;
+        }
+        else if (element.state.action == MappingRules.Action.FIELD)
+        {
+            addValue(document, element.state.fieldName, value, false);
+            mapped += valueSize;
+        }
+        else
+        {
+            Element parent = stack.get(stack.size() - 1);
+            
+            addValue(parent.fields, element.name, value, element.state.action == MappingRules.Action.ARRAY);
+            parent.size += valueSize;
+            
+            if (chunkStore != null && parent.addFieldSize(element.name, valueSize) >= chunkStore.getThreshold())
+            {
+                spill(parent, element.name);
+            }
+        }
+    }
+    
+    
+    /**
+     * Moves the values of the given (array) field into a chunk, leaving a marker in their place.
+     */
+    private void spill(final Element element, final String fieldName)
+    {
+        Object field = element.fields.get(fieldName);
+        
+        if (field instanceof BasicDBList)
+        {
+            BasicDBList values    = new BasicDBList();
+            BasicDBList remaining = new BasicDBList();
+            
+            for (final Object value : (BasicDBList)field)
+            {
+                if (value instanceof DBObject && ((DBObject)value).containsField(ChunkStore.CHUNK_MARKER_FIELD))
+                {
+                    remaining.add(value);      // Spilled previously
+                }
+                else
+                {
+                    values.add(value);
+                }
+            }
+            
+            if (!values.isEmpty())
+            {
+                if (owner == null)
+                {
+                    owner = chunkStore.newOwner();
+                }
+                
+                remaining.add(chunkStore.write(document, owner, chunks++, values));
+                element.fields.put(fieldName, remaining);
+                
+                // Only the values still in the document count towards the next chunk
+                element.size -= element.addFieldSize(fieldName, 0) - MARKER_SIZE;
+                element.fieldSizes.put(fieldName, Long.valueOf(0));
+            }
+        }
+    }
+    
+    
+    private static void addValue(final DBObject fields, final String name, final Object value, final boolean forceArray)
+    {
+        Object existing = fields.get(name);
+        
+        if (existing == null)
+        {
+            if (forceArray)
+            {
+                BasicDBList values = new BasicDBList();
+                values.add(value);
+                fields.put(name, values);
+            }
+            else
+            {
+                fields.put(name, value);
+            }
+        }
+        else if (existing instanceof BasicDBList)
+        {
+            ((BasicDBList)existing).add(value);
+        }
+        else
+        {
+            // Second occurrence of this element - switch to an array
+            BasicDBList values = new BasicDBList();
+            values.add(existing);
+            values.add(value);
+            fields.put(name, values);
+        }
+    }
+    
+    
+    static String toFieldName(final String prefix, final String localName)
+    {
+        String result = (prefix == null || prefix.length() == 0) ? localName : prefix + ":" + localName;
+        
+        result = result.replace('.', '_');
+        
+        if (result.startsWith("$"))
+        {
+            result = "_" + result.substring(1);
+        }
+        
+        return(result);
+    }
+    
+    
+    private IOException newIOException(final XMLStreamException xse)
+    {
+        IOException result = new IOException("Unable to parse XML document '" + document.get("path") + "': " + xse.getMessage());
+        result.initCause(xse);
+        return(result);
+    }
+    
+    
+    
+    /**
+     * An element that's still being parsed.
+     */
+    private final static class Element
+    {
+        private final String             name;
+        private final MappingRules.State state;
+        private final BasicDBObject      fields     = new BasicDBObject();
+        private StringBuilder            text       = null;
+        private long                     size       = 0;       // Estimated size of the element's value
+        private Map<String, Long>        fieldSizes = null;    // Estimated size of each child field (only tracked when chunking)
+        
+        
+        private Element(final String name, final MappingRules.State state)
+        {
+            this.name  = name;
+            this.state = state;
+        }
+        
+        
+        private void appendText(final char[] characters, final int start, final int length)
+        {
+            if (text == null)
+            {
+                text = new StringBuilder(length);
+            }
+            
+            text.append(characters, start, length);
+            size += length;
+        }
+        
+        
+        /**
+         * @return The new estimated size of the given field.
+         */
+        private long addFieldSize(final String fieldName, final long delta)
+        {
+            if (fieldSizes == null)
+            {
+                fieldSizes = new HashMap<String, Long>();
+            }
+            
+            Long current = fieldSizes.get(fieldName);
+            long result  = (current == null ? 0 : current.longValue()) + delta;
+            
+            fieldSizes.put(fieldName, Long.valueOf(result));
+            
+            return(result);
+        }
+        
+        
+        private Object getValue()
+        {
+            Object result = null;
+            String value  = text == null ? "" : text.toString();
+            
+            if (fields.isEmpty())
+            {
+                result = value;
+            }
+            else
+            {
+                // Whitespace between child elements is formatting, not content
+                if (value.trim().length() > 0)
+                {
+                    fields.put(TEXT_FIELD, value);
+                }
+                
+                result = fields;
+            }
+            
+            return(result);
+        }
     }
 
 }
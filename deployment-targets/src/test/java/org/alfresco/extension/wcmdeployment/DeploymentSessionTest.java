@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link DeploymentSession}.
+ *
+ * @version $Id$
+ */
+public class DeploymentSessionTest
+{
+    @Test
+    public void commitsOnce()
+    {
+        DeploymentSession session = new DeploymentSession("ticket", "target", "store", 1);
+
+        session.prepare();
+        session.prepare();
+        assertEquals(DeploymentSession.State.PREPARED, session.getState());
+
+        assertTrue(session.beginCommit());
+        assertFalse(session.beginCommit());
+        assertFalse(session.abort());
+        assertEquals(DeploymentSession.State.COMMITTING, session.getState());
+        assertFalse(session.isFinished());
+
+        session.committed();
+        assertEquals(DeploymentSession.State.COMMITTED, session.getState());
+        assertTrue(session.isFinished());
+        assertFalse(session.beginCommit());
+        assertFalse(session.abort());
+    }
+
+
+    @Test
+    public void failedCommitCanBeAbortedOrRetried()
+    {
+        DeploymentSession session = new DeploymentSession("ticket", "target", "store", 1);
+
+        assertTrue(session.beginCommit());
+        session.commitFailed();
+        assertEquals(DeploymentSession.State.PREPARED, session.getState());
+
+        assertTrue(session.beginCommit());
+        session.commitFailed();
+        assertTrue(session.abort());
+        assertEquals(DeploymentSession.State.ABORTED, session.getState());
+        assertTrue(session.isFinished());
+    }
+
+
+    @Test
+    public void abortedSessionCantBeCommittedOrPrepared()
+    {
+        DeploymentSession session = new DeploymentSession("ticket", "target", "store", 1);
+
+        assertTrue(session.abort());
+        assertFalse(session.abort());
+        assertFalse(session.beginCommit());
+
+        // Completing a commit that was never claimed does nothing
+        session.committed();
+        assertEquals(DeploymentSession.State.ABORTED, session.getState());
+
+        try
+        {
+            session.prepare();
+            fail("prepare() should have failed.");
+        }
+        catch (final DeploymentException de)
+        {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void onlyOneOfManyConcurrentCommitsAndAbortsWins()
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            final DeploymentSession session = new DeploymentSession("ticket", "target", "store", 1);
+            final CountDownLatch    go      = new CountDownLatch(1);
+            final AtomicInteger     winners = new AtomicInteger();
+            Thread[]                threads = new Thread[8];
+
+            for (int j = 0; j < threads.length; j++)
+            {
+                final boolean commit = j % 2 == 0;
+
+                threads[j] = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        try
+                        {
+                            go.await();
+                        }
+                        catch (final InterruptedException ie)
+                        {
+                            return;
+                        }
+
+                        if (commit ? session.beginCommit() : session.abort())
+                        {
+                            winners.incrementAndGet();
+                        }
+                    }
+                });
+                threads[j].start();
+            }
+
+            go.countDown();
+
+            for (final Thread thread : threads)
+            {
+                thread.join();
+            }
+
+            assertEquals(1, winners.get());
+        }
+    }
+
+
+    @Test
+    public void touchRecordsActivity()
+        throws InterruptedException
+    {
+        DeploymentSession session = new DeploymentSession("ticket", "target", "store", 1);
+        long              created = session.getLastActivity();
+
+        Thread.sleep(5);
+        session.touch();
+        assertTrue(session.getLastActivity() > created);
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.alfresco.extension.wcmdeployment.filesystem.FileSystemUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link NaiveFilesystemDeploymentTarget}.
+ *
+ * @version $Id$
+ */
+public class NaiveFilesystemDeploymentTargetTest
+{
+    private File                            root;
+    private File                            baseDirectory;
+    private NaiveFilesystemDeploymentTarget target;
+
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        root = File.createTempFile("NaiveFilesystemDeploymentTargetTest", "");
+        root.delete();
+        root.mkdirs();
+
+        baseDirectory = new File(root, "base");
+        baseDirectory.mkdirs();
+
+        target = new NaiveFilesystemDeploymentTarget();
+        target.setBaseDirectory(baseDirectory);
+        target.setMetadataDirectory(new File(root, "metadata"));
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        target.destroy();
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+
+    @Test(timeout = 10000)
+    public void initDiscardsLeftoverStagingTrees()
+        throws IOException, InterruptedException
+    {
+        write("tgt/store/index.html", "live");
+        write("tgt/.staging/store/crashed-ticket/index.html", "staged");
+        write("tgt/.staging/store/crashed-ticket/new.html", "staged");
+
+        target.init();
+
+        assertEquals(0, new File(baseDirectory, "tgt/.staging/store").list().length);
+        assertTrue(new File(baseDirectory, "tgt/store/index.html").isFile());
+
+        // The leftover tree went via the trash, which is purged in the background
+        File trash = new File(baseDirectory, "tgt/.trash/store");
+
+        while (trash.list() != null && trash.list().length > 0)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void initDeletesLeftoverStagingTreesImmediatelyWithoutTrash()
+        throws IOException
+    {
+        write("tgt/.staging/store/crashed-ticket/index.html", "staged");
+
+        target.setDeleteMode("IMMEDIATE");
+        target.init();
+
+        assertFalse(new File(baseDirectory, "tgt/.staging/store/crashed-ticket").exists());
+        assertFalse(new File(baseDirectory, "tgt/.trash").exists());
+    }
+
+
+    @Test
+    public void leftoverStagingTreesDontAffectNewDeployments()
+        throws IOException
+    {
+        write("tgt/.staging/store/crashed-ticket/index.html", "staged");
+
+        target.init();
+
+        String ticket = target.begin("tgt", "store", 1, null, null);
+
+        assertEquals(1, new File(baseDirectory, "tgt/.staging/store").list().length);
+        assertTrue(new File(baseDirectory, "tgt/.staging/store/" + ticket).isDirectory());
+        target.abort(ticket);
+    }
+
+
+    private void write(final String path, final String content)
+        throws IOException
+    {
+        File             file = new File(baseDirectory, path);
+        FileOutputStream out  = null;
+
+        file.getParentFile().mkdirs();
+
+        try
+        {
+            out = new FileOutputStream(file);
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally
+        {
+            FileSystemUtils.closeQuietly(out);
+        }
+    }
+
+}
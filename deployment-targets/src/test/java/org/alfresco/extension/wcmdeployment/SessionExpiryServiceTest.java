@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link SessionExpiryService} (and {@link SessionOutputStream}).
+ *
+ * @version $Id$
+ */
+public class SessionExpiryServiceTest
+{
+    private final static long TIMEOUT = 100;
+
+    private SessionExpiryService service;
+
+
+    @Before
+    public void setUp()
+    {
+        service = new SessionExpiryService(10, 16);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        service.shutdown();
+    }
+
+
+    @Test(timeout = 10000)
+    public void reapsIdleSession()
+        throws InterruptedException
+    {
+        DeploymentSession session = register(new DeploymentSession("ticket", "target", "store", 1));
+
+        while (service.getSessionsReaped() == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(DeploymentSession.State.ABORTED, session.getState());
+        assertEquals(0, service.getSessionCount());
+        assertTrue(System.currentTimeMillis() - session.getLastActivity() >= TIMEOUT);
+    }
+
+
+    @Test(timeout = 10000)
+    public void touchedSessionIsntReaped()
+        throws InterruptedException
+    {
+        DeploymentSession session = register(new DeploymentSession("ticket", "target", "store", 1));
+
+        for (int i = 0; i < 20; i++)
+        {
+            Thread.sleep(TIMEOUT / 5);
+            session.touch();
+        }
+
+        assertEquals(DeploymentSession.State.OPEN, session.getState());
+        assertEquals(0, service.getSessionsReaped());
+
+        while (service.getSessionsReaped() == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(DeploymentSession.State.ABORTED, session.getState());
+    }
+
+
+    @Test(timeout = 10000)
+    public void streamingKeepsSessionAlive()
+        throws IOException, InterruptedException
+    {
+        DeploymentSession session = register(new DeploymentSession("ticket", "target", "store", 1));
+        OutputStream      out     = new SessionOutputStream(session, new ByteArrayOutputStream());
+
+        for (int i = 0; i < 20; i++)
+        {
+            Thread.sleep(TIMEOUT / 5);
+            out.write(new byte[16], 0, 16);
+        }
+
+        out.close();
+        assertEquals(DeploymentSession.State.OPEN, session.getState());
+        assertEquals(0, service.getSessionsReaped());
+    }
+
+
+    @Test(timeout = 10000)
+    public void cancelledSessionIsntReaped()
+        throws InterruptedException
+    {
+        DeploymentSession session = register(new DeploymentSession("ticket", "target", "store", 1));
+
+        service.cancel(session);
+        Thread.sleep(TIMEOUT * 3);
+
+        assertEquals(DeploymentSession.State.OPEN, session.getState());
+        assertEquals(0, service.getSessionsReaped());
+        assertEquals(0, service.getSessionCount());
+    }
+
+
+    @Test(timeout = 10000)
+    public void committingSessionIsntReaped()
+        throws InterruptedException
+    {
+        DeploymentSession session = new DeploymentSession("ticket", "target", "store", 1);
+
+        session.beginCommit();
+        register(session);
+        Thread.sleep(TIMEOUT * 3);
+
+        assertEquals(DeploymentSession.State.COMMITTING, session.getState());
+        assertEquals(0, service.getSessionsReaped());
+
+        // Once it's finished, it's simply forgotten
+        session.committed();
+
+        while (service.getSessionCount() > 0)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, service.getSessionsReaped());
+    }
+
+
+    @Test
+    public void defaultInstanceIsSharedUntilReleased()
+    {
+        SessionExpiryService first = SessionExpiryService.getDefaultInstance();
+
+        try
+        {
+            assertSame(first, SessionExpiryService.getDefaultInstance());
+            SessionExpiryService.releaseDefaultInstance();
+            assertSame(first, SessionExpiryService.getDefaultInstance());
+            SessionExpiryService.releaseDefaultInstance();
+        }
+        finally
+        {
+            SessionExpiryService.releaseDefaultInstance();
+        }
+
+        SessionExpiryService second = SessionExpiryService.getDefaultInstance();
+
+        try
+        {
+            assertNotSame(first, second);
+        }
+        finally
+        {
+            SessionExpiryService.releaseDefaultInstance();
+        }
+    }
+
+
+    private DeploymentSession register(final DeploymentSession session)
+    {
+        service.register(session, TIMEOUT, new SessionExpiryService.Reaper() {
+            public void reap(final DeploymentSession expired)
+            {
+                expired.abort();
+            }
+        });
+
+        return(session);
+    }
+
+}
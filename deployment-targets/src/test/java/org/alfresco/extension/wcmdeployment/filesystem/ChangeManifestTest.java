@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.deployment.FileType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link ChangeManifest}.
+ *
+ * @version $Id$
+ */
+public class ChangeManifestTest
+{
+    private File      root;
+    private PathIndex before;
+    private PathIndex after;
+
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        root = File.createTempFile("ChangeManifestTest", "");
+        root.delete();
+        root.mkdirs();
+
+        before = new PathIndex();
+        after  = new PathIndex();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+
+    @Test
+    public void listsAddedModifiedAndDeletedPaths()
+        throws IOException
+    {
+        ChangeManifest manifest = new ChangeManifest();
+
+        put(before, "/www",            dir());
+        put(before, "/www/index.html", file(5, "aaa"));
+        put(before, "/www/old.html",   file(3, "bbb"));
+        put(after,  "/www",            dir());
+        put(after,  "/www/index.html", file(6, "ccc"));
+        put(after,  "/www/new.html",   file(4, "ddd"));
+
+        manifest.touch("/www/index.html");
+        manifest.touch("/www/old.html");
+        manifest.touch("/www/new.html");
+
+        assertEquals(Arrays.asList("M\tF\t6\tccc\t/www/index.html",
+                                   "A\tF\t4\tddd\t/www/new.html",
+                                   "D\tF\t-1\t-\t/www/old.html"),
+                     write(manifest, 3));
+    }
+
+
+    @Test
+    public void listsParentsBeforeChildren()
+        throws IOException
+    {
+        ChangeManifest manifest = new ChangeManifest();
+
+        put(after, "/www",          dir());
+        put(after, "/www/css",      dir());
+        put(after, "/www/css/a.css", file(1, null));
+
+        // Touched children first, as happens when a directory's contents are sent before the directory itself
+        manifest.touch("/www/css/a.css");
+        manifest.touch("/www/css");
+        manifest.touch("/www");
+
+        assertEquals(Arrays.asList("A\tD\t-1\t-\t/www",
+                                   "A\tD\t-1\t-\t/www/css",
+                                   "A\tF\t1\t-\t/www/css/a.css"),
+                     write(manifest, 3));
+    }
+
+
+    @Test
+    public void deletingADirectoryListsEverythingBelowIt()
+        throws IOException
+    {
+        ChangeManifest manifest = new ChangeManifest();
+
+        put(before, "/www",           dir());
+        put(before, "/www/css",       dir());
+        put(before, "/www/css/a.css", file(1, "aaa"));
+        put(before, "/www/css/b.css", file(2, "bbb"));
+
+        manifest.touch("/www/css/b.css");
+        manifest.touch("/www/css");
+
+        assertEquals(Arrays.asList("D\tD\t-1\t-\t/www/css",
+                                   "D\tF\t-1\t-\t/www/css/a.css",
+                                   "D\tF\t-1\t-\t/www/css/b.css"),
+                     write(manifest, 3));
+    }
+
+
+    @Test
+    public void omitsUnchangedAndTransientPaths()
+        throws IOException
+    {
+        ChangeManifest manifest = new ChangeManifest();
+
+        put(before, "/same.html", file(5, "aaa"));
+        put(after,  "/same.html", file(5, "aaa"));
+
+        manifest.touch("/same.html");
+        manifest.touch("/transient.html");   // Added and deleted again by the same deployment
+
+        assertEquals(new ArrayList<String>(), write(manifest, 0));
+        assertEquals(2, manifest.size());
+    }
+
+
+    private List<String> write(final ChangeManifest manifest, final int expectedChanges)
+        throws IOException
+    {
+        File         file   = new File(root, "manifest");
+        List<String> result = new ArrayList<String>();
+
+        assertEquals(expectedChanges, manifest.write(file, "target/store", 7, before, after));
+        assertFalse(new File(root, "manifest.tmp").exists());
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try
+        {
+            assertTrue(in.readLine().startsWith("#manifest\t1\ttarget/store\t7\t"));
+
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+                result.add(line);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return(result);
+    }
+
+
+    private static void put(final PathIndex index, final String path, final PathIndex.Entry entry)
+    {
+        index.put(path, entry);
+    }
+
+
+    private static PathIndex.Entry dir()
+    {
+        return(new PathIndex.Entry(FileType.DIR, null, 0, 0, null));
+    }
+
+
+    private static PathIndex.Entry file(final long size, final String hash)
+    {
+        return(new PathIndex.Entry(FileType.FILE, null, size, 0, hash));
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.deployment.FileType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link PathIndex}.
+ *
+ * @version $Id$
+ */
+public class PathIndexTest
+{
+    private File root;
+
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        root = File.createTempFile("PathIndexTest", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+
+    @Test
+    public void scanIndexesFilesAndDirectories()
+        throws IOException
+    {
+        write("www/index.html", "hello");
+        write("www/css/site.css", "body {}");
+
+        PathIndex index = PathIndex.scan(root);
+
+        assertEquals(FileType.DIR,  index.get("/www").getType());
+        assertEquals(FileType.DIR,  index.get("/www/css").getType());
+        assertEquals(FileType.FILE, index.get("/www/index.html").getType());
+        assertEquals(5,             index.get("/www/index.html").getSize());
+        assertNull(index.get("/www/index.html").getGuid());
+        assertEquals(names("css", "index.html"), names(index.getChildren("/www")));
+    }
+
+
+    @Test
+    public void scanSkipsTemporaryFiles()
+        throws IOException
+    {
+        write("www/index.html", "hello");
+        write("www/.deploy123.tmp", "half written");
+
+        assertEquals(names("index.html"), names(PathIndex.scan(root).getChildren("/www")));
+    }
+
+
+    @Test
+    public void scanSkipsCompressedVariants()
+        throws IOException
+    {
+        write("www/index.html",    "hello");
+        write("www/index.html.gz", "gzipped hello");
+
+        PathIndex index = PathIndex.scan(root);
+
+        assertNull(index.get("/www/index.html.gz"));
+        assertEquals(names("index.html"), names(index.getChildren("/www")));
+    }
+
+
+    @Test
+    public void scanKeepsDeployedGzipFiles()
+        throws IOException
+    {
+        // A .gz file with no uncompressed sibling was deployed as-is, so it's real content
+        write("www/archive.tar.gz", "tarball");
+
+        assertNotNull(PathIndex.scan(root).get("/www/archive.tar.gz"));
+    }
+
+
+    @Test
+    public void removeRemovesSubtree()
+    {
+        PathIndex index = new PathIndex();
+
+        index.put("/www",              new PathIndex.Entry(FileType.DIR,  "g1", 0, 0, null));
+        index.put("/www/css",          new PathIndex.Entry(FileType.DIR,  "g2", 0, 0, null));
+        index.put("/www/css/site.css", new PathIndex.Entry(FileType.FILE, "g3", 7, 0, null));
+        index.put("/www/index.html",   new PathIndex.Entry(FileType.FILE, "g4", 5, 0, null));
+
+        index.remove("/www/css");
+
+        assertNull(index.get("/www/css/site.css"));
+        assertEquals(2, index.size());
+        assertEquals(names("index.html"), names(index.getChildren("/www")));
+    }
+
+
+    @Test
+    public void saveAndLoadRoundTrip()
+    {
+        PathIndex index = new PathIndex();
+        File      file  = new File(root, "index.idx");
+
+        index.put("/www",            new PathIndex.Entry(FileType.DIR,  "g1", 0, 10, null));
+        index.put("/www/index.html", new PathIndex.Entry(FileType.FILE, "g2", 5, 20, "abc123"));
+        index.save(file);
+
+        PathIndex loaded = PathIndex.load(file);
+
+        assertEquals(2,        loaded.size());
+        assertEquals("g2",     loaded.get("/www/index.html").getGuid());
+        assertEquals("abc123", loaded.get("/www/index.html").getHash());
+        assertEquals(20,       loaded.get("/www/index.html").getLastModified());
+        assertEquals(FileType.DIR, loaded.get("/www").getType());
+    }
+
+
+    @Test
+    public void loadOfCorruptFileReturnsNull()
+        throws IOException
+    {
+        write("index.idx", "not an index");
+
+        assertNull(PathIndex.load(new File(root, "index.idx")));
+    }
+
+
+    private void write(final String path, final String content)
+        throws IOException
+    {
+        File             file = new File(root, path);
+        FileOutputStream out  = null;
+
+        file.getParentFile().mkdirs();
+
+        try
+        {
+            out = new FileOutputStream(file);
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally
+        {
+            FileSystemUtils.closeQuietly(out);
+        }
+    }
+
+
+    private static List<String> names(final String... names)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (final String name : names)
+        {
+            result.add(name);
+        }
+
+        return(result);
+    }
+
+
+    private static List<String> names(final List<Map.Entry<String, PathIndex.Entry>> children)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (final Map.Entry<String, PathIndex.Entry> child : children)
+        {
+            result.add(child.getKey());
+        }
+
+        return(result);
+    }
+
+}
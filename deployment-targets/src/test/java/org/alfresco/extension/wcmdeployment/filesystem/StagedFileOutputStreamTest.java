@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link StagedFileOutputStream}.
+ *
+ * @version $Id$
+ */
+public class StagedFileOutputStreamTest
+{
+    private File directory;
+
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        directory = File.createTempFile("StagedFileOutputStreamTest", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+
+    @Test
+    public void closePublishesContent()
+        throws IOException
+    {
+        File                   destination = new File(directory, "index.html");
+        StagedFileOutputStream out         = new StagedFileOutputStream(destination, true);
+
+        out.write("hello".getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(5, destination.length());
+        assertEquals("aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d", out.getHash());
+        assertArrayEquals(new String[] { "index.html" }, directory.list());
+    }
+
+
+    @Test
+    public void failedPublishLeavesNoTemporaryFile()
+        throws IOException
+    {
+        File                   destination = new File(directory, "index.html");
+        StagedFileOutputStream out         = new StagedFileOutputStream(destination, directory, null) {
+            @Override
+            protected void publish(final File written, final File target)
+                throws IOException
+            {
+                throw new IOException("Simulated failure.");
+            }
+        };
+
+        out.write("hello".getBytes("UTF-8"));
+
+        try
+        {
+            out.close();
+            fail("close() should have failed.");
+        }
+        catch (final IOException ioe)
+        {
+            // Expected
+        }
+
+        assertFalse(destination.exists());
+        assertEquals(0, directory.list().length);
+    }
+
+
+    @Test
+    public void rejectedPublishLeavesNoTemporaryFile()
+        throws IOException
+    {
+        StagedFileOutputStream out = new StagedFileOutputStream(new File(directory, "index.html"), directory, null) {
+            @Override
+            protected void publish(final File written, final File target)
+            {
+                throw new DeploymentException("Simulated rejection.");
+            }
+        };
+
+        try
+        {
+            out.close();
+            fail("close() should have failed.");
+        }
+        catch (final IOException ioe)
+        {
+            // Expected
+        }
+
+        assertEquals(0, directory.list().length);
+    }
+
+
+    @Test
+    public void discardLeavesNoTemporaryFile()
+        throws IOException
+    {
+        StagedFileOutputStream out = new StagedFileOutputStream(new File(directory, "index.html"));
+
+        out.write(42);
+        out.discard();
+
+        assertEquals(0, directory.list().length);
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link VersionRegistry}.
+ *
+ * @version $Id$
+ */
+public class VersionRegistryTest
+{
+    private final static int COPY_SIZE      = 128;   // Mirrors the registry's on-disk layout
+    private final static int OFFSET_VERSION = 12;
+
+    private File directory;
+    private File registryFile;
+
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        directory = File.createTempFile("VersionRegistryTest", "");
+        directory.delete();
+        directory.mkdirs();
+        registryFile = new File(directory, "versions.reg");
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+
+    @Test
+    public void unknownKeyHasNoVersion()
+    {
+        assertNull(new VersionRegistry(registryFile, 4).get("target/store"));
+    }
+
+
+    @Test
+    public void compareAndSetOnlyUpdatesExpectedVersion()
+    {
+        VersionRegistry registry = new VersionRegistry(registryFile, 4);
+
+        assertTrue(registry.compareAndSet("target/store", 0, 1));
+        assertFalse(registry.compareAndSet("target/store", 0, 2));
+        assertTrue(registry.compareAndSet("target/store", 1, 2));
+        assertEquals(Integer.valueOf(2), registry.get("target/store"));
+    }
+
+
+    @Test
+    public void versionsSurviveReopening()
+    {
+        VersionRegistry registry = new VersionRegistry(registryFile, 4);
+
+        registry.set("target/store", 7);
+        registry.set("target/other", 3);
+
+        VersionRegistry reopened = new VersionRegistry(registryFile, 4);
+
+        assertEquals(Integer.valueOf(7), reopened.get("target/store"));
+        assertEquals(Integer.valueOf(3), reopened.get("target/other"));
+    }
+
+
+    @Test
+    public void corruptLatestCopyFallsBackToPreviousCopy()
+        throws IOException
+    {
+        VersionRegistry registry = new VersionRegistry(registryFile, 4);
+
+        registry.set("target/store", 41);
+        registry.set("target/store", 42);
+
+        corruptCopiesHoldingVersion(42);
+
+        assertEquals(Integer.valueOf(41), new VersionRegistry(registryFile, 4).get("target/store"));
+    }
+
+
+    @Test
+    public void keyWithNoValidCopyIsForgotten()
+        throws IOException
+    {
+        VersionRegistry registry = new VersionRegistry(registryFile, 4);
+
+        registry.set("target/store", 41);
+        registry.set("target/store", 42);
+
+        corruptCopiesHoldingVersion(41);
+        corruptCopiesHoldingVersion(42);
+
+        assertNull(new VersionRegistry(registryFile, 4).get("target/store"));
+    }
+
+
+    @Test
+    public void legacyVersionIsASingleCharacter()
+        throws IOException
+    {
+        assertEquals(7,   VersionRegistry.readLegacyVersion(writeLegacyVersion(7)));
+        assertEquals(122, VersionRegistry.readLegacyVersion(writeLegacyVersion(122)));
+    }
+
+
+    @Test
+    public void legacyVersionsThatAreDigitCharactersAreNotParsed()
+        throws IOException
+    {
+        // Versions 48 to 57 were written as the characters '0' to '9'
+        for (int version = '0'; version <= '9'; version++)
+        {
+            assertEquals(version, VersionRegistry.readLegacyVersion(writeLegacyVersion(version)));
+        }
+    }
+
+
+    @Test
+    public void legacyVersionInDecimalIsParsed()
+        throws IOException
+    {
+        assertEquals(1234, VersionRegistry.readLegacyVersion(writeLegacyFile("1234\n")));
+    }
+
+
+    @Test
+    public void emptyLegacyVersionIsZero()
+        throws IOException
+    {
+        assertEquals(0, VersionRegistry.readLegacyVersion(writeLegacyFile("")));
+    }
+
+
+    private void corruptCopiesHoldingVersion(final int version)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(registryFile, "rw");
+
+        try
+        {
+            for (long offset = 0; offset < file.length(); offset += COPY_SIZE)
+            {
+                file.seek(offset + OFFSET_VERSION);
+
+                if (file.readInt() == version)
+                {
+                    // Flip a bit in the key, so that the copy's checksum no longer matches
+                    file.seek(offset + OFFSET_VERSION + 6);
+                    int b = file.read();
+                    file.seek(offset + OFFSET_VERSION + 6);
+                    file.write(b ^ 0x01);
+                }
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+
+    private File writeLegacyVersion(final int version)
+        throws IOException
+    {
+        File   result = new File(directory, "version.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(result));
+
+        try
+        {
+            // This is how earlier releases recorded the version
+            writer.write(version);
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        return(result);
+    }
+
+
+    private File writeLegacyFile(final String content)
+        throws IOException
+    {
+        File   result = new File(directory, "version.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(result));
+
+        try
+        {
+            writer.write(content);
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        return(result);
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.filesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link WriteBehindPipeline}.
+ *
+ * @version $Id$
+ */
+public class WriteBehindPipelineTest
+{
+    private File                directory;
+    private WriteBehindPipeline pipeline;
+
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        directory = File.createTempFile("WriteBehindPipelineTest", "");
+        directory.delete();
+        new File(directory, "a").mkdirs();
+        new File(directory, "b").mkdirs();
+
+        pipeline = new WriteBehindPipeline(2, 4, 16, WriteBehindPipeline.FsyncPolicy.NONE);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        pipeline.shutdown();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+
+    @Test(timeout = 10000)
+    public void awaitWritesEveryFile()
+        throws IOException
+    {
+        WriteBehindPipeline.Batch batch = pipeline.newBatch();
+
+        for (int i = 0; i < 10; i++)
+        {
+            OutputStream out = pipeline.newOutputStream(batch, new StagedFileOutputStream(new File(directory, "a/" + i)));
+
+            out.write(new byte[100]);
+            out.close();
+        }
+
+        batch.await();
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(100, new File(directory, "a/" + i).length());
+        }
+    }
+
+
+    @Test(timeout = 10000)
+    public void awaitPathOnlyWaitsForFilesBeneathIt()
+        throws Exception
+    {
+        WriteBehindPipeline.Batch batch = pipeline.newBatch();
+        File                      file  = new File(directory, "a/index.html");
+        final OutputStream        out   = pipeline.newOutputStream(batch, new StagedFileOutputStream(file));
+
+        out.write(new byte[100]);
+
+        // Nothing pending beneath b, so this mustn't wait for the open stream
+        batch.await(new File(directory, "b"));
+        batch.await(new File(directory, "a/index.htm"));
+        assertFalse(file.exists());
+
+        Thread closer = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                    out.close();
+                }
+                catch (final Exception e)
+                {
+                    // The assertions below will fail
+                }
+            }
+        });
+
+        closer.start();
+        batch.await(new File(directory, "a"));
+        closer.join();
+
+        assertTrue(file.exists());
+        assertEquals(100, file.length());
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.alfresco.deployment.impl.DeploymentException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+
+/**
+ * Unit tests for {@link DocumentBatch}.
+ *
+ * @version $Id$
+ */
+public class DocumentBatchTest
+{
+    private DB           database;
+    private DBCollection collection;
+
+
+    @Before
+    public void setUp()
+    {
+        database   = mock(DB.class);
+        collection = mock(DBCollection.class);
+
+        when(collection.getDB()).thenReturn(database);
+        when(collection.getName()).thenReturn("deployedData");
+    }
+
+
+    @Test
+    public void lastDocumentWins()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        batch.add(document("1", "/a", "first"),  10);
+        batch.add(document("2", "/b", "other"),  10);
+        batch.add(document("1", "/a", "second"), 10);
+        batch.flush();
+
+        List<DBObject> upserted = upserted(2);
+
+        assertEquals("second", upserted.get(0).get("content"));
+        assertEquals(1, batch.getFlushCount());
+    }
+
+
+    @Test
+    public void documentsAreUpsertedById()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+        DBObject      doc   = document("1", "/a", null);
+
+        batch.add(doc, 10);
+        batch.flush();
+
+        verify(collection).update(new BasicDBObject("_id", "1"), doc, true, false);
+        verify(collection, never()).insert(anyListOf(DBObject.class));
+
+        // Only documents at the batch's paths with other ids are removed
+        ArgumentCaptor<DBObject> removed = ArgumentCaptor.forClass(DBObject.class);
+
+        verify(collection).remove(removed.capture());
+
+        DBObject clause = (DBObject)((List<?>)removed.getValue().get("$or")).get(0);
+
+        assertEquals(Arrays.asList("/a"), ((DBObject)clause.get("path")).get("$in"));
+        assertEquals(Arrays.asList("1"),  ((DBObject)clause.get("_id")).get("$nin"));
+    }
+
+
+    @Test
+    public void deletePrunesPendingSubtree()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        batch.add(document("1", "/a/b",   null), 10);
+        batch.add(document("2", "/ab",    null), 10);
+        batch.add(document("3", "/a/b/c", null), 10);
+        batch.delete("/a");
+        batch.flush();
+
+        assertEquals("/ab", upserted(1).get(0).get("path"));
+    }
+
+
+    @Test
+    public void flushesWhenFull()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 2, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        batch.add(document("1", "/a", null), 10);
+        assertEquals(0, batch.getFlushCount());
+
+        batch.add(document("2", "/b", null), 10);
+        assertEquals(1, batch.getFlushCount());
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void unacknowledgedWritesShareARequest()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        batch.add(document("1", "/a", null), 10);
+        batch.flush();
+
+        InOrder order = inOrder(database, collection);
+
+        order.verify(database).requestStart();
+        order.verify(collection).remove(any(DBObject.class));
+        order.verify(collection).update(any(DBObject.class), any(DBObject.class), eq(true), eq(false));
+        order.verify(database).requestDone();
+        verify(database, never()).command(any(DBObject.class));
+        verify(database, never()).getPreviousError();
+    }
+
+
+    @Test
+    public void verifyPassesWhenEverythingWasApplied()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        when(collection.getCount(any(DBObject.class))).thenAnswer(new ServerCount(0));
+
+        batch.add(document("1", "/a",   null), 10);
+        batch.add(document("2", "/b/c", null), 10);
+        batch.delete("/old");
+        batch.verify();
+
+        // Nothing left to verify
+        batch.verify();
+        verify(collection, times(3)).getCount(any(DBObject.class));
+    }
+
+
+    @Test
+    public void verifyReportsMissingDocuments()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        when(collection.getCount(any(DBObject.class))).thenReturn(Long.valueOf(1));
+
+        batch.add(document("1", "/a", null), 10);
+        batch.add(document("2", "/b", null), 10);
+
+        try
+        {
+            batch.verify();
+            fail("verify() should have reported the missing document.");
+        }
+        catch (final DeploymentException de)
+        {
+            assertTrue(de.getMessage().startsWith("1 of the 2 document(s)"));
+        }
+    }
+
+
+    @Test
+    public void verifyReportsRemovalsThatWerentApplied()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        when(collection.getCount(any(DBObject.class))).thenAnswer(new ServerCount(1));
+
+        batch.delete("/old");
+
+        try
+        {
+            batch.verify();
+            fail("verify() should have reported the document that's still there.");
+        }
+        catch (final DeploymentException de)
+        {
+            assertTrue(de.getMessage().contains("are still there"));
+        }
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void verifyExcludesDocumentsWrittenBeneathDeletedPaths()
+    {
+        DocumentBatch batch = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.UNACKNOWLEDGED);
+
+        when(collection.getCount(any(DBObject.class))).thenAnswer(new ServerCount(0));
+
+        batch.delete("/a");
+        batch.flush();
+        batch.add(document("new", "/a/b", null), 10);
+        batch.verify();
+
+        ArgumentCaptor<DBObject> queries = ArgumentCaptor.forClass(DBObject.class);
+
+        verify(collection, times(3)).getCount(queries.capture());
+
+        DBObject deleted = queries.getAllValues().get(2);
+
+        assertEquals(Arrays.asList("new"), ((DBObject)deleted.get("_id")).get("$nin"));
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void acknowledgedWritesAreCheckedInTheSameRequest()
+    {
+        DocumentBatch batch  = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.ACKNOWLEDGED);
+        CommandResult result = mock(CommandResult.class);
+
+        when(result.ok()).thenReturn(true);
+        when(database.command(any(DBObject.class))).thenReturn(result);
+
+        batch.add(document("1", "/a", null), 10);
+        batch.flush();
+        batch.verify();
+
+        InOrder order = inOrder(database, collection);
+
+        order.verify(database).requestStart();
+        order.verify(database).resetError();
+        order.verify(collection).remove(any(DBObject.class));
+        order.verify(collection).update(any(DBObject.class), any(DBObject.class), eq(true), eq(false));
+        order.verify(database).command(any(DBObject.class));
+        order.verify(database).getPreviousError();
+        order.verify(database).requestDone();
+        verify(collection, never()).getCount(any(DBObject.class));
+    }
+
+
+    @Test
+    public void acknowledgedFlushReportsEarlierFailures()
+    {
+        DocumentBatch batch    = new DocumentBatch(collection, 100, 1024 * 1024, WriteConcernProfile.ACKNOWLEDGED);
+        CommandResult last     = mock(CommandResult.class);
+        CommandResult previous = mock(CommandResult.class);
+
+        when(last.ok()).thenReturn(true);
+        when(database.command(any(DBObject.class))).thenReturn(last);
+        when(previous.get("err")).thenReturn("E11000 duplicate key error");
+        when(database.getPreviousError()).thenReturn(previous);
+
+        batch.add(document("1", "/a", null), 10);
+        batch.add(document("2", "/b", null), 10);
+
+        try
+        {
+            batch.flush();
+            fail("flush() should have reported the failed upsert.");
+        }
+        catch (final DeploymentException de)
+        {
+            assertTrue(de.getMessage().contains("duplicate key"));
+        }
+
+        verify(database).requestDone();
+    }
+
+
+    private List<DBObject> upserted(final int expected)
+    {
+        ArgumentCaptor<DBObject> documents = ArgumentCaptor.forClass(DBObject.class);
+
+        verify(collection, times(expected)).update(any(DBObject.class), documents.capture(), eq(true), eq(false));
+
+        return(documents.getAllValues());
+    }
+
+
+    private static DBObject document(final String id, final String path, final String content)
+    {
+        BasicDBObject result = new BasicDBObject("_id", id);
+
+        result.put("path", path);
+
+        if (content != null)
+        {
+            result.put("content", content);
+        }
+
+        return(result);
+    }
+
+
+    /**
+     * Answers <code>_id $in</code> counts as though every document is there, and every other count with a fixed value.
+     */
+    private static class ServerCount
+        implements Answer<Long>
+    {
+        private final long otherwise;
+
+
+        private ServerCount(final long otherwise)
+        {
+            this.otherwise = otherwise;
+        }
+
+
+        public Long answer(final InvocationOnMock invocation)
+        {
+            DBObject query = (DBObject)invocation.getArguments()[0];
+            Object   id    = query.get("_id");
+            long     result = otherwise;
+
+            if (id instanceof DBObject && ((DBObject)id).get("$in") != null)
+            {
+                result = ((Collection<?>)((DBObject)id).get("$in")).size();
+            }
+
+            return(Long.valueOf(result));
+        }
+    }
+
+}
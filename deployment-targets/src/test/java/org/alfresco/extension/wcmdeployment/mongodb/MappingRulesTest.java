@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link MappingRules}.
+ *
+ * @version $Id$
+ */
+public class MappingRulesTest
+{
+    @Test
+    public void exactNamesAndWildcardsBothApply()
+    {
+        MappingRules rules = rules("*  article  body/*/script  skip",
+                                   "*  article  body/div       array");
+
+        MappingRules.State body = rules.getRootState("text/xml", "article").next("body");
+
+        assertEquals(MappingRules.Action.ARRAY, body.next("div").action);
+        assertEquals(MappingRules.Action.SKIP,  body.next("div").next("script").action);
+        assertEquals(MappingRules.Action.SKIP,  body.next("p").next("script").action);
+        assertSame(MappingRules.DEFAULT_STATE,  body.next("p").next("em"));
+    }
+
+
+    @Test
+    public void exactNamesWinOverWildcards()
+    {
+        MappingRules rules = rules("*  article  body/div      field  division",
+                                   "*  article  body/*        skip",
+                                   "*  article  body/*/title  skip",
+                                   "*  article  body/div/title  field  heading");
+
+        MappingRules.State body = rules.getRootState("text/xml", "article").next("body");
+
+        assertEquals(MappingRules.Action.FIELD, body.next("div").action);
+        assertEquals("division",                body.next("div").fieldName);
+        assertEquals(MappingRules.Action.FIELD, body.next("div").next("title").action);
+        assertEquals("heading",                 body.next("div").next("title").fieldName);
+        assertEquals(MappingRules.Action.SKIP,  body.next("p").action);
+    }
+
+
+    @Test
+    public void wildcardsDontLeakIntoOtherBranches()
+    {
+        MappingRules rules = rules("*  article  a/*/c  skip",
+                                   "*  article  a/b    array",
+                                   "*  article  x/b/c  array");
+
+        MappingRules.State root = rules.getRootState("text/xml", "article");
+
+        assertEquals(MappingRules.Action.SKIP,   root.next("a").next("b").next("c").action);
+        assertEquals(MappingRules.Action.ARRAY,  root.next("x").next("b").next("c").action);
+        assertEquals(MappingRules.Action.NESTED, root.next("x").next("y").next("c").action);
+    }
+
+
+    @Test
+    public void moreSpecificRulesWin()
+    {
+        MappingRules rules = rules("text/xml  article  title  field  title",
+                                   "*         article  title  skip",
+                                   "*         *        title  array");
+
+        assertEquals(MappingRules.Action.FIELD, rules.getRootState("text/xml",  "article").next("title").action);
+        assertEquals(MappingRules.Action.SKIP,  rules.getRootState("text/html", "article").next("title").action);
+        assertEquals(MappingRules.Action.ARRAY, rules.getRootState("text/html", "news").next("title").action);
+    }
+
+
+    @Test
+    public void rejectsReservedFieldNames()
+    {
+        for (final String field : Arrays.asList("path", "ancestors", ChunkStore.OWNER_FIELD, ChunkStore.COUNT_FIELD, "$where", "a.b"))
+        {
+            try
+            {
+                rules("*  article  title  field  " + field);
+                fail("The field name '" + field + "' should have been rejected.");
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                // Expected
+            }
+        }
+    }
+
+
+    private static MappingRules rules(final String... spec)
+    {
+        return(new MappingRules(Arrays.asList(spec)));
+    }
+
+}
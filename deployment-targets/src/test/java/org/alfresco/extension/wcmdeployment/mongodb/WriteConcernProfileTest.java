@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have received a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.extension.wcmdeployment.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+
+/**
+ * Unit tests for {@link WriteConcernProfile}.
+ *
+ * @version $Id$
+ */
+public class WriteConcernProfileTest
+{
+    @Test
+    public void parsesNamedProfiles()
+    {
+        assertSame(WriteConcernProfile.UNACKNOWLEDGED, WriteConcernProfile.parse("unacknowledged"));
+        assertSame(WriteConcernProfile.ACKNOWLEDGED,   WriteConcernProfile.parse("acknowledged"));
+        assertSame(WriteConcernProfile.JOURNALED,      WriteConcernProfile.parse(" Journaled "));
+        assertSame(WriteConcernProfile.FSYNCED,        WriteConcernProfile.parse("FSYNCED"));
+        assertSame(WriteConcernProfile.MAJORITY,       WriteConcernProfile.parse("majority"));
+
+        assertFalse(WriteConcernProfile.UNACKNOWLEDGED.isAcknowledged());
+        assertTrue(WriteConcernProfile.ACKNOWLEDGED.isAcknowledged());
+    }
+
+
+    @Test
+    public void parsesOptions()
+    {
+        DBObject command = check(WriteConcernProfile.parse("w=2, j=true, wtimeout=10000"));
+
+        assertEquals(Integer.valueOf(2),     command.get("w"));
+        assertEquals(Boolean.TRUE,           command.get("j"));
+        assertEquals(Integer.valueOf(10000), command.get("wtimeout"));
+        assertNull(command.get("fsync"));
+
+        command = check(WriteConcernProfile.parse("w=dataCenters,fsync=true"));
+
+        assertEquals("dataCenters", command.get("w"));
+        assertEquals(Boolean.TRUE,  command.get("fsync"));
+        assertNull(command.get("j"));
+    }
+
+
+    @Test
+    public void zeroWritesIsUnacknowledged()
+    {
+        assertFalse(WriteConcernProfile.parse("w=0").isAcknowledged());
+        assertTrue(WriteConcernProfile.parse("w=0,j=true").isAcknowledged());
+        assertEquals("w=0", WriteConcernProfile.parse("w=0").toString());
+    }
+
+
+    @Test
+    public void unacknowledgedProfileDoesntCheck()
+    {
+        DB database = mock(DB.class);
+
+        WriteConcernProfile.UNACKNOWLEDGED.check(database, "nothing");
+        verify(database, never()).command(any(DBObject.class));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownOptions()
+    {
+        WriteConcernProfile.parse("w=1,x=2");
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedOptions()
+    {
+        WriteConcernProfile.parse("sometimes");
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidValues()
+    {
+        WriteConcernProfile.parse("wtimeout=soon");
+    }
+
+
+    private static DBObject check(final WriteConcernProfile profile)
+    {
+        DB                       database = mock(DB.class);
+        CommandResult            result   = mock(CommandResult.class);
+        ArgumentCaptor<DBObject> command  = ArgumentCaptor.forClass(DBObject.class);
+
+        when(result.ok()).thenReturn(true);
+        when(database.command(any(DBObject.class))).thenReturn(result);
+
+        profile.check(database, "a write");
+        verify(database).command(command.capture());
+
+        return(command.getValue());
+    }
+
+}